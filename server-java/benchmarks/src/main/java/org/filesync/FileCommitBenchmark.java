@@ -0,0 +1,76 @@
+package org.filesync;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Commits a batch of small received files durably through the {@link FileCommitter}. With one sync
+ * thread the content of the files is forced one after the other, with more the forces of a batch
+ * run at once. An operation ends once every file of the batch was committed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileCommitBenchmark {
+
+  @Param({"100"})
+  public int files;
+
+  @Param({"1", "16"})
+  public int syncThreads;
+
+  private Path folder;
+  private FileCommitter committer;
+  private byte[] content;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    folder = Files.createTempDirectory("filesync-benchmark");
+    committer = new FileCommitter(0, syncThreads);
+    content = new byte[4096];
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    try (Stream<Path> paths = Files.walk(folder)) {
+      for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  @Benchmark
+  public void commitBatch() throws IOException {
+    List<CompletableFuture<Void>> commits = new ArrayList<>(files);
+    for (int i = 0; i < files; i++) {
+      Path target = folder.resolve("file-" + i + ".bin");
+      Path tempFile = FileCommitter.tempFile(target);
+      Files.write(tempFile, content);
+      commits.add(committer.commit(tempFile, target));
+    }
+    CompletableFuture.allOf(commits.toArray(new CompletableFuture[0])).join();
+  }
+}
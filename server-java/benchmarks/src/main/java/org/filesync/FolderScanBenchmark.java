@@ -0,0 +1,77 @@
+package org.filesync;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Walks a synthetic server folder with empty files, 100 per directory in a tree three directories
+ * deep. Measures the listing, the page cache keeps the tree in memory after the first walk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FolderScanBenchmark {
+
+  static final int FILES_PER_DIRECTORY = 100;
+
+  @Param({"10000", "100000"})
+  public int files;
+
+  @Param({"1", "4"})
+  public int scanThreads;
+
+  private Path folder;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    folder = Files.createTempDirectory("filesync-benchmark");
+    for (int i = 0; i < files; i++) {
+      int directory = i / FILES_PER_DIRECTORY;
+      //ten subdirectories per directory
+      Path parent = folder.resolve(String.join("/",
+          String.valueOf(directory % 10), String.valueOf(directory / 10 % 10),
+          String.valueOf(directory)));
+      if (i % FILES_PER_DIRECTORY == 0) {
+        Files.createDirectories(parent);
+      }
+      Files.createFile(parent.resolve("file-" + i + ".bin"));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    try (Stream<Path> paths = Files.walk(folder)) {
+      for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  @Benchmark
+  public long scan() throws IOException {
+    LongAdder found = new LongAdder();
+    new FolderScanner(folder.toString(), scanThreads).scan((path) -> found.increment());
+    return found.sum();
+  }
+}
@@ -0,0 +1,72 @@
+package org.filesync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of single frames, without any network in between.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+  @Param({"0", "1024", "65536", "1048576"})
+  public int payloadSize;
+
+  private SyncFrame frame;
+  private ByteArrayOutputStream output;
+  private ByteArrayInputStream input;
+  private Metrics.Client metrics;
+
+  @Setup
+  public void setup() {
+    byte[] payload = new byte[payloadSize];
+    new Random(1).nextBytes(payload);
+    frame = new SyncFrame(SyncOpcode.NEW_FILE_PART, payload);
+    output = new ByteArrayOutputStream(payloadSize + 5);
+    input = new ByteArrayInputStream(frame.toBytes());
+    metrics = new Metrics.Client("benchmark", new Metrics());
+  }
+
+  @Benchmark
+  public int writeFrame() throws IOException {
+    output.reset();
+    SyncFrame.writeFrame(SyncOpcode.NEW_FILE_PART, ByteBuffer.wrap(frame.payload), output);
+    return output.size();
+  }
+
+  @Benchmark
+  public byte[] toBytes() {
+    return frame.toBytes();
+  }
+
+  @Benchmark
+  public int readFrame() throws IOException {
+    input.reset();
+    try (FrameReader frameReader = new FrameReader(Channels.newChannel(input),
+        BufferPool.SHARED, new ByteBudget(0), metrics);
+        PooledFrame readFrame = frameReader.readFrame()) {
+      return readFrame.payload().remaining();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package org.filesync;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.filesync.ReadManager.IOAdapter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Handling of an INIT frame, which compares the paths of the client with the ones of the server.
+ * Half of the paths are known to both, so that both sides have files the other one is missing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class InitDiffBenchmark {
+
+  @Param({"10000", "100000", "1000000"})
+  public int paths;
+
+  private SharedSyncState sharedSyncState;
+  private ReadManager readManager;
+  private ExecutorService workerPool;
+  private Socket client;
+  private byte[] initFrame;
+  private PrintStream stdout;
+
+  public static String path(int i) {
+    return "folder-" + (i % 100) + "/file-" + i + ".bin";
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    //the init logs, which would only measure the terminal
+    stdout = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+    List<String> serverPaths = new ArrayList<>();
+    for (int i = 0; i < paths; i++) {
+      serverPaths.add(path(i));
+    }
+    StringBuilder clientPaths = new StringBuilder();
+    for (int i = paths / 2; i < paths + paths / 2; i++) {
+      clientPaths.append(path(i)).append("\n");
+    }
+    initFrame = new SyncFrame(SyncOpcode.INIT,
+        clientPaths.toString().getBytes(StandardCharsets.UTF_8)).toBytes();
+
+    sharedSyncState = new SharedSyncState(new CopyOnWriteArrayList<>(), serverPaths, "");
+    workerPool = Executors.newSingleThreadExecutor();
+    readManager = new ReadManager(sharedSyncState, workerPool, (closedClient) -> {
+    }, new IOAdapter());
+    client = new Socket();
+    sharedSyncState.clientIds.put(client, "benchmark");
+    sharedSyncState.clients.add(client);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    workerPool.shutdownNow();
+    System.setOut(stdout);
+  }
+
+  @Benchmark
+  public int handleInit() {
+    readManager.handleRead(client, new ByteArrayInputStream(initFrame));
+    //the responses are queued for the writing loop, which does not run here
+    int responses = sharedSyncState.writeQueue.size() + sharedSyncState.initQueue.size();
+    sharedSyncState.writeQueue.clear();
+    sharedSyncState.initQueue.clear();
+    return responses;
+  }
+}
@@ -0,0 +1,176 @@
+package org.filesync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * One simulated client. It connects, sends an empty INIT, uploads its own files and counts the
+ * files it receives, until it has all files of the server and of the other clients. The payloads
+ * are neither stored nor checked, only the protocol is spoken.
+ */
+class LoadClient implements Callable<LoadClient.Result> {
+
+  static class Result {
+
+    public final boolean synced;
+    public final long latencyNanos;
+    public final long receivedBytes;
+    public final long receivedFiles;
+    public final String error;
+
+    Result(boolean synced, long latencyNanos, long receivedBytes, long receivedFiles,
+        String error) {
+      this.synced = synced;
+      this.latencyNanos = latencyNanos;
+      this.receivedBytes = receivedBytes;
+      this.receivedFiles = receivedFiles;
+      this.error = error;
+    }
+  }
+
+  private final int port;
+  private final String apiKey;
+  private final List<String> uploadPaths;
+  private final List<Long> uploadSizes;
+  private final int expectedFiles;
+  private final int chunkSize;
+  private final int timeoutMillis;
+  //shared by all clients, only read
+  private final byte[] content;
+
+  private final byte[] scratch = new byte[64 * 1024];
+  private final Set<String> receivedPaths = new HashSet<>();
+  private long receivedBytes = 0;
+
+  LoadClient(int port, String apiKey, List<String> uploadPaths, List<Long> uploadSizes,
+      int expectedFiles, int chunkSize, int timeoutMillis, byte[] content) {
+    this.port = port;
+    this.apiKey = apiKey;
+    this.uploadPaths = uploadPaths;
+    this.uploadSizes = uploadSizes;
+    this.expectedFiles = expectedFiles;
+    this.chunkSize = chunkSize;
+    this.timeoutMillis = timeoutMillis;
+    this.content = content;
+  }
+
+  public long uploadBytes() {
+    long bytes = 0;
+    for (long size : uploadSizes) {
+      bytes += size;
+    }
+    return bytes;
+  }
+
+  @Override
+  public Result call() {
+    long startNanos = System.nanoTime();
+    try (Socket socket = new Socket()) {
+      socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+          timeoutMillis);
+      socket.setSoTimeout(timeoutMillis);
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+
+      out.write(apiKey.getBytes(StandardCharsets.UTF_8));
+      writeFrame(out, SyncOpcode.INIT, new byte[0], 0);
+      out.flush();
+      //the server reads uploads independently of its writes, so nothing is received meanwhile
+      for (int i = 0; i < uploadPaths.size(); i++) {
+        upload(out, uploadPaths.get(i), uploadSizes.get(i));
+      }
+
+      receive(in);
+      long latencyNanos = System.nanoTime() - startNanos;
+      writeFrame(out, SyncOpcode.CLOSE, new byte[0], 0);
+      out.flush();
+      return new Result(true, latencyNanos, receivedBytes, receivedPaths.size(), null);
+    } catch (IOException e) {
+      return new Result(false, System.nanoTime() - startNanos, receivedBytes,
+          receivedPaths.size(), e.toString());
+    }
+  }
+
+  private void upload(DataOutputStream out, String path, long size) throws IOException {
+    byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+    writeFrame(out, SyncOpcode.NEW_FILE_PATH, pathBytes, pathBytes.length);
+    long remaining = size;
+    while (true) {
+      int length = (int) Math.min(chunkSize, remaining);
+      writeFrame(out, SyncOpcode.NEW_FILE_PART, content, length);
+      remaining -= length;
+      //the same parts the server sends, a file that fills its last part ends with an empty one
+      if (length < chunkSize) {
+        break;
+      }
+    }
+    writeFrame(out, SyncOpcode.NEW_FILE_END, pathBytes, pathBytes.length);
+    out.flush();
+  }
+
+  private void receive(DataInputStream in) throws IOException {
+    String currentPath = null;
+    while (receivedPaths.size() < expectedFiles) {
+      byte syncOpCode = in.readByte();
+      int length = Integer.reverseBytes(in.readInt());
+      switch (syncOpCode) {
+        case SyncOpcode.NEW_FILE_PATH:
+          currentPath = readString(in, length);
+          break;
+        case SyncOpcode.NEW_FILE_PART:
+        case SyncOpcode.NEW_FILE_PART_DEFLATED:
+          receivedBytes += length;
+          skip(in, length);
+          break;
+        case SyncOpcode.NEW_FILE_END:
+          skip(in, length);
+          if (currentPath == null) {
+            throw new IOException("End of a file without a path");
+          }
+          receivedPaths.add(currentPath);
+          currentPath = null;
+          break;
+        case SyncOpcode.CLOSE:
+          throw new IOException("Closed by the server after " + receivedPaths.size() + " of "
+              + expectedFiles + " files");
+        default:
+          skip(in, length);
+      }
+    }
+  }
+
+  private static void writeFrame(DataOutputStream out, byte syncOpCode, byte[] payload,
+      int length) throws IOException {
+    out.writeByte(syncOpCode);
+    out.writeInt(Integer.reverseBytes(length));
+    out.write(payload, 0, length);
+  }
+
+  private static String readString(DataInputStream in, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private void skip(DataInputStream in, int length) throws IOException {
+    int remaining = length;
+    while (remaining > 0) {
+      int read = Math.min(scratch.length, remaining);
+      in.readFully(scratch, 0, read);
+      remaining -= read;
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package org.filesync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Simulates many clients against a local server and reports how long they take to sync and how
+ * much data the server delivers. Everything runs on this machine over loopback, without Docker.
+ * <p>
+ * The server folder is filled with generated files and served by a {@link LocalServer}. All clients
+ * connect at once, upload their own files and wait until they have every file of the server and of
+ * the other clients. A client is synced, once it has received its last file.
+ */
+public class LoadGenerator {
+
+  static final String API_KEY = "LOAD-GENERATOR-API-KEY";
+
+  private final int clients = Integer.parseInt(getOptionalEnv("LOAD_CLIENTS", "100"));
+  private final int files = Integer.parseInt(getOptionalEnv("LOAD_FILES", "100"));
+  private final SizeDistribution fileSize = SizeDistribution.parse(
+      getOptionalEnv("LOAD_FILE_SIZE", "lognormal:65536:1.5"));
+  private final int uploadsPerClient = Integer.parseInt(
+      getOptionalEnv("LOAD_UPLOADS_PER_CLIENT", "1"));
+  private final SizeDistribution uploadSize = SizeDistribution.parse(
+      getOptionalEnv("LOAD_UPLOAD_SIZE", "fixed:65536"));
+  private final int chunkSize = Integer.parseInt(getOptionalEnv("LOAD_CHUNK_SIZE", "1000000"));
+  private final int timeoutSeconds = Integer.parseInt(
+      getOptionalEnv("LOAD_TIMEOUT_SECONDS", "300"));
+  private final long seed = Long.parseLong(getOptionalEnv("LOAD_SEED", "1"));
+
+  public static void main(String[] args) throws Exception {
+    for (String arg : args) {
+      if (arg.equals("--help") || arg.equals("-h")) {
+        printHelp();
+        return;
+      }
+    }
+    new LoadGenerator().run();
+  }
+
+  private static String getOptionalEnv(String name, String defaultValue) {
+    String value = System.getenv(name);
+    return (value != null) ? value : defaultValue;
+  }
+
+  public void run() throws IOException, InterruptedException, ExecutionException {
+    Path workFolder = Files.createTempDirectory("filesync-load");
+    Path serverFolder = workFolder.resolve("server-folder");
+    Path stateFolder = workFolder.resolve("server-folder-state");
+    Path log = workFolder.resolve("server.log");
+    Random random = new Random(seed);
+
+    long serverBytes = createFiles(serverFolder, random);
+    System.out.println("Created " + files + " files with " + serverBytes + " bytes, sizes "
+        + fileSize + ". Server log: " + log);
+
+    try (LocalServer server = new LocalServer(serverFolder, stateFolder, log, API_KEY,
+        chunkSize)) {
+      server.awaitReady(timeoutSeconds);
+      List<LoadClient> loadClients = createClients(server.port, random);
+      long uploadBytes = 0;
+      for (LoadClient loadClient : loadClients) {
+        uploadBytes += loadClient.uploadBytes();
+      }
+      ExecutorService clientPool = Executors.newFixedThreadPool(clients);
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<LoadClient.Result>> futures = new ArrayList<>();
+      for (LoadClient loadClient : loadClients) {
+        futures.add(clientPool.submit(() -> {
+          start.await();
+          return loadClient.call();
+        }));
+      }
+      long startNanos = System.nanoTime();
+      start.countDown();
+      List<LoadClient.Result> results = new ArrayList<>();
+      for (Future<LoadClient.Result> future : futures) {
+        results.add(future.get());
+      }
+      long wallNanos = System.nanoTime() - startNanos;
+      clientPool.shutdown();
+      report(results, wallNanos, uploadBytes);
+    } finally {
+      deleteFolder(serverFolder);
+      deleteFolder(stateFolder);
+    }
+  }
+
+  private long createFiles(Path serverFolder, Random random) throws IOException {
+    Files.createDirectories(serverFolder);
+    byte[] block = new byte[64 * 1024];
+    long totalBytes = 0;
+    for (int i = 0; i < files; i++) {
+      //a few directories, like a real folder has
+      Path file = serverFolder.resolve("dir-" + (i % 10)).resolve("file-" + i + ".bin");
+      Files.createDirectories(file.getParent());
+      long size = fileSize.sample(random);
+      try (OutputStream out = Files.newOutputStream(file)) {
+        for (long written = 0; written < size; written += block.length) {
+          random.nextBytes(block);
+          out.write(block, 0, (int) Math.min(block.length, size - written));
+        }
+      }
+      totalBytes += size;
+    }
+    return totalBytes;
+  }
+
+  private List<LoadClient> createClients(int port, Random random) {
+    byte[] content = new byte[chunkSize];
+    random.nextBytes(content);
+    int expectedFiles = files + (clients - 1) * uploadsPerClient;
+    List<LoadClient> loadClients = new ArrayList<>();
+    for (int client = 0; client < clients; client++) {
+      List<String> uploadPaths = new ArrayList<>();
+      List<Long> uploadSizes = new ArrayList<>();
+      for (int i = 0; i < uploadsPerClient; i++) {
+        uploadPaths.add("uploads/client-" + client + "-" + i + ".bin");
+        uploadSizes.add(uploadSize.sample(random));
+      }
+      loadClients.add(new LoadClient(port, API_KEY, uploadPaths, uploadSizes, expectedFiles,
+          chunkSize, timeoutSeconds * 1000, content));
+    }
+    return loadClients;
+  }
+
+  private void report(List<LoadClient.Result> results, long wallNanos, long uploadBytes) {
+    long[] latencies = results.stream()
+        .filter((result) -> result.synced)
+        .mapToLong((result) -> result.latencyNanos)
+        .sorted()
+        .toArray();
+    long receivedBytes = 0;
+    long receivedFiles = 0;
+    for (LoadClient.Result result : results) {
+      receivedBytes += result.receivedBytes;
+      receivedFiles += result.receivedFiles;
+      if (!result.synced) {
+        System.out.println("Client failed: " + result.error);
+      }
+    }
+    double seconds = wallNanos / 1e9;
+    System.out.println("Clients: " + clients + ", files per client: "
+        + (files + (clients - 1) * uploadsPerClient) + ", uploads per client: "
+        + uploadsPerClient + " with sizes " + uploadSize);
+    System.out.printf("Synced %d of %d clients in %.2f s%n", latencies.length, clients, seconds);
+    if (latencies.length > 0) {
+      System.out.printf("Sync completion: p50 %d ms, p99 %d ms, max %d ms%n",
+          percentile(latencies, 0.5) / 1_000_000, percentile(latencies, 0.99) / 1_000_000,
+          latencies[latencies.length - 1] / 1_000_000);
+    }
+    System.out.printf("Throughput: %.1f MB/s and %.0f files/s received, %.1f MB/s uploaded%n",
+        receivedBytes / seconds / 1e6, receivedFiles / seconds, uploadBytes / seconds / 1e6);
+  }
+
+  /**
+   * @return the value at the rank of the percentile in the sorted values
+   */
+  static long percentile(long[] sortedValues, double percentile) {
+    int rank = (int) Math.ceil(percentile * sortedValues.length);
+    return sortedValues[Math.max(0, rank - 1)];
+  }
+
+  private static void deleteFolder(Path folder) throws IOException {
+    if (!Files.exists(folder)) {
+      return;
+    }
+    try (Stream<Path> paths = Files.walk(folder)) {
+      for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  private static void printHelp() {
+    System.out.println("Simulates many clients against a local sync server and reports their "
+        + "sync-completion latency and the throughput.");
+    System.out.println("Environment Variables:");
+    System.out.println("  LOAD_CLIENTS : Optional. Clients that connect at once. Default: 100");
+    System.out.println(
+        "  LOAD_FILES : Optional. Files in the server folder, which every client receives. Default: 100");
+    System.out.println(
+        "  LOAD_FILE_SIZE : Optional. Sizes of the server files, fixed:BYTES, uniform:MIN:MAX or lognormal:MEDIAN:SIGMA. Default: lognormal:65536:1.5");
+    System.out.println(
+        "  LOAD_UPLOADS_PER_CLIENT : Optional. Files every client uploads, which all other clients receive. Default: 1");
+    System.out.println(
+        "  LOAD_UPLOAD_SIZE : Optional. Sizes of the uploaded files, like LOAD_FILE_SIZE. Default: fixed:65536");
+    System.out.println(
+        "  LOAD_CHUNK_SIZE : Optional. CHUNK_SIZE of the server and the clients. Default: 1000000");
+    System.out.println(
+        "  LOAD_TIMEOUT_SECONDS : Optional. How long the server may take to start and a client may wait for data. Default: 300");
+    System.out.println("  LOAD_SEED : Optional. Seed of the generated sizes and content. Default: 1");
+    System.out.println(
+        "All other environment variables are passed on to the server, e.g. TRANSPORT or ZERO_COPY.");
+  }
+}
@@ -0,0 +1,106 @@
+package org.filesync;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server in a JVM of its own on a free local port, so that the load generator does not share
+ * heap, GC or threads with it. Its environment is inherited, so all server settings like TRANSPORT
+ * can be set as usual.
+ */
+class LocalServer implements AutoCloseable {
+
+  //logged once the scan of the server folder finished and all files are offered
+  static final String READY_LINE = "Reconciled the catalog with the server folder.";
+
+  public final int port;
+  private final Process process;
+  private final CountDownLatch scanned = new CountDownLatch(1);
+
+  LocalServer(Path folder, Path stateFolder, Path log, String apiKey, int chunkSize)
+      throws IOException {
+    this.port = freePort();
+    String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+        Main.class.getName());
+    Map<String, String> environment = builder.environment();
+    environment.put("SERVER_PORT", String.valueOf(port));
+    environment.put("SERVER_FOLDER", folder.toString());
+    environment.put("STATE_FOLDER", stateFolder.toString());
+    environment.put("API_KEY", apiKey);
+    environment.put("CHUNK_SIZE", String.valueOf(chunkSize));
+    builder.redirectErrorStream(true);
+    process = builder.start();
+
+    Thread logWriter = new Thread(() -> writeLog(log));
+    logWriter.setDaemon(true);
+    logWriter.start();
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private void writeLog(Path log) {
+    try (BufferedReader output = new BufferedReader(
+        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter writer = new PrintWriter(Files.newBufferedWriter(log))) {
+      String line;
+      while ((line = output.readLine()) != null) {
+        writer.println(line);
+        if (line.contains(READY_LINE)) {
+          scanned.countDown();
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Blocks until the server offers all files of its folder and accepts connections.
+   */
+  public void awaitReady(long timeoutSeconds) throws IOException, InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+    if (!scanned.await(timeoutSeconds, TimeUnit.SECONDS)) {
+      throw new IOException("Server did not finish scanning its folder in time");
+    }
+    while (true) {
+      if (!process.isAlive()) {
+        throw new IOException("Server exited with " + process.exitValue());
+      }
+      try (Socket probe = new Socket()) {
+        probe.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1000);
+        return;
+      } catch (IOException e) {
+        if (System.nanoTime() > deadline) {
+          throw new IOException("Server does not accept connections on port " + port, e);
+        }
+        Thread.sleep(50);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    process.destroy();
+    if (!process.waitFor(10, TimeUnit.SECONDS)) {
+      process.destroyForcibly();
+    }
+  }
+}
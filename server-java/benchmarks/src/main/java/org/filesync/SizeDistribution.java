@@ -0,0 +1,59 @@
+package org.filesync;
+
+import java.util.Random;
+
+/**
+ * Sizes of the files that the {@link LoadGenerator} creates: "fixed:BYTES", "uniform:MIN:MAX" or
+ * "lognormal:MEDIAN:SIGMA". The last one gives many small and a few very large files, like most
+ * real folders have.
+ */
+class SizeDistribution {
+
+  private final String spec;
+  private final String type;
+  private final double first;
+  private final double second;
+
+  private SizeDistribution(String spec, String type, double first, double second) {
+    this.spec = spec;
+    this.type = type;
+    this.first = first;
+    this.second = second;
+  }
+
+  public static SizeDistribution parse(String spec) {
+    String[] parts = spec.split(":");
+    try {
+      if (parts[0].equals("fixed") && parts.length == 2) {
+        return new SizeDistribution(spec, parts[0], Long.parseLong(parts[1]), 0);
+      }
+      if (parts[0].equals("uniform") && parts.length == 3) {
+        return new SizeDistribution(spec, parts[0], Long.parseLong(parts[1]),
+            Long.parseLong(parts[2]));
+      }
+      if (parts[0].equals("lognormal") && parts.length == 3) {
+        return new SizeDistribution(spec, parts[0], Long.parseLong(parts[1]),
+            Double.parseDouble(parts[2]));
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid size distribution: " + spec, e);
+    }
+    throw new IllegalArgumentException("Invalid size distribution: " + spec);
+  }
+
+  public long sample(Random random) {
+    switch (type) {
+      case "fixed":
+        return (long) first;
+      case "uniform":
+        return (long) first + (long) (random.nextDouble() * (second - first + 1));
+      default:
+        return Math.max(0, Math.round(first * Math.exp(second * random.nextGaussian())));
+    }
+  }
+
+  @Override
+  public String toString() {
+    return spec;
+  }
+}
@@ -0,0 +1,134 @@
+package org.filesync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sends one file to one client over a loopback socket, through the same write path the writing
+ * loop uses. An operation ends once the client read every byte.
+ * <p>
+ * The server is configured through the environment as usual, e.g. ZERO_COPY, CHUNK_SIZE or
+ * CHUNK_CACHE_BYTES, as the forked benchmark JVMs inherit it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+  static final String FILE_NAME = "file.bin";
+
+  @Param({"65536", "1048576", "16777216"})
+  public int fileSize;
+
+  private Path folder;
+  private ServerSocketChannel serverChannel;
+  private SocketChannel clientChannel;
+  private Socket client;
+  private ExecutorService workerPool;
+  private ExecutorService fanOutPool;
+  private SharedSyncState sharedSyncState;
+  private WriteManager writeManager;
+  private final AtomicLong receivedBytes = new AtomicLong();
+  private Thread receiver;
+  private PrintStream stdout;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    stdout = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+    folder = Files.createTempDirectory("filesync-benchmark");
+    byte[] content = new byte[fileSize];
+    new Random(1).nextBytes(content);
+    Files.write(folder.resolve(FILE_NAME), content);
+
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    clientChannel = SocketChannel.open(serverChannel.getLocalAddress());
+    client = serverChannel.accept().socket();
+    receiver = new Thread(this::receive);
+    receiver.setDaemon(true);
+    receiver.start();
+
+    sharedSyncState = new SharedSyncState(new CopyOnWriteArrayList<>(List.of(client)),
+        List.of(FILE_NAME), folder.toString());
+    sharedSyncState.clientIds.put(client, "benchmark");
+    workerPool = Executors.newFixedThreadPool(2);
+    fanOutPool = Executors.newCachedThreadPool();
+    writeManager = new WriteManager(sharedSyncState, new EnvVars(new String[]{"--debug"}),
+        workerPool, fanOutPool, (closedClient) -> {
+          throw new IllegalStateException("Client was closed during the benchmark");
+        });
+  }
+
+  private void receive() {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+    try {
+      while (clientChannel.read(buffer) != -1) {
+        receivedBytes.addAndGet(buffer.position());
+        buffer.clear();
+      }
+    } catch (IOException e) {
+      //closed by the tear down
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    workerPool.shutdownNow();
+    fanOutPool.shutdownNow();
+    clientChannel.close();
+    client.close();
+    serverChannel.close();
+    Files.delete(folder.resolve(FILE_NAME));
+    Files.delete(folder);
+    System.setOut(stdout);
+  }
+
+  @Benchmark
+  public long writeFileToClient() throws InterruptedException {
+    sharedSyncState.writeQueue.put(WriteRequest.requestForOneClient(List.of(FILE_NAME), client));
+    writeManager.executeWriteCheck();
+    while (!writeManager.writeInProgress.isEmpty()) {
+      LockSupport.parkNanos(10_000);
+    }
+    long sentBytes = sharedSyncState.metrics.bytesSent.sum();
+    while (receivedBytes.get() < sentBytes) {
+      LockSupport.parkNanos(10_000);
+    }
+    return sentBytes;
+  }
+}
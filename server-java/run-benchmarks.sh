@@ -0,0 +1 @@
+mvn -q install -DskipTests && mvn -q -f benchmarks/pom.xml clean package && java -jar benchmarks/target/benchmarks.jar -rf json -rff benchmarks/target/jmh-result.json "$@"
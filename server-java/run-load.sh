@@ -0,0 +1 @@
+mvn -q install -DskipTests && mvn -q -f benchmarks/pom.xml clean package && java -cp benchmarks/target/benchmarks.jar org.filesync.LoadGenerator "$@"
@@ -0,0 +1,210 @@
+package org.filesync;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes log lines on a thread of its own, so that logging threads neither format nor wait for the
+ * output. Lines are handed over through a ring buffer, which takes no lock: a logging thread only
+ * claims a slot with a compare-and-set. If the writer cannot keep up and the buffer is full, lines
+ * are dropped and counted instead of slowing down the server.
+ */
+class AsyncAppender implements AutoCloseable {
+
+  static class Entry {
+
+    public final long timeMillis;
+    public final Log.Level level;
+    public final String thread;
+    public final String message;
+    public final Throwable error;
+
+    Entry(long timeMillis, Log.Level level, String thread, String message, Throwable error) {
+      this.timeMillis = timeMillis;
+      this.level = level;
+      this.thread = thread;
+      this.message = message;
+      this.error = error;
+    }
+  }
+
+  //written in batches of about this size
+  static final int BATCH_CHARS = 64 * 1024;
+
+  private final PrintStream out;
+  private final boolean json;
+  private final AtomicReferenceArray<Entry> slots;
+  private final int mask;
+  private final AtomicLong claimed = new AtomicLong();
+  //only written by the writer thread
+  private volatile long consumed = 0;
+  private volatile long written = 0;
+  private volatile boolean writerParked = false;
+  private volatile boolean closed = false;
+  public final LongAdder dropped = new LongAdder();
+  private final Thread writer;
+
+  /**
+   * @param capacity lines that can wait for the writer, rounded up to a power of two
+   */
+  AsyncAppender(PrintStream out, boolean json, int capacity) {
+    this.out = out;
+    this.json = json;
+    int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    this.slots = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.writer = new Thread(this::writeLoop, "log-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  public void append(Entry entry) {
+    long sequence;
+    do {
+      sequence = claimed.get();
+      if (closed || sequence - consumed > mask) {
+        dropped.increment();
+        return;
+      }
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+    slots.set((int) (sequence & mask), entry);
+    if (writerParked) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  /**
+   * Blocks until every line that was appended before was written.
+   */
+  public void flush() {
+    long target = claimed.get();
+    while (written < target && writer.isAlive()) {
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+  }
+
+  private void writeLoop() {
+    StringBuilder batch = new StringBuilder(BATCH_CHARS);
+    long next = 0;
+    long reportedDrops = 0;
+    while (true) {
+      int index = (int) (next & mask);
+      Entry entry = slots.get(index);
+      if (entry != null) {
+        //the slot is free again once consumed moved past it
+        slots.set(index, null);
+        consumed = ++next;
+        format(entry, batch);
+        if (batch.length() < BATCH_CHARS) {
+          continue;
+        }
+      }
+      long drops = dropped.sum();
+      if (drops > reportedDrops) {
+        format(new Entry(System.currentTimeMillis(), Log.Level.WARN, writer.getName(),
+            "Dropped " + (drops - reportedDrops) + " log lines, the log could not keep up.",
+            null), batch);
+        reportedDrops = drops;
+      }
+      if (batch.length() > 0) {
+        out.print(batch);
+        out.flush();
+        batch.setLength(0);
+      }
+      written = next;
+      if (entry != null) {
+        continue;
+      }
+      if (closed && next == claimed.get()) {
+        return;
+      }
+      writerParked = true;
+      if (slots.get(index) == null) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+      }
+      writerParked = false;
+    }
+  }
+
+  private void format(Entry entry, StringBuilder line) {
+    String time = Instant.ofEpochMilli(entry.timeMillis).toString();
+    if (json) {
+      line.append("{\"time\":\"").append(time)
+          .append("\",\"level\":\"").append(entry.level)
+          .append("\",\"thread\":");
+      appendJsonString(line, entry.thread);
+      line.append(",\"message\":");
+      appendJsonString(line, entry.message);
+      if (entry.error != null) {
+        line.append(",\"error\":");
+        appendJsonString(line, stackTrace(entry.error));
+      }
+      line.append("}\n");
+    } else {
+      line.append(time).append(' ').append(entry.level).append(" [").append(entry.thread)
+          .append("] ").append(entry.message).append('\n');
+      if (entry.error != null) {
+        line.append(stackTrace(entry.error));
+      }
+    }
+  }
+
+  private static String stackTrace(Throwable error) {
+    StringWriter stackTrace = new StringWriter();
+    error.printStackTrace(new PrintWriter(stackTrace));
+    return stackTrace.toString();
+  }
+
+  static void appendJsonString(StringBuilder line, String value) {
+    line.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          line.append("\\\"");
+          break;
+        case '\\':
+          line.append("\\\\");
+          break;
+        case '\n':
+          line.append("\\n");
+          break;
+        case '\r':
+          line.append("\\r");
+          break;
+        case '\t':
+          line.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            line.append(String.format("\\u%04x", (int) c));
+          } else {
+            line.append(c);
+          }
+      }
+    }
+    line.append('"');
+  }
+
+  /**
+   * Writes the remaining lines and stops the writer. Lines appended afterwards are dropped.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
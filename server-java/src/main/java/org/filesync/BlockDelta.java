@@ -0,0 +1,278 @@
+package org.filesync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * rsync style delta encoding. The receiver describes its old copy of a file by signatures of its
+ * blocks, a weak rolling checksum and a strong hash per block. The sender slides over its current
+ * copy byte by byte and replaces every region that matches a block of the receiver by a reference
+ * to it, everything else is sent as literal data.
+ * <p>
+ * Only full blocks are matched, a shorter last block of the receiver is always sent as literal.
+ */
+class BlockDelta {
+
+  //only files of at least this size are worth the extra round trip for the signatures
+  public static final long MIN_FILE_SIZE = 1024 * 1024;
+  public static final int MIN_BLOCK_SIZE = 512;
+  public static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+  //first bytes of the SHA-256 of a block
+  public static final int STRONG_HASH_LENGTH = 16;
+  private static final int SIGNATURE_LENGTH = 4 + STRONG_HASH_LENGTH;
+
+  /**
+   * Block signatures of the receiver's copy of one file.
+   */
+  static class Signatures {
+
+    public final String path;
+    public final int blockSize;
+    private final int[] weakHashes;
+    private final byte[] strongHashes;
+    //zero-filled or preallocated files have millions of blocks with the same weak hash
+    private final Map<Integer, List<Integer>> blocksByWeakHash = new HashMap<>();
+
+    Signatures(String path, int blockSize, int[] weakHashes, byte[] strongHashes) {
+      this.path = path;
+      this.blockSize = blockSize;
+      this.weakHashes = weakHashes;
+      this.strongHashes = strongHashes;
+      for (int block = 0; block < weakHashes.length; block++) {
+        blocksByWeakHash.computeIfAbsent(weakHashes[block], (weakHash) -> new ArrayList<>(1))
+            .add(block);
+      }
+    }
+
+    public int blockCount() {
+      return weakHashes.length;
+    }
+
+    /**
+     * Reads the payload of a {@link SyncOpcode#SIGNATURES} frame: the length of the path and the
+     * path, the block size and then per block the weak hash and the strong hash. All numbers are 4
+     * byte little endian.
+     */
+    public static Signatures read(ByteBuffer payload) throws IOException {
+      ByteBuffer littleEndian = payload.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      try {
+        byte[] path = new byte[littleEndian.getInt()];
+        littleEndian.get(path);
+        int blockSize = littleEndian.getInt();
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE
+            || littleEndian.remaining() % SIGNATURE_LENGTH != 0) {
+          throw new IOException("Invalid block signatures, block size: " + blockSize);
+        }
+        int blockCount = littleEndian.remaining() / SIGNATURE_LENGTH;
+        int[] weakHashes = new int[blockCount];
+        byte[] strongHashes = new byte[blockCount * STRONG_HASH_LENGTH];
+        for (int block = 0; block < blockCount; block++) {
+          weakHashes[block] = littleEndian.getInt();
+          littleEndian.get(strongHashes, block * STRONG_HASH_LENGTH, STRONG_HASH_LENGTH);
+        }
+        return new Signatures(new String(path, StandardCharsets.UTF_8),
+            blockSize, weakHashes, strongHashes);
+      } catch (RuntimeException e) {
+        throw new IOException("Invalid block signatures", e);
+      }
+    }
+
+    private int matchingBlock(int weakHash, ByteBuffer block, MessageDigest digest) {
+      List<Integer> candidates = blocksByWeakHash.get(weakHash);
+      if (candidates == null) {
+        return -1;
+      }
+      digest.update(block);
+      byte[] strongHash = digest.digest();
+      for (int candidate : candidates) {
+        if (Arrays.equals(strongHash, 0, STRONG_HASH_LENGTH, strongHashes,
+            candidate * STRONG_HASH_LENGTH, (candidate + 1) * STRONG_HASH_LENGTH)) {
+          return candidate;
+        }
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Receives the delta in file order.
+   */
+  interface DeltaSink {
+
+    /**
+     * @param data the literal bytes between position and limit, only valid until the call returns
+     */
+    void literal(ByteBuffer data) throws IOException;
+
+    void copy(int firstBlock, int blockCount) throws IOException;
+  }
+
+  /**
+   * Rolling checksum of rsync: the sum of the bytes and the sum of those sums, each mod 2^16.
+   */
+  static int weakHash(byte[] data, int offset, int length) {
+    int a = 0;
+    int b = 0;
+    for (int i = 0; i < length; i++) {
+      a += data[offset + i] & 0xFF;
+      b += (length - i) * (data[offset + i] & 0xFF);
+    }
+    return (a & 0xFFFF) | ((b & 0xFFFF) << 16);
+  }
+
+  private static int weakHash(ByteBuffer data, int offset, int length) {
+    int a = 0;
+    int b = 0;
+    for (int i = 0; i < length; i++) {
+      a += data.get(offset + i) & 0xFF;
+      b += (length - i) * (data.get(offset + i) & 0xFF);
+    }
+    return (a & 0xFFFF) | ((b & 0xFFFF) << 16);
+  }
+
+  private static int roll(int weakHash, byte removed, byte added, int length) {
+    int a = weakHash & 0xFFFF;
+    int b = weakHash >>> 16;
+    a = (a - (removed & 0xFF) + (added & 0xFF)) & 0xFFFF;
+    b = (b - length * (removed & 0xFF) + a) & 0xFFFF;
+    return a | (b << 16);
+  }
+
+  /**
+   * Encodes the file as delta against the signatures.
+   * <p>
+   * The window that slides over the file holds at least one literal piece and a block. It is
+   * taken from the buffer pool once it fits into the in-flight budget, like a large frame payload.
+   *
+   * @param maxLiteralLength literal data is handed to the sink in pieces of at most this size
+   */
+  public static void encode(FileChannel file, Signatures signatures, int maxLiteralLength,
+      BufferPool bufferPool, ByteBudget budget, DeltaSink sink) throws IOException {
+    int windowSize = Math.max(4 * signatures.blockSize, maxLiteralLength + signatures.blockSize);
+    if (budget.isLimited() && windowSize > budget.maxBytes()) {
+      throw new IOException("Delta window of " + windowSize
+          + " bytes is larger than the in-flight budget");
+    }
+    budget.acquire(windowSize);
+    ByteBuffer window = null;
+    try {
+      window = bufferPool.acquire(windowSize);
+      encode(file, signatures, maxLiteralLength, window, sink);
+    } finally {
+      if (window != null) {
+        bufferPool.release(window);
+      }
+      budget.release(windowSize);
+    }
+  }
+
+  private static void encode(FileChannel file, Signatures signatures, int maxLiteralLength,
+      ByteBuffer window, DeltaSink sink) throws IOException {
+    int blockSize = signatures.blockSize;
+    int windowSize = window.limit();
+    MessageDigest digest = ContentIndex.newDigest();
+    //views of the window for the sink and the strong hash, which leave its position alone
+    ByteBuffer literal = window.duplicate();
+    ByteBuffer block = window.duplicate();
+    int start = 0;
+    int end = 0;
+    int literalStart = 0;
+    int weakHash = 0;
+    boolean weakHashValid = false;
+    boolean endOfFile = false;
+    int copyStart = -1;
+    int copyCount = 0;
+
+    while (true) {
+      if (end - start < blockSize) {
+        if (endOfFile) {
+          break;
+        }
+        //moves the unmatched rest to the front and reads the next part of the file
+        if (start > literalStart) {
+          copyStart = flushCopy(sink, copyStart, copyCount);
+          copyCount = 0;
+          sink.literal(view(literal, literalStart, start));
+        }
+        window.limit(end).position(start);
+        window.compact();
+        end -= start;
+        start = 0;
+        literalStart = 0;
+        window.limit(windowSize);
+        while (window.hasRemaining()) {
+          if (file.read(window) == -1) {
+            endOfFile = true;
+            break;
+          }
+        }
+        end = window.position();
+        weakHashValid = false;
+        continue;
+      }
+      if (!weakHashValid) {
+        weakHash = weakHash(window, start, blockSize);
+        weakHashValid = true;
+      }
+      int matchedBlock = signatures.blockCount() == 0 ? -1
+          : signatures.matchingBlock(weakHash, view(block, start, start + blockSize), digest);
+      if (matchedBlock >= 0) {
+        if (start > literalStart) {
+          copyStart = flushCopy(sink, copyStart, copyCount);
+          copyCount = 0;
+          sink.literal(view(literal, literalStart, start));
+        }
+        if (copyCount > 0 && copyStart + copyCount == matchedBlock) {
+          copyCount++;
+        } else {
+          flushCopy(sink, copyStart, copyCount);
+          copyStart = matchedBlock;
+          copyCount = 1;
+        }
+        start += blockSize;
+        literalStart = start;
+        weakHashValid = false;
+        continue;
+      }
+      if (start + blockSize < end) {
+        weakHash = roll(weakHash, window.get(start), window.get(start + blockSize), blockSize);
+      } else {
+        weakHashValid = false;
+      }
+      start++;
+      if (start - literalStart >= maxLiteralLength) {
+        copyStart = flushCopy(sink, copyStart, copyCount);
+        copyCount = 0;
+        sink.literal(view(literal, literalStart, start));
+        literalStart = start;
+      }
+    }
+    if (end > literalStart) {
+      flushCopy(sink, copyStart, copyCount);
+      copyCount = 0;
+      sink.literal(view(literal, literalStart, end));
+    }
+    flushCopy(sink, copyStart, copyCount);
+  }
+
+  private static ByteBuffer view(ByteBuffer view, int from, int to) {
+    view.clear().limit(to).position(from);
+    return view;
+  }
+
+  private static int flushCopy(DeltaSink sink, int copyStart, int copyCount) throws IOException {
+    if (copyCount > 0) {
+      sink.copy(copyStart, copyCount);
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,73 @@
+package org.filesync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Accepts and authenticates clients, whose sockets are then polled by the reading loop of the
+ * {@link ReadManager}.
+ * <p>
+ * The sockets are plain ones on purpose: the reading loop relies on
+ * {@link java.io.InputStream#available()} and reads and writes every client from two threads.
+ * Before Java 13 the streams of a socket that was accepted through a
+ * {@link java.nio.channels.ServerSocketChannel} always report 0 available bytes and let a write
+ * wait for a running read, so such a client would never be read. File parts are therefore copied
+ * instead of sent with zero-copy transfers, which the other transports do.
+ */
+class BlockingTransport implements Closeable {
+
+  private final SharedSyncState sharedSyncState;
+  private final ServerSocket serverSocket;
+  private final byte[] serverApiKeyBytes;
+
+  BlockingTransport(EnvVars vars, SharedSyncState sharedSyncState) throws IOException {
+    this.sharedSyncState = sharedSyncState;
+    this.serverApiKeyBytes = vars.apiKey.getBytes(StandardCharsets.UTF_8);
+    this.serverSocket = new ServerSocket(vars.serverPort);
+  }
+
+  /**
+   * @return the port the server listens on, which was chosen by the system if SERVER_PORT is 0
+   */
+  int localPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Executes the thread blocking loop of accepting clients, until the transport is closed.
+   */
+  public void run() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket clientSocket = serverSocket.accept();
+        String clientId = UUID.randomUUID().toString();
+        Log.info("Client " + clientId + " connected: " + clientSocket.getInetAddress());
+        byte[] clientApiKeyBytes = clientSocket.getInputStream()
+            .readNBytes(serverApiKeyBytes.length);
+        if (!Arrays.equals(serverApiKeyBytes, clientApiKeyBytes)) {
+          clientSocket.close();
+          Log.warn("Client " + clientId + " invalid key detected.");
+        } else {
+          Log.info("Client " + clientId + " key validated.");
+          sharedSyncState.clientIds.put(clientSocket, clientId);
+          sharedSyncState.clients.add(clientSocket);
+        }
+      } catch (IOException e) {
+        if (serverSocket.isClosed()) {
+          return;
+        }
+        Log.error("Could not accept a client", e);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+  }
+}
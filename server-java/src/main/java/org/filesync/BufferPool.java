@@ -0,0 +1,76 @@
+package org.filesync;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reusable direct buffers for frame payloads, so that steady traffic does not allocate a new buffer
+ * per frame.
+ * <p>
+ * Buffers are grouped into power of two size classes. Released buffers are kept until the pool
+ * holds the configured amount of bytes, everything above that is left to the garbage collector.
+ */
+class BufferPool {
+
+  static final BufferPool SHARED = new BufferPool(64 * 1024 * 1024);
+
+  private static final int MIN_SIZE_CLASS = 12; //4 KiB
+  private static final int MAX_SIZE_CLASS = 30; //1 GiB
+
+  private final long maxPooledBytes;
+  private final List<ArrayDeque<ByteBuffer>> sizeClasses = new ArrayList<>();
+  private long pooledBytes = 0;
+
+  BufferPool(long maxPooledBytes) {
+    this.maxPooledBytes = maxPooledBytes;
+    for (int i = 0; i <= MAX_SIZE_CLASS; i++) {
+      sizeClasses.add(new ArrayDeque<>());
+    }
+  }
+
+  /**
+   * @return a cleared buffer whose limit is the requested size
+   */
+  public ByteBuffer acquire(int size) {
+    int sizeClass = sizeClass(size);
+    if (sizeClass > MAX_SIZE_CLASS) {
+      return ByteBuffer.allocateDirect(size);
+    }
+    ByteBuffer buffer;
+    synchronized (this) {
+      buffer = sizeClasses.get(sizeClass).pollFirst();
+      if (buffer != null) {
+        pooledBytes -= buffer.capacity();
+      }
+    }
+    if (buffer == null) {
+      buffer = ByteBuffer.allocateDirect(1 << sizeClass);
+    }
+    buffer.clear().limit(size);
+    return buffer;
+  }
+
+  /**
+   * Gives a buffer from {@link #acquire(int)} back. It must not be used afterwards.
+   */
+  public void release(ByteBuffer buffer) {
+    int capacity = buffer.capacity();
+    //buffers outside of the size classes were not pooled in the first place
+    if (Integer.bitCount(capacity) != 1 || sizeClass(capacity) > MAX_SIZE_CLASS) {
+      return;
+    }
+    synchronized (this) {
+      if (pooledBytes + capacity > maxPooledBytes) {
+        return;
+      }
+      pooledBytes += capacity;
+      sizeClasses.get(sizeClass(capacity)).addFirst(buffer);
+    }
+  }
+
+  private static int sizeClass(int size) {
+    return Math.max(MIN_SIZE_CLASS, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+  }
+}
@@ -0,0 +1,93 @@
+package org.filesync;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limit for the bytes that all transfers together hold in memory at once, so that many concurrent
+ * transfers of large chunks slow each other down instead of exhausting the heap.
+ * <p>
+ * A transfer acquires the bytes before it allocates its buffer and releases them once it is done
+ * with it. Callers that do not fit wait, so incoming frames stay in the socket until there is room
+ * for them, which lets TCP slow down their sender. A request that is larger than the whole budget
+ * is admitted once nothing else is in flight.
+ */
+class ByteBudget {
+
+  private final long maxBytes;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition released = lock.newCondition();
+  //guarded by lock
+  private long usedBytes = 0;
+  //how often a caller had to wait for room
+  public final AtomicLong stalls = new AtomicLong();
+
+  /**
+   * @param maxBytes 0 disables the limit
+   */
+  ByteBudget(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  public boolean isLimited() {
+    return maxBytes > 0;
+  }
+
+  public long maxBytes() {
+    return maxBytes;
+  }
+
+  public long usedBytes() {
+    lock.lock();
+    try {
+      return usedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Blocks until the bytes fit into the budget. They have to be given back with
+   * {@link #release(long)}.
+   */
+  public void acquire(long bytes) throws InterruptedIOException {
+    if (!isLimited()) {
+      return;
+    }
+    lock.lock();
+    try {
+      if (!fits(bytes)) {
+        stalls.incrementAndGet();
+        do {
+          released.await();
+        } while (!fits(bytes));
+      }
+      usedBytes += bytes;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the in-flight budget");
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void release(long bytes) {
+    if (!isLimited()) {
+      return;
+    }
+    lock.lock();
+    try {
+      usedBytes -= bytes;
+      released.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  //called with the lock
+  private boolean fits(long bytes) {
+    return usedBytes == 0 || usedBytes + bytes <= maxBytes;
+  }
+}
@@ -0,0 +1,56 @@
+package org.filesync;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Optional protocol features, which a client requests in its {@link SyncOpcode#INIT_V2} frame.
+ * Only features that both sides support are used for the connection.
+ */
+class Capabilities {
+
+  //clients send size and SHA-256 of their files, so that only differing files are transferred
+  public static final String HASH = "hash";
+
+  //modified files are sent as rsync style delta against the client's copy, see BlockDelta
+  public static final String DELTA = "delta";
+
+  //several files are transferred at once over one connection, see SyncOpcode.STREAM_FILE_PATH
+  public static final String STREAMS = "streams";
+
+  //broken off transfers continue where they stopped, see SyncOpcode.RESUME_OFFSET
+  public static final String RESUME = "resume";
+
+  //file parts are compressed, unless they do not shrink, see SyncOpcode.NEW_FILE_PART_DEFLATED
+  public static final String DEFLATE = "deflate";
+
+  //the server only sends as much as the client granted, see SyncOpcode.CREDIT
+  public static final String CREDIT = "credit";
+
+  public static final Set<String> SUPPORTED = Set.of(HASH, DELTA, STREAMS, RESUME, DEFLATE,
+      CREDIT);
+
+  private static final String PREFIX = "caps";
+
+  /**
+   * @param line first line of an INIT_V2 payload, e.g. "caps hash"
+   * @return the requested capabilities that the server supports
+   */
+  public static Set<String> accept(String line) {
+    Set<String> accepted = new TreeSet<>();
+    String[] words = line.trim().split(" +");
+    if (words.length == 0 || !words[0].equals(PREFIX)) {
+      return accepted;
+    }
+    for (int i = 1; i < words.length; i++) {
+      if (SUPPORTED.contains(words[i])) {
+        accepted.add(words[i]);
+      }
+    }
+    return accepted;
+  }
+
+  public static String toLine(Set<String> capabilities) {
+    return PREFIX + (capabilities.isEmpty() ? "" : " " + String.join(" ", capabilities));
+  }
+}
@@ -0,0 +1,303 @@
+package org.filesync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking client connection that is driven by the {@link SelectorTransport}.
+ * <p>
+ * The selector thread moves incoming bytes into a bounded inbound buffer, from which the worker
+ * threads read through a regular blocking {@link InputStream}, which also works as a channel. That
+ * way the frame handling in {@link ReadManager} stays unchanged, while no thread has to poll the
+ * socket. If the inbound buffer is full, the connection stops selecting for reads until a worker
+ * consumed some bytes.
+ * <p>
+ * Writes go directly to the channel, file contents are sent with zero-copy transfers. If the socket
+ * send buffer is full, the writing thread waits until the selector reports the channel as writable
+ * again.
+ */
+class ChannelConnection {
+
+  static final int INBOUND_BUFFER_SIZE = 256 * 1024;
+  //blocked streams re-check periodically if the channel was closed in the meantime
+  private static final long WAIT_MILLIS = 100;
+
+  public final SocketChannel channel;
+  public final InputStream inputStream = new ChannelInputStream();
+  public final OutputStream outputStream = new ChannelOutputStream();
+
+  private final SelectionKey key;
+  private final byte[] inbound = new byte[INBOUND_BUFFER_SIZE];
+  private int inboundStart = 0;
+  private int inboundCount = 0;
+  private boolean endOfStream = false;
+  private boolean readPaused = false;
+
+  private final Object writeMonitor = new Object();
+  private boolean writable = true;
+
+  ChannelConnection(SocketChannel channel, SelectionKey key) {
+    this.channel = channel;
+    this.key = key;
+  }
+
+  /**
+   * Called by the selector thread when the channel is readable. Reads as much as fits into the
+   * inbound buffer.
+   *
+   * @return the amount of bytes read, -1 if the client closed the connection
+   */
+  public int readFromChannel(ByteBuffer scratch) throws IOException {
+    synchronized (this) {
+      int free = inbound.length - inboundCount;
+      if (free == 0) {
+        pauseReading();
+        return 0;
+      }
+      scratch.clear();
+      scratch.limit(Math.min(free, scratch.capacity()));
+    }
+    //only the selector thread adds bytes, so the free space can only grow while we read
+    int read = channel.read(scratch);
+    synchronized (this) {
+      if (read == -1) {
+        endOfStream = true;
+      } else if (read > 0) {
+        scratch.flip();
+        int tail = (inboundStart + inboundCount) % inbound.length;
+        int firstPart = Math.min(read, inbound.length - tail);
+        scratch.get(inbound, tail, firstPart);
+        scratch.get(inbound, 0, read - firstPart);
+        inboundCount += read;
+        if (inboundCount == inbound.length) {
+          pauseReading();
+        }
+      }
+      notifyAll();
+    }
+    return read;
+  }
+
+  /**
+   * Called by the selector thread when the channel is writable again.
+   */
+  public void onWritable() {
+    key.interestOpsAnd(~SelectionKey.OP_WRITE);
+    synchronized (writeMonitor) {
+      writable = true;
+      writeMonitor.notifyAll();
+    }
+  }
+
+  /**
+   * The client closed its side and all bytes that it sent were consumed.
+   */
+  public synchronized boolean isDrainedAtEndOfStream() {
+    return endOfStream && inboundCount == 0;
+  }
+
+  private void pauseReading() {
+    readPaused = true;
+    key.interestOpsAnd(~SelectionKey.OP_READ);
+  }
+
+  private void resumeReading() {
+    try {
+      key.interestOpsOr(SelectionKey.OP_READ);
+      key.selector().wakeup();
+    } catch (CancelledKeyException e) {
+      //the connection was closed in the meantime, there is nothing to resume
+    }
+  }
+
+  private void awaitWritable() throws IOException {
+    synchronized (writeMonitor) {
+      writable = false;
+      try {
+        key.interestOpsOr(SelectionKey.OP_WRITE);
+      } catch (CancelledKeyException e) {
+        throw new IOException("Connection closed while waiting to write", e);
+      }
+      key.selector().wakeup();
+      while (!writable) {
+        if (!channel.isOpen()) {
+          throw new IOException("Connection closed while waiting to write");
+        }
+        try {
+          writeMonitor.wait(WAIT_MILLIS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+    }
+  }
+
+  private class ChannelInputStream extends InputStream implements ReadableByteChannel {
+
+    //only one worker reads a connection at a time, see ReadManager#readInProgress
+    private final byte[] singleByte = new byte[1];
+
+    @Override
+    public int read() throws IOException {
+      int read = read(singleByte, 0, 1);
+      return read == -1 ? -1 : singleByte[0] & 0xFF;
+    }
+
+    /**
+     * Blocks until the complete range is filled or the client closed the connection, like a
+     * blocking socket with a large enough receive buffer would. This keeps the frame handling
+     * independent of how the bytes were split up on the network.
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      ByteBuffer target = ByteBuffer.wrap(b, off, len);
+      while (target.hasRemaining()) {
+        if (copyInbound(target) == -1) {
+          return target.position() == off ? -1 : target.position() - off;
+        }
+      }
+      return len;
+    }
+
+    /**
+     * Blocks until at least one byte was copied into the buffer, like a blocking channel.
+     */
+    @Override
+    public int read(ByteBuffer target) throws IOException {
+      return target.hasRemaining() ? copyInbound(target) : 0;
+    }
+
+    private int copyInbound(ByteBuffer target) throws IOException {
+      boolean resume;
+      int copied;
+      synchronized (ChannelConnection.this) {
+        while (inboundCount == 0) {
+          if (endOfStream) {
+            return -1;
+          }
+          if (!channel.isOpen()) {
+            throw new IOException("Connection closed while waiting for data");
+          }
+          try {
+            ChannelConnection.this.wait(WAIT_MILLIS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+          }
+        }
+        copied = Math.min(target.remaining(), inboundCount);
+        int firstPart = Math.min(copied, inbound.length - inboundStart);
+        target.put(inbound, inboundStart, firstPart);
+        target.put(inbound, 0, copied - firstPart);
+        inboundStart = (inboundStart + copied) % inbound.length;
+        inboundCount -= copied;
+        resume = readPaused;
+        readPaused = false;
+      }
+      if (resume) {
+        resumeReading();
+      }
+      return copied;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return channel.isOpen();
+    }
+
+    @Override
+    public int available() {
+      synchronized (ChannelConnection.this) {
+        return inboundCount;
+      }
+    }
+  }
+
+  private class ChannelOutputStream extends OutputStream implements FileTransferTarget,
+      GatheringByteChannel {
+
+    //writes are serialized by the CoalescingOutputStream in front of the connection
+    private final ByteBuffer singleByte = ByteBuffer.allocate(1);
+
+    @Override
+    public void write(int b) throws IOException {
+      singleByte.clear();
+      singleByte.put((byte) b).flip();
+      write(singleByte);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      write(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Blocks until the complete buffer was written, like a blocking channel.
+     */
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+      int length = source.remaining();
+      while (source.hasRemaining()) {
+        if (channel.write(source) == 0) {
+          awaitWritable();
+        }
+      }
+      return length;
+    }
+
+    /**
+     * Blocks until all buffers were written, like a blocking channel.
+     */
+    @Override
+    public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+      long written = 0;
+      int last = offset + length - 1;
+      while (offset <= last) {
+        long writtenNow = channel.write(sources, offset, last - offset + 1);
+        if (writtenNow == 0 && sources[offset].hasRemaining()) {
+          awaitWritable();
+        }
+        written += writtenNow;
+        while (offset <= last && !sources[offset].hasRemaining()) {
+          offset++;
+        }
+      }
+      return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources) throws IOException {
+      return write(sources, 0, sources.length);
+    }
+
+    @Override
+    public boolean isOpen() {
+      return channel.isOpen();
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+      long transferred = 0;
+      while (transferred < count) {
+        long sent = file.transferTo(position + transferred, count - transferred, channel);
+        if (sent == 0) {
+          if (position + transferred >= file.size()) {
+            throw new IOException("File got shorter while it was being sent");
+          }
+          awaitWritable();
+        }
+        transferred += sent;
+      }
+    }
+  }
+}
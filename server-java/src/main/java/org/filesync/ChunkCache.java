@@ -0,0 +1,268 @@
+package org.filesync;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recently sent chunks of files, so that clients which request the same files around the same time
+ * cost one disk read per chunk instead of one per client.
+ * <p>
+ * Chunks are keyed by the version of their file, so a replaced or modified file never gets an old
+ * chunk. Concurrent misses of the same chunk wait for the first reader instead of reading it as
+ * well. The cache is bounded by the bytes of its chunks, including their compressed form, and
+ * evicts the least recently used ones. Chunks can be kept off-heap, so a large cache does not
+ * burden the garbage collector.
+ */
+class ChunkCache {
+
+  /**
+   * Identifies a file's content by path, size, modification time and file key, which changes when
+   * a file is replaced by a rename.
+   */
+  static class FileVersion {
+
+    public final String path;
+    private final long size;
+    private final long lastModifiedMillis;
+    private final Object fileKey;
+
+    private FileVersion(String path, BasicFileAttributes attributes) {
+      this.path = path;
+      this.size = attributes.size();
+      this.lastModifiedMillis = attributes.lastModifiedTime().toMillis();
+      this.fileKey = attributes.fileKey();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof FileVersion)) {
+        return false;
+      }
+      FileVersion other = (FileVersion) o;
+      return path.equals(other.path) && size == other.size
+          && lastModifiedMillis == other.lastModifiedMillis
+          && Objects.equals(fileKey, other.fileKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(path, size, lastModifiedMillis, fileKey);
+    }
+  }
+
+  private static class Key {
+
+    private final FileVersion version;
+    private final long position;
+
+    Key(FileVersion version, long position) {
+      this.version = version;
+      this.position = position;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && ((Key) o).version.equals(version)
+          && ((Key) o).position == position;
+    }
+
+    @Override
+    public int hashCode() {
+      return version.hashCode() * 31 + Long.hashCode(position);
+    }
+  }
+
+  /**
+   * A chunk of a file, shared read-only by everyone who sends it.
+   */
+  class Chunk {
+
+    private final ByteBuffer data;
+    //guarded by the cache, 0 once the chunk was evicted or if it was never cached
+    private long weight = 0;
+    //guarded by this
+    private boolean compressed = false;
+    private byte[] deflated;
+
+    Chunk(ByteBuffer data) {
+      this.data = data.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the content, positioned at its start
+     */
+    public ByteBuffer data() {
+      return data.duplicate();
+    }
+
+    public int length() {
+      return data.remaining();
+    }
+
+    /**
+     * @return the payload of a NEW_FILE_PART_DEFLATED frame, computed once for all clients, or
+     * null if the chunk is sent as is
+     */
+    public byte[] deflated() {
+      synchronized (this) {
+        if (compressed) {
+          return deflated;
+        }
+        deflated = ChunkCompression.compress(data());
+        compressed = true;
+      }
+      if (deflated != null) {
+        grow(this, deflated.length);
+      }
+      return deflated;
+    }
+  }
+
+  private final long maxBytes;
+  private final boolean offHeap;
+  //access ordered, so the eldest entry is the least recently used one
+  private final LinkedHashMap<Key, Chunk> chunks = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<Key, CompletableFuture<Chunk>> loading = new ConcurrentHashMap<>();
+  //guarded by chunks
+  private long cachedBytes = 0;
+  public final AtomicLong hits = new AtomicLong();
+  public final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maxBytes 0 disables the cache
+   * @param offHeap  whether chunks are kept in direct buffers
+   */
+  ChunkCache(long maxBytes, boolean offHeap) {
+    this.maxBytes = maxBytes;
+    this.offHeap = offHeap;
+  }
+
+  public boolean isEnabled() {
+    return maxBytes > 0;
+  }
+
+  /**
+   * Reads the version of the file. Has to be called before the file is opened, so that a file
+   * which is replaced in between is never cached under the new version.
+   */
+  public static FileVersion version(String path, Path file) throws IOException {
+    return new FileVersion(path, Files.readAttributes(file, BasicFileAttributes.class));
+  }
+
+  /**
+   * @return the chunk of the file that starts at the position, with at most chunkSize bytes. It is
+   * shorter than chunkSize only at the end of the file.
+   */
+  public Chunk get(FileVersion version, FileChannel file, long position, int chunkSize)
+      throws IOException {
+    if (!isEnabled() || file.size() != version.size) {
+      //the file changed since its version was read, so the chunk might belong to another one
+      return new Chunk(read(file, position, chunkSize, false));
+    }
+    Key key = new Key(version, position);
+    synchronized (chunks) {
+      Chunk chunk = chunks.get(key);
+      if (chunk != null) {
+        hits.incrementAndGet();
+        return chunk;
+      }
+    }
+    CompletableFuture<Chunk> load = new CompletableFuture<>();
+    CompletableFuture<Chunk> running = loading.putIfAbsent(key, load);
+    if (running != null) {
+      //someone else reads it right now
+      hits.incrementAndGet();
+      return await(running);
+    }
+    misses.incrementAndGet();
+    try {
+      Chunk chunk = new Chunk(read(file, position, chunkSize, offHeap));
+      put(key, chunk);
+      load.complete(chunk);
+      return chunk;
+    } catch (IOException | RuntimeException e) {
+      load.completeExceptionally(e);
+      throw e;
+    } finally {
+      loading.remove(key);
+    }
+  }
+
+  private static ByteBuffer read(FileChannel file, long position, int chunkSize, boolean direct)
+      throws IOException {
+    long remaining = Math.max(0, file.size() - position);
+    int length = (int) Math.min(chunkSize, remaining);
+    ByteBuffer data = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+    while (data.hasRemaining()) {
+      if (file.read(data, position + data.position()) == -1) {
+        break;
+      }
+    }
+    data.flip();
+    return data;
+  }
+
+  private void put(Key key, Chunk chunk) {
+    if (chunk.length() > maxBytes) {
+      return;
+    }
+    synchronized (chunks) {
+      chunk.weight = chunk.length();
+      cachedBytes += chunk.weight;
+      Chunk replaced = chunks.put(key, chunk);
+      if (replaced != null) {
+        cachedBytes -= replaced.weight;
+        replaced.weight = 0;
+      }
+      evict();
+    }
+  }
+
+  private void grow(Chunk chunk, int bytes) {
+    synchronized (chunks) {
+      if (chunk.weight > 0) {
+        chunk.weight += bytes;
+        cachedBytes += bytes;
+        evict();
+      }
+    }
+  }
+
+  //called with the lock on chunks
+  private void evict() {
+    Iterator<Chunk> iterator = chunks.values().iterator();
+    while (cachedBytes > maxBytes && iterator.hasNext()) {
+      Chunk eldest = iterator.next();
+      iterator.remove();
+      cachedBytes -= eldest.weight;
+      eldest.weight = 0;
+    }
+  }
+
+  private static Chunk await(CompletableFuture<Chunk> load) throws IOException {
+    try {
+      return load.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a chunk");
+    }
+  }
+}
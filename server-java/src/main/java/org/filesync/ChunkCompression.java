@@ -0,0 +1,143 @@
+package org.filesync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of file parts for connections that negotiated {@link Capabilities#DEFLATE},
+ * see {@link SyncOpcode#NEW_FILE_PART_DEFLATED}.
+ * <p>
+ * Every part is compressed on its own. A sample from the start of the part is compressed first and
+ * if it does not shrink enough, the part is sent as is. Archives, images and videos are compressed
+ * already, so they cost one small sample per part instead of a useless pass over all of it.
+ */
+class ChunkCompression {
+
+  static final int SAMPLE_SIZE = 16 * 1024;
+  //the sample has to shrink at least to this share of its size
+  static final double MAX_SAMPLE_RATIO = 0.9;
+  //smaller parts are not worth the frame header
+  static final int MIN_PART_SIZE = 128;
+
+  //fastest level, as the parts are compressed while the clients wait for them
+  private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(
+      () -> new Deflater(Deflater.BEST_SPEED, true));
+  private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(
+      () -> new Inflater(true));
+
+  /**
+   * @param part is not consumed
+   * @return the payload of a {@link SyncOpcode#NEW_FILE_PART_DEFLATED} frame, or null if the part
+   * should be sent as is
+   */
+  public static byte[] compress(ByteBuffer part) {
+    int length = part.remaining();
+    if (length < MIN_PART_SIZE) {
+      return null;
+    }
+    if (length > SAMPLE_SIZE) {
+      ByteBuffer sample = part.duplicate();
+      sample.limit(sample.position() + SAMPLE_SIZE);
+      if (!sampleShrinks(sample)) {
+        return null;
+      }
+    }
+    return compressWhole(part);
+  }
+
+  /**
+   * @param sample is compressed as a whole and not consumed
+   * @return whether the part that the sample was taken from is worth compressing
+   */
+  public static boolean sampleShrinks(ByteBuffer sample) {
+    int length = sample.remaining();
+    byte[] sampleOutput = new byte[length];
+    int sampleLength = deflate(DEFLATERS.get(), sample.duplicate(), sampleOutput, 0);
+    return sampleLength >= 0 && sampleLength <= length * MAX_SAMPLE_RATIO;
+  }
+
+  /**
+   * Compresses the whole part without taking a sample first.
+   *
+   * @param part is not consumed
+   * @return the payload of a {@link SyncOpcode#NEW_FILE_PART_DEFLATED} frame, or null if the part
+   * does not shrink
+   */
+  public static byte[] compressWhole(ByteBuffer part) {
+    int length = part.remaining();
+    //the uncompressed length comes first, so that the receiver can check the result
+    byte[] output = new byte[4 + length];
+    ByteBuffer.wrap(output).order(ByteOrder.LITTLE_ENDIAN).putInt(length);
+    int compressedLength = deflate(DEFLATERS.get(), part.duplicate(), output, 4);
+    if (compressedLength < 0) {
+      return null;
+    }
+    return Arrays.copyOf(output, 4 + compressedLength);
+  }
+
+  /**
+   * @return the compressed length, -1 if it does not fit into the output
+   */
+  private static int deflate(Deflater deflater, ByteBuffer input, byte[] output, int offset) {
+    deflater.reset();
+    deflater.setInput(input);
+    deflater.finish();
+    int length = 0;
+    while (!deflater.finished()) {
+      if (offset + length == output.length) {
+        return -1;
+      }
+      length += deflater.deflate(output, offset + length, output.length - offset - length);
+    }
+    return length;
+  }
+
+  /**
+   * Writes the decompressed part of a {@link SyncOpcode#NEW_FILE_PART_DEFLATED} payload to the
+   * target.
+   */
+  public static void decompress(ByteBuffer payload, WritableByteChannel target)
+      throws IOException {
+    ByteBuffer input = payload.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    if (input.remaining() < 4) {
+      throw new IOException("Compressed part without length");
+    }
+    int length = input.getInt();
+    Inflater inflater = INFLATERS.get();
+    inflater.reset();
+    inflater.setInput(input);
+    ByteBuffer output = BufferPool.SHARED.acquire(FrameReader.SLICE_SIZE);
+    try {
+      long written = 0;
+      while (!inflater.finished()) {
+        output.clear();
+        if (inflater.inflate(output) == 0 && (inflater.needsInput()
+            || inflater.needsDictionary())) {
+          throw new IOException("Compressed part ended unexpectedly");
+        }
+        output.flip();
+        written += output.remaining();
+        if (written > length) {
+          break;
+        }
+        while (output.hasRemaining()) {
+          target.write(output);
+        }
+      }
+      if (written != length) {
+        throw new IOException("Compressed part has " + written + " instead of " + length
+            + " bytes");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid compressed part", e);
+    } finally {
+      BufferPool.SHARED.release(output);
+    }
+  }
+}
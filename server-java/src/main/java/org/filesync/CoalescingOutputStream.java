@@ -0,0 +1,295 @@
+package org.filesync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client output that collects consecutive small frames and sends them in one write, instead of one
+ * TCP segment per frame. Small file regions are copied into the same buffer, so a burst of tiny
+ * files goes out as a few large writes.
+ * <p>
+ * The buffer is sent when it is full, when the oldest buffered byte waited longer than the
+ * configured delay, and on {@link #flush()}, which writers call at the end of every request. The
+ * delay is enforced by a timer as well, so a lone small frame does not wait for the next write.
+ * Writes that are larger than the buffer go out directly, large file regions with zero-copy
+ * transfers if the client supports them.
+ * <p>
+ * Nothing is handed to the stream before the client granted the {@link SendCredit} for it. The
+ * credit is taken before the stream is locked, so a writer that waits for credit never blocks
+ * others, like the close frame.
+ * <p>
+ * Writes are guarded by a lock instead of a monitor, because a virtual thread that blocks on the
+ * socket inside a monitor keeps its carrier thread blocked as well.
+ */
+class CoalescingOutputStream extends OutputStream implements FileTransferTarget {
+
+  //large writes of buffers outside the heap are copied through the heap in pieces of this size
+  static final int SCRATCH_SIZE = 64 * 1024;
+
+  private static final ThreadFactory DAEMON_THREADS = (task) -> {
+    Thread thread = new Thread(task, "coalesced-flush");
+    thread.setDaemon(true);
+    return thread;
+  };
+  //only waits, the flushes themselves run on FLUSHERS, as they might block on a slow client
+  private static final ScheduledExecutorService FLUSH_TIMER =
+      Executors.newSingleThreadScheduledExecutor(DAEMON_THREADS);
+  private static final ExecutorService FLUSHERS = Executors.newCachedThreadPool(DAEMON_THREADS);
+
+  private final OutputStream out;
+  private final FileTransferTarget transferTarget;
+  private final SendCredit credit;
+  private final Metrics.Client metrics;
+  private final byte[] buffer;
+  private final ByteBuffer bufferView;
+  private final long maxDelayNanos;
+  private final ReentrantLock lock = new ReentrantLock();
+  //guarded by lock
+  private int count = 0;
+  private long firstBufferedNanos;
+  private boolean flushScheduled = false;
+  //only needed for clients without zero-copy transfers, so it is allocated on first use
+  private byte[] scratch;
+
+  /**
+   * @param transferTarget zero-copy target of the same client, null if the client has none
+   */
+  CoalescingOutputStream(OutputStream out, FileTransferTarget transferTarget, SendCredit credit,
+      Metrics.Client metrics, int bufferSize, long maxDelayMillis) {
+    this.out = out;
+    this.transferTarget = transferTarget;
+    this.credit = credit;
+    this.metrics = metrics;
+    this.buffer = new byte[bufferSize];
+    this.bufferView = ByteBuffer.wrap(buffer);
+    this.maxDelayNanos = maxDelayMillis * 1_000_000;
+  }
+
+  public boolean supportsTransfer() {
+    return transferTarget != null;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    credit.take(1);
+    lock.lock();
+    try {
+      if (count == buffer.length) {
+        flushBuffer();
+      }
+      if (count == buffer.length) {
+        sent(1);
+        out.write(b);
+        return;
+      }
+      markBuffered();
+      buffer[count++] = (byte) b;
+      flushIfDelayed();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    credit.take(len);
+    lock.lock();
+    try {
+      if (len >= buffer.length) {
+        flushBuffer();
+        sent(len);
+        out.write(b, off, len);
+        return;
+      }
+      if (len > buffer.length - count) {
+        flushBuffer();
+      }
+      markBuffered();
+      System.arraycopy(b, off, buffer, count, len);
+      count += len;
+      flushIfDelayed();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void transferFrom(FileChannel file, long position, long length) throws IOException {
+    credit.take(length);
+    lock.lock();
+    try {
+      if (length > buffer.length - count) {
+        flushBuffer();
+      }
+      if (length > buffer.length - count) {
+        if (transferTarget == null) {
+          throw new IOException("Client does not support zero-copy transfers");
+        }
+        sent(length);
+        transferTarget.transferFrom(file, position, length);
+        return;
+      }
+      markBuffered();
+      bufferView.clear().position(count).limit(count + (int) length);
+      while (bufferView.hasRemaining()) {
+        if (file.read(bufferView, position + bufferView.position() - count) == -1) {
+          throw new IOException("File got shorter while it was being sent");
+        }
+      }
+      count += (int) length;
+      flushIfDelayed();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes a buffer outside the heap without copying it first, if it is too large to be coalesced
+   * and the client supports zero-copy transfers.
+   */
+  @Override
+  public int write(ByteBuffer source) throws IOException {
+    int length = source.remaining();
+    credit.take(length);
+    lock.lock();
+    try {
+      if (length > buffer.length - count) {
+        flushBuffer();
+      }
+      if (length > buffer.length - count) {
+        sent(length);
+        if (source.hasArray()) {
+          out.write(source.array(), source.arrayOffset() + source.position(), length);
+          source.position(source.limit());
+        } else if (transferTarget != null) {
+          transferTarget.write(source);
+        } else {
+          if (scratch == null) {
+            scratch = new byte[SCRATCH_SIZE];
+          }
+          while (source.hasRemaining()) {
+            int part = Math.min(scratch.length, source.remaining());
+            source.get(scratch, 0, part);
+            out.write(scratch, 0, part);
+          }
+        }
+        return length;
+      }
+      markBuffered();
+      bufferView.clear().position(count);
+      bufferView.put(source);
+      count += length;
+      flushIfDelayed();
+      return length;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    lock.lock();
+    try {
+      flushBuffer();
+      out.flush();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes the frame and flushes, unless another writer holds the stream for longer than the
+   * timeout, for example because it is stuck on a socket that does not drain anymore.
+   *
+   * @return false, if the frame was not written
+   */
+  public boolean tryWriteAndFlush(SyncFrame frame, long timeoutMillis) throws IOException {
+    try {
+      if (!lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        return false;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    try {
+      SyncFrame.writeFrame(frame, this);
+      flush();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Counts a frame that is written to this stream, see {@link SyncFrame#writeHeader}.
+   */
+  public void frameWritten() {
+    metrics.frameSent();
+  }
+
+  private void sent(long bytes) {
+    metrics.bytesSent(bytes);
+  }
+
+  private void markBuffered() {
+    if (count == 0) {
+      firstBufferedNanos = System.nanoTime();
+      if (!flushScheduled && maxDelayNanos > 0) {
+        flushScheduled = true;
+        FLUSH_TIMER.schedule(() -> FLUSHERS.execute(this::flushDelayed), maxDelayNanos,
+            TimeUnit.NANOSECONDS);
+      }
+    }
+  }
+
+  /**
+   * Runs once the delay of the first buffered byte passed, unless a write sent it meanwhile.
+   */
+  private void flushDelayed() {
+    lock.lock();
+    try {
+      flushScheduled = false;
+      if (count == 0) {
+        return;
+      }
+      long waitedNanos = System.nanoTime() - firstBufferedNanos;
+      if (waitedNanos < maxDelayNanos) {
+        //the buffer was sent and filled again since the flush was scheduled
+        flushScheduled = true;
+        FLUSH_TIMER.schedule(() -> FLUSHERS.execute(this::flushDelayed),
+            maxDelayNanos - waitedNanos, TimeUnit.NANOSECONDS);
+        return;
+      }
+      flushBuffer();
+      out.flush();
+    } catch (IOException e) {
+      //the writer of the client fails on its next write as well and closes it
+      Log.debug(() -> "Could not send the coalesced frames: " + e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void flushIfDelayed() throws IOException {
+    if (count > 0 && System.nanoTime() - firstBufferedNanos >= maxDelayNanos) {
+      flushBuffer();
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (count > 0) {
+      sent(count);
+      out.write(buffer, 0, count);
+      count = 0;
+    }
+  }
+}
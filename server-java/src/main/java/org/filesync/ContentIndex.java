@@ -0,0 +1,252 @@
+package org.filesync;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Size, modification time and SHA-256 of the files in the server folder, so that clients can be
+ * compared by content instead of by name.
+ * <p>
+ * Hashes are computed lazily and only trusted as long as size and modification time of the file
+ * did not change. The index is kept in a tab separated file in the state folder, so a restarted
+ * server does not have to hash its files again.
+ */
+class ContentIndex {
+
+  static final String INDEX_FILE_NAME = "content-index.tsv";
+
+  static class Entry {
+
+    public final long size;
+    public final long lastModifiedMillis;
+    public final String sha256;
+
+    Entry(long size, long lastModifiedMillis, String sha256) {
+      this.size = size;
+      this.lastModifiedMillis = lastModifiedMillis;
+      this.sha256 = sha256;
+    }
+  }
+
+  private final String pathToFolder;
+  private final Path indexFile;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private volatile boolean dirty = false;
+
+  /**
+   * @param stateFolder where the index is persisted, null for an index that only lives in memory
+   */
+  ContentIndex(String pathToFolder, Path stateFolder) {
+    this.pathToFolder = pathToFolder;
+    this.indexFile = stateFolder == null ? null : stateFolder.resolve(INDEX_FILE_NAME);
+  }
+
+  /**
+   * Loads the persisted entries. Entries of files that changed in the meantime are replaced on
+   * their next use.
+   */
+  public void load() throws IOException {
+    if (indexFile == null || !Files.exists(indexFile)) {
+      return;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        //the path comes first, so it is split off last in case it contains tabs itself
+        int hashStart = line.lastIndexOf('\t');
+        int modifiedStart = line.lastIndexOf('\t', hashStart - 1);
+        int sizeStart = line.lastIndexOf('\t', modifiedStart - 1);
+        if (sizeStart <= 0) {
+          continue;
+        }
+        entries.put(line.substring(0, sizeStart), new Entry(
+            Long.parseLong(line.substring(sizeStart + 1, modifiedStart)),
+            Long.parseLong(line.substring(modifiedStart + 1, hashStart)),
+            line.substring(hashStart + 1)));
+      }
+    }
+  }
+
+  /**
+   * Writes the index, if it changed since the last save. The previous index is replaced
+   * atomically, so a crash never leaves a half written index behind.
+   */
+  public synchronized void saveIfChanged() throws IOException {
+    if (indexFile == null || !dirty) {
+      return;
+    }
+    dirty = false;
+    Path tempFile = indexFile.resolveSibling(INDEX_FILE_NAME + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        writer.write(entry.getKey() + "\t" + entry.getValue().size + "\t"
+            + entry.getValue().lastModifiedMillis + "\t" + entry.getValue().sha256 + "\n");
+      }
+    }
+    Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return the current size of the file, -1 if it does not exist
+   */
+  public long size(String path) {
+    try {
+      return Files.size(Paths.get(pathToFolder, path));
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return the hash of the current content of the file, computed only if the indexed one is
+   * outdated
+   */
+  public String sha256(String path) throws IOException {
+    Path file = Paths.get(pathToFolder, path);
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    Entry entry = entries.get(path);
+    if (entry != null && entry.size == attributes.size()
+        && entry.lastModifiedMillis == attributes.lastModifiedTime().toMillis()) {
+      return entry.sha256;
+    }
+    String sha256 = hashFile(file);
+    put(path, new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), sha256));
+    return sha256;
+  }
+
+  /**
+   * @return true, if the file has an entry that does not match the given attributes anymore
+   */
+  public boolean isOutdated(String path, BasicFileAttributes attributes) {
+    Entry entry = entries.get(path);
+    return entry != null && (entry.size != attributes.size()
+        || entry.lastModifiedMillis != attributes.lastModifiedTime().toMillis());
+  }
+
+  /**
+   * Checks a file that was changed on disk. Files the server wrote itself still match their entry
+   * and files that were only touched keep their hash, both do not count as changed.
+   *
+   * @return true, if the content differs from the indexed one or the file was not indexed yet
+   */
+  public boolean contentChanged(String path) throws IOException {
+    Entry before = entries.get(path);
+    //hashed in any case, so that the next check has an entry to compare with
+    String sha256 = sha256(path);
+    return before == null || !before.sha256.equals(sha256);
+  }
+
+  /**
+   * Records the hash of a file that was just written, which was computed while receiving it.
+   */
+  public void recordWrittenFile(String path, MessageDigest digest) {
+    String sha256 = toHex(digest.digest());
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(Paths.get(pathToFolder, path),
+          BasicFileAttributes.class);
+      put(path, new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), sha256));
+    } catch (NoSuchFileException e) {
+      //the file is gone already, it will be hashed again if it comes back
+    } catch (IOException e) {
+      Log.error("Could not index " + path, e);
+    }
+  }
+
+  public void remove(String path) {
+    if (entries.remove(path) != null) {
+      dirty = true;
+    }
+  }
+
+  private void put(String path, Entry entry) {
+    entries.put(path, entry);
+    dirty = true;
+  }
+
+  private static String hashFile(Path file) throws IOException {
+    MessageDigest digest = newDigest();
+    digestPrefix(file, Long.MAX_VALUE, digest);
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Adds the first bytes of the file to the digest, all of them if the file is shorter.
+   */
+  static void digestPrefix(Path file, long length, MessageDigest digest) throws IOException {
+    ByteBuffer buffer = BufferPool.SHARED.acquire(FrameReader.SLICE_SIZE);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long remaining = length;
+      while (remaining > 0) {
+        buffer.clear().limit((int) Math.min(FrameReader.SLICE_SIZE, remaining));
+        if (channel.read(buffer) == -1) {
+          break;
+        }
+        buffer.flip();
+        remaining -= buffer.remaining();
+        digest.update(buffer);
+      }
+    } finally {
+      BufferPool.SHARED.release(buffer);
+    }
+  }
+
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      //every Java platform has to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Wraps the target, so that everything written to it also goes into the digest.
+   */
+  public static WritableByteChannel digesting(WritableByteChannel target, MessageDigest digest) {
+    return new WritableByteChannel() {
+      @Override
+      public int write(ByteBuffer source) throws IOException {
+        ByteBuffer written = source.duplicate();
+        int length = target.write(source);
+        written.limit(written.position() + length);
+        digest.update(written);
+        return length;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return target.isOpen();
+      }
+
+      @Override
+      public void close() throws IOException {
+        target.close();
+      }
+    };
+  }
+
+  static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+}
@@ -1,19 +1,87 @@
 package org.filesync;
 
+import java.util.function.Function;
+
 class EnvVars {
 
+  public static final String TRANSPORT_SELECTOR = "selector";
+  public static final String TRANSPORT_BLOCKING = "blocking";
+  public static final String TRANSPORT_VIRTUAL = "virtual";
+
   public final Integer serverPort;
   public final String pathToFolder;
   public final String apiKey;
   public final int chunkSize;
   public final boolean debugMode;
+  public final String transport;
+  public final boolean zeroCopy;
+  public final FanOut.LaggardPolicy laggardPolicy;
+  public final int fanOutQueueChunks;
+  public final int writeConcurrency;
+  public final int writeBatchFiles;
+  public final int writeCoalesceBytes;
+  public final long writeCoalesceMillis;
+  public final String stateFolder;
+  public final int scanThreads;
+  public final boolean watch;
+  public final long watchDebounceMillis;
+  public final long rescanSeconds;
+  public final int streamsPerClient;
+  public final long fsyncIntervalMillis;
+  public final long chunkCacheBytes;
+  public final boolean chunkCacheOffHeap;
+  public final long maxInFlightBytes;
+  public final int queueCapacity;
+  public final int metricsPort;
+  public final long mmapThresholdBytes;
+  public final Log.Level logLevel;
+  public final boolean logJson;
+  public final int logBufferLines;
+
+  private final Function<String, String> env;
 
   public EnvVars(String[] args) {
+    this(args, System::getenv);
+  }
+
+  /**
+   * @param env looks up the value of an environment variable, null if it is not set
+   */
+  EnvVars(String[] args, Function<String, String> env) {
+    this.env = env;
     debugMode = isDebugMode(args);
     serverPort = getEnvInt("SERVER_PORT", 8080);
     pathToFolder = getEnv("SERVER_FOLDER", "mounted-server-folder");
     apiKey = getEnv("API_KEY", "SUPER-SECRET-API-KEY");
     chunkSize = getEnvInt("CHUNK_SIZE", 1000000 * 10);
+    transport = getOptionalEnv("TRANSPORT", TRANSPORT_SELECTOR);
+    zeroCopy = Boolean.parseBoolean(getOptionalEnv("ZERO_COPY", "true"));
+    laggardPolicy = FanOut.LaggardPolicy.valueOf(
+        getOptionalEnv("LAGGARD_POLICY", "drop").toUpperCase());
+    fanOutQueueChunks = Integer.parseInt(getOptionalEnv("FANOUT_QUEUE_CHUNKS", "4"));
+    //virtual threads make a waiting write cheap, so only a pool of platform threads needs a limit
+    writeConcurrency = Integer.parseInt(getOptionalEnv("WRITE_CONCURRENCY",
+        transport.equals(TRANSPORT_VIRTUAL) ? String.valueOf(Integer.MAX_VALUE) : "32"));
+    writeBatchFiles = Integer.parseInt(getOptionalEnv("WRITE_BATCH_FILES", "32"));
+    writeCoalesceBytes = Integer.parseInt(getOptionalEnv("WRITE_COALESCE_BYTES", "65536"));
+    writeCoalesceMillis = Long.parseLong(getOptionalEnv("WRITE_COALESCE_MILLIS", "10"));
+    scanThreads = Integer.parseInt(getOptionalEnv("SCAN_THREADS",
+        String.valueOf(Runtime.getRuntime().availableProcessors())));
+    watch = Boolean.parseBoolean(getOptionalEnv("WATCH", "true"));
+    watchDebounceMillis = Long.parseLong(getOptionalEnv("WATCH_DEBOUNCE_MILLIS", "200"));
+    rescanSeconds = Long.parseLong(getOptionalEnv("RESCAN_SECONDS", "300"));
+    streamsPerClient = Integer.parseInt(getOptionalEnv("STREAMS_PER_CLIENT", "8"));
+    fsyncIntervalMillis = Long.parseLong(getOptionalEnv("FSYNC_INTERVAL_MILLIS", "10"));
+    chunkCacheBytes = Long.parseLong(getOptionalEnv("CHUNK_CACHE_BYTES", "134217728"));
+    chunkCacheOffHeap = Boolean.parseBoolean(getOptionalEnv("CHUNK_CACHE_OFF_HEAP", "false"));
+    maxInFlightBytes = Long.parseLong(getOptionalEnv("MAX_IN_FLIGHT_BYTES", "268435456"));
+    queueCapacity = Integer.parseInt(getOptionalEnv("QUEUE_CAPACITY", "1024"));
+    metricsPort = Integer.parseInt(getOptionalEnv("METRICS_PORT", "0"));
+    mmapThresholdBytes = Long.parseLong(getOptionalEnv("MMAP_THRESHOLD_BYTES", "268435456"));
+    logLevel = Log.Level.valueOf(getOptionalEnv("LOG_LEVEL", "info").toUpperCase());
+    String logFormat = getOptionalEnv("LOG_FORMAT", "text");
+    logJson = logFormat.equals("json");
+    logBufferLines = Integer.parseInt(getOptionalEnv("LOG_BUFFER_LINES", "8192"));
 
     if (serverPort == -1 || pathToFolder == null || apiKey == null || chunkSize == -1) {
       String errorMessage = "Missing required environment variable(s): ";
@@ -25,10 +93,27 @@ class EnvVars {
       missingVars.setLength(missingVars.length() - 2);
       throw new RuntimeException(errorMessage + missingVars);
     }
+    if (!logJson && !logFormat.equals("text")) {
+      throw new RuntimeException("Unknown log format: " + logFormat);
+    }
+    if (!transport.equals(TRANSPORT_SELECTOR) && !transport.equals(TRANSPORT_BLOCKING)
+        && !transport.equals(TRANSPORT_VIRTUAL)) {
+      throw new RuntimeException("Unknown transport: " + transport);
+    }
+    if (transport.equals(TRANSPORT_VIRTUAL) && !VirtualThreads.isSupported()) {
+      throw new RuntimeException("The virtual transport needs Java 21 or newer, running on "
+          + System.getProperty("java.version"));
+    }
+    stateFolder = getOptionalEnv("STATE_FOLDER", pathToFolder + "-state");
+  }
+
+  private String getOptionalEnv(String name, String defaultValue) {
+    String value = env.apply(name);
+    return (value != null) ? value : defaultValue;
   }
 
   private String getEnv(String name, String defaultValue) {
-    String value = System.getenv(name);
+    String value = env.apply(name);
     if (value == null && !debugMode) {
       return null;
     }
@@ -36,7 +121,7 @@ class EnvVars {
   }
 
   private int getEnvInt(String name, int defaultValue) {
-    String value = System.getenv(name);
+    String value = env.apply(name);
     if (value == null && !debugMode) {
       return -1;
     }
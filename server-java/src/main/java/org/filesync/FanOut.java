@@ -0,0 +1,517 @@
+package org.filesync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Broadcasts files to several clients at once. Every chunk is taken from the {@link ChunkCache}
+ * once, or from a memory mapping for files of at least MMAP_THRESHOLD_BYTES, see
+ * {@link MappedChunks}, and the frame is shared read-only between the clients, which are drained by
+ * their own writers through bounded queues. A slow client therefore only slows down itself. What
+ * happens once its queue is full is decided by the {@link LaggardPolicy}. Chunks are also
+ * compressed only once for all clients that negotiated {@link Capabilities#DEFLATE}.
+ */
+class FanOut {
+
+  enum LaggardPolicy {
+    //the client leaves the shared broadcast and its writer reads the remaining chunks from disk on its own
+    DROP,
+    //the client is disconnected
+    DISCONNECT,
+    //frames that do not fit into the queue are buffered in a temporary file until the client caught up
+    SPILL
+  }
+
+  private enum WriterState {
+    ATTACHED, SPILLING, DETACHED, FAILED
+  }
+
+  /**
+   * A frame whose payload is shared by all writers, each of them reads it through a duplicate. The
+   * payload of a cached chunk might be off-heap, the one of a mapped chunk is in the page cache.
+   */
+  private static class Frame {
+
+    public final byte syncOpCode;
+    private final ByteBuffer payload;
+    //the mapping that the payload is a view of, null if it is not mapped
+    private final MappedChunks mapping;
+
+    Frame(byte syncOpCode, ByteBuffer payload, MappedChunks mapping) {
+      this.syncOpCode = syncOpCode;
+      this.payload = payload;
+      this.mapping = mapping;
+    }
+
+    Frame(byte syncOpCode, ByteBuffer payload) {
+      this(syncOpCode, payload, null);
+    }
+
+    Frame(byte syncOpCode, byte[] payload) {
+      this(syncOpCode, ByteBuffer.wrap(payload));
+    }
+
+    ByteBuffer payload() {
+      return payload.duplicate();
+    }
+
+    void writeTo(OutputStream outputStream) throws IOException {
+      if (mapping != null) {
+        mapping.writeFrame(syncOpCode, payload(), outputStream);
+      } else {
+        SyncFrame.writeFrame(syncOpCode, payload(), outputStream);
+      }
+    }
+  }
+
+  //marks the end of the broadcast in a queue, compared by identity
+  private static final Frame END_OF_BROADCAST = new Frame((byte) -1, new byte[]{});
+  //the reader re-checks periodically in case a writer failed without taking anything
+  private static final long PROGRESS_WAIT_MILLIS = 100;
+
+  /**
+   * Frame of the broadcast at which a detached writer continues on its own.
+   */
+  static class Resume {
+
+    public final int pathIndex;
+    public final byte syncOpCode;
+    public final long filePosition;
+
+    Resume(int pathIndex, byte syncOpCode, long filePosition) {
+      this.pathIndex = pathIndex;
+      this.syncOpCode = syncOpCode;
+      this.filePosition = filePosition;
+    }
+  }
+
+  /**
+   * Sends the rest of a broadcast to a client that was dropped from the shared stream.
+   */
+  interface DetachedWriter {
+
+    void continueBroadcast(List<String> paths, Resume resume, Socket client,
+        OutputStream outputStream) throws IOException;
+  }
+
+  private final EnvVars vars;
+  private final String pathToRelativeFolder;
+  private final Executor writerPool;
+  private final DetachedWriter detachedWriter;
+  private final Consumer<Socket> finishCallback;
+  private final Consumer<Socket> closeCallback;
+  private final Predicate<Socket> deflateNegotiated;
+  private final ChunkCache chunkCache;
+  //notified whenever a writer took a frame from its queue
+  private final Object progress = new Object();
+
+  /**
+   * @param finishCallback is called for each client, as soon as the broadcast was fully written to
+   *                       it
+   */
+  FanOut(EnvVars vars, String pathToRelativeFolder, Executor writerPool,
+      DetachedWriter detachedWriter, Consumer<Socket> finishCallback,
+      Consumer<Socket> closeCallback, Predicate<Socket> deflateNegotiated,
+      ChunkCache chunkCache) {
+    this.vars = vars;
+    this.pathToRelativeFolder = pathToRelativeFolder;
+    this.writerPool = writerPool;
+    this.detachedWriter = detachedWriter;
+    this.finishCallback = finishCallback;
+    this.closeCallback = closeCallback;
+    this.deflateNegotiated = deflateNegotiated;
+    this.chunkCache = chunkCache;
+  }
+
+  /**
+   * Reads all files and hands their frames to one writer per client. Returns once everything was
+   * read, while the writers of slower clients might still be busy.
+   */
+  public void broadcast(List<String> paths, List<Socket> clients,
+      List<OutputStream> outputStreams) {
+    List<ClientWriter> writers = new ArrayList<>(clients.size());
+    for (int i = 0; i < clients.size(); i++) {
+      ClientWriter writer = new ClientWriter(paths, clients.get(i), outputStreams.get(i));
+      writers.add(writer);
+      writerPool.execute(writer);
+    }
+
+    try {
+      for (int pathIndex = 0; pathIndex < paths.size(); pathIndex++) {
+        if (writers.stream().noneMatch(ClientWriter::isAttached)) {
+          //everyone left the shared stream, nothing to read for anymore
+          break;
+        }
+        String path = paths.get(pathIndex);
+        Path file = Paths.get(pathToRelativeFolder, path);
+        ChunkCache.FileVersion version;
+        FileChannel channel;
+        try {
+          version = ChunkCache.version(path, file);
+          channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+          //deleted since the broadcast was requested, nobody got anything of it yet
+          Log.debug(() -> "Skipped " + path + ", it was deleted before it could be broadcast.");
+          continue;
+        } catch (IOException e) {
+          Log.error("Could not open " + path + " for the broadcast, it is left out", e);
+          continue;
+        }
+        byte[] pathPayload = path.getBytes(StandardCharsets.UTF_8);
+        try (channel) {
+          deliver(writers, new Frame(SyncOpcode.NEW_FILE_PATH, pathPayload),
+              new Resume(pathIndex, SyncOpcode.NEW_FILE_PATH, 0));
+          //large files would only push everything else out of the cache
+          MappedChunks mappedChunks = vars.mmapThresholdBytes > 0
+              && channel.size() >= vars.mmapThresholdBytes
+              ? new MappedChunks(file, channel, vars.chunkSize) : null;
+          long position = 0;
+          while (true) {
+            boolean deflate = writers.stream()
+                .anyMatch((writer) -> writer.deflate && writer.isAttached());
+            ByteBuffer data;
+            byte[] compressed = null;
+            if (mappedChunks != null) {
+              data = mappedChunks.chunk(position);
+              if (deflate) {
+                compressed = mappedChunks.compress(data);
+              }
+            } else {
+              ChunkCache.Chunk chunk = chunkCache.get(version, channel, position, vars.chunkSize);
+              data = chunk.data();
+              if (deflate) {
+                compressed = chunk.deflated();
+              }
+            }
+            int length = data.remaining();
+            Frame part = new Frame(SyncOpcode.NEW_FILE_PART, data, mappedChunks);
+            Frame deflatedPart = compressed == null ? part
+                : new Frame(SyncOpcode.NEW_FILE_PART_DEFLATED, compressed);
+            deliver(writers, part, deflatedPart,
+                new Resume(pathIndex, SyncOpcode.NEW_FILE_PART, position));
+            position += length;
+            if (length < vars.chunkSize) {
+              break;
+            }
+          }
+        }
+
+        deliver(writers, new Frame(SyncOpcode.NEW_FILE_END, pathPayload),
+            new Resume(pathIndex, SyncOpcode.NEW_FILE_END, 0));
+      }
+      for (ClientWriter writer : writers) {
+        writer.finish();
+      }
+    } catch (IOException | InterruptedException | InternalError e) {
+      //an InternalError is raised late for a mapped file that was truncated, see MappedChunks
+      Log.error("Broadcast failed", e);
+      //the clients are in the middle of a file, which we cannot complete anymore
+      for (ClientWriter writer : writers) {
+        writer.disconnect();
+      }
+    }
+  }
+
+  private void deliver(List<ClientWriter> writers, Frame frame, Resume position)
+      throws InterruptedException {
+    deliver(writers, frame, frame, position);
+  }
+
+  /**
+   * @param deflatedFrame goes to the clients that negotiated compression instead of the frame
+   */
+  private void deliver(List<ClientWriter> writers, Frame frame, Frame deflatedFrame,
+      Resume position) throws InterruptedException {
+    awaitLeader(writers);
+    for (ClientWriter writer : writers) {
+      writer.offer(writer.deflate ? deflatedFrame : frame, position);
+    }
+  }
+
+  /**
+   * Waits until the fastest client has room for the next frame, so only clients that fell behind
+   * it by a whole queue count as laggards, not all clients that are slower than the disk.
+   */
+  private void awaitLeader(List<ClientWriter> writers) throws InterruptedException {
+    synchronized (progress) {
+      while (writers.stream().anyMatch(ClientWriter::isInSharedQueue)
+          && writers.stream().noneMatch(ClientWriter::hasQueueSpace)) {
+        progress.wait(PROGRESS_WAIT_MILLIS);
+      }
+    }
+  }
+
+  private void notifyProgress() {
+    synchronized (progress) {
+      progress.notifyAll();
+    }
+  }
+
+  private class ClientWriter implements Runnable {
+
+    private final List<String> paths;
+    private final Socket client;
+    private final OutputStream outputStream;
+    private final boolean deflate;
+    private final BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(
+        vars.fanOutQueueChunks);
+
+    //guarded by this
+    private WriterState state = WriterState.ATTACHED;
+    private Resume detachedAt = null;
+    private SpillFile spill = null;
+
+    ClientWriter(List<String> paths, Socket client, OutputStream outputStream) {
+      this.paths = paths;
+      this.client = client;
+      this.outputStream = outputStream;
+      this.deflate = deflateNegotiated.test(client);
+    }
+
+    synchronized boolean isAttached() {
+      return state == WriterState.ATTACHED || state == WriterState.SPILLING;
+    }
+
+    synchronized boolean isInSharedQueue() {
+      return state == WriterState.ATTACHED;
+    }
+
+    synchronized boolean hasQueueSpace() {
+      return state == WriterState.ATTACHED && queue.remainingCapacity() > 0;
+    }
+
+    /**
+     * Called by the reading thread. Never blocks on a slow client.
+     */
+    synchronized void offer(Frame frame, Resume position) {
+      if (state == WriterState.ATTACHED && queue.offer(frame)) {
+        return;
+      }
+      if (state != WriterState.ATTACHED && state != WriterState.SPILLING) {
+        return;
+      }
+      switch (vars.laggardPolicy) {
+        case DROP:
+          Log.warn("Client " + client.getInetAddress()
+              + " is too slow for the broadcast and continues on its own.");
+          state = WriterState.DETACHED;
+          detachedAt = position;
+          break;
+        case DISCONNECT:
+          Log.warn("Client " + client.getInetAddress()
+              + " is too slow for the broadcast and gets disconnected.");
+          disconnect();
+          break;
+        case SPILL:
+          try {
+            if (spill == null) {
+              Log.warn("Client " + client.getInetAddress()
+                  + " is too slow for the broadcast and gets its chunks spilled to disk.");
+              spill = new SpillFile();
+            }
+            spill.append(frame);
+            state = WriterState.SPILLING;
+          } catch (IOException e) {
+            Log.error("Could not spill the broadcast for client " + client.getInetAddress(), e);
+            disconnect();
+          }
+          break;
+      }
+    }
+
+    /**
+     * Called by the reading thread after the last frame. Might block for a slow client, which is
+     * fine, because nobody waits for further chunks anymore.
+     */
+    void finish() throws InterruptedException {
+      synchronized (this) {
+        if (state == WriterState.SPILLING) {
+          offer(END_OF_BROADCAST, null);
+          return;
+        }
+        if (state != WriterState.ATTACHED || queue.offer(END_OF_BROADCAST)) {
+          return;
+        }
+      }
+      queue.put(END_OF_BROADCAST);
+    }
+
+    synchronized void disconnect() {
+      if (state == WriterState.FAILED) {
+        return;
+      }
+      state = WriterState.FAILED;
+      //closing the socket first unblocks the writer, if it is stuck in a write
+      try {
+        client.close();
+      } catch (IOException e) {
+        Log.error("Could not close client " + client.getInetAddress(), e);
+      }
+      //wakes up the writer, if it is waiting for the next frame
+      queue.clear();
+      queue.offer(END_OF_BROADCAST);
+      closeCallback.accept(client);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          Frame frame = next();
+          if (frame == END_OF_BROADCAST) {
+            break;
+          }
+          frame.writeTo(outputStream);
+        }
+        Resume resume;
+        synchronized (this) {
+          if (state == WriterState.FAILED) {
+            return;
+          }
+          resume = detachedAt;
+        }
+        if (resume != null) {
+          detachedWriter.continueBroadcast(paths, resume, client, outputStream);
+        }
+        outputStream.flush();
+        finishCallback.accept(client);
+      } catch (IOException | InterruptedException | InternalError e) {
+        //an InternalError is raised late for a mapped file that was truncated, see MappedChunks
+        synchronized (this) {
+          if (state == WriterState.FAILED) {
+            return;
+          }
+          state = WriterState.FAILED;
+        }
+        Log.error("Broadcast to client " + client.getInetAddress() + " failed", e);
+        //frees the reading thread, if it is waiting to hand over the end of the broadcast
+        queue.clear();
+        closeCallback.accept(client);
+      } finally {
+        closeSpill();
+      }
+    }
+
+    private Frame next() throws IOException, InterruptedException {
+      Frame frame = queue.poll();
+      if (frame != null) {
+        notifyProgress();
+        return frame;
+      }
+      synchronized (this) {
+        if (spill != null && spill.hasUnread()) {
+          return spill.read();
+        }
+        if (state == WriterState.SPILLING) {
+          //caught up again, the next frames arrive through the queue
+          spill.reset();
+          state = WriterState.ATTACHED;
+        }
+        if (state == WriterState.DETACHED) {
+          return END_OF_BROADCAST;
+        }
+      }
+      //nothing to coalesce with, so the client gets what was written so far before we wait
+      outputStream.flush();
+      frame = queue.take();
+      notifyProgress();
+      return frame;
+    }
+
+    private synchronized void closeSpill() {
+      if (spill != null) {
+        spill.close();
+        spill = null;
+      }
+    }
+  }
+
+  /**
+   * Temporary file with the frames that a spilling client could not take yet, in order.
+   */
+  private static class SpillFile implements Closeable {
+
+    private final Path path;
+    private final FileChannel channel;
+    private long readPosition = 0;
+    private long writePosition = 0;
+
+    SpillFile() throws IOException {
+      path = Files.createTempFile("filesync-spill-", ".tmp");
+      channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    void append(Frame frame) throws IOException {
+      ByteBuffer payload = frame.payload();
+      ByteBuffer header = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN);
+      header.put(frame.syncOpCode).putInt(payload.remaining()).flip();
+      for (ByteBuffer bytes : new ByteBuffer[]{header, payload}) {
+        while (bytes.hasRemaining()) {
+          writePosition += channel.write(bytes, writePosition);
+        }
+      }
+    }
+
+    boolean hasUnread() {
+      return readPosition < writePosition;
+    }
+
+    Frame read() throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(header);
+      header.flip();
+      byte opcode = header.get();
+      if (opcode == END_OF_BROADCAST.syncOpCode) {
+        return END_OF_BROADCAST;
+      }
+      ByteBuffer payload = ByteBuffer.allocate(header.getInt());
+      readFully(payload);
+      payload.flip();
+      return new Frame(opcode, payload);
+    }
+
+    void reset() throws IOException {
+      channel.truncate(0);
+      readPosition = 0;
+      writePosition = 0;
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        int read = channel.read(buffer, readPosition);
+        if (read == -1) {
+          throw new IOException("Spill file ended unexpectedly: " + path);
+        }
+        readPosition += read;
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        channel.close();
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        Log.error("Could not delete the spill file " + path, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package org.filesync;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Persistent list of the files in the server folder, so that the server can start serving clients
+ * without walking the whole folder first.
+ * <p>
+ * Changes are appended to a buffered log ("+path" or "-path" per line), which is written by
+ * {@link #flush()} and compacted into a snapshot once it outgrew the snapshot. Loading reads the
+ * snapshot and replays the log. Replaying a record twice does
+ * not change the result, so a crash between writing a snapshot and truncating the log is harmless.
+ * The catalog may be outdated, the server reconciles it with the folder in the background.
+ */
+class FileCatalog {
+
+  static final String SNAPSHOT_FILE_NAME = "catalog.snapshot";
+  static final String LOG_FILE_NAME = "catalog.log";
+  //the log is compacted once it holds this many records per cataloged path
+  private static final int COMPACT_LOG_RATIO = 2;
+  //small catalogs are not rewritten after every few changes
+  private static final int COMPACT_MIN_RECORDS = 10000;
+
+  private final Path snapshotFile;
+  private final Path logFile;
+  private final Set<String> paths = new LinkedHashSet<>();
+  private BufferedWriter log;
+  private int logRecords = 0;
+
+  /**
+   * @param stateFolder where the catalog is persisted, null for a catalog that only lives in
+   *                    memory
+   */
+  FileCatalog(Path stateFolder) {
+    this.snapshotFile = stateFolder == null ? null : stateFolder.resolve(SNAPSHOT_FILE_NAME);
+    this.logFile = stateFolder == null ? null : stateFolder.resolve(LOG_FILE_NAME);
+  }
+
+  /**
+   * Loads snapshot and log and opens the log for new records.
+   *
+   * @return the cataloged paths
+   */
+  public synchronized List<String> load() throws IOException {
+    if (snapshotFile != null) {
+      if (Files.exists(snapshotFile)) {
+        try (BufferedReader reader = Files.newBufferedReader(snapshotFile,
+            StandardCharsets.UTF_8)) {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            if (!line.isEmpty()) {
+              paths.add(line);
+            }
+          }
+        }
+      }
+      if (Files.exists(logFile)) {
+        try (BufferedReader reader = Files.newBufferedReader(logFile, StandardCharsets.UTF_8)) {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            //an incomplete last line after a crash is simply ignored
+            if (line.startsWith("+")) {
+              paths.add(line.substring(1));
+            } else if (line.startsWith("-")) {
+              paths.remove(line.substring(1));
+            }
+            logRecords++;
+          }
+        }
+      }
+      log = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+          StandardOpenOption.APPEND);
+    }
+    return new ArrayList<>(paths);
+  }
+
+  public synchronized void recordAdded(String path) {
+    if (paths.add(path)) {
+      append("+" + path);
+    }
+  }
+
+  public synchronized void recordRemoved(String path) {
+    if (paths.remove(path)) {
+      append("-" + path);
+    }
+  }
+
+  /**
+   * Records the changes of a whole scan at once and writes them to the log.
+   */
+  public synchronized void record(Collection<String> addedPaths,
+      Collection<String> removedPaths) {
+    for (String path : addedPaths) {
+      recordAdded(path);
+    }
+    for (String path : removedPaths) {
+      recordRemoved(path);
+    }
+    flush();
+  }
+
+  private void append(String record) {
+    if (log == null) {
+      return;
+    }
+    try {
+      log.write(record);
+      log.write("\n");
+      logRecords++;
+    } catch (IOException e) {
+      //the catalog is only a start-up shortcut, the next reconcile repairs what is missing
+      Log.error("Could not record a change of the catalog", e);
+    }
+  }
+
+  /**
+   * Writes the buffered records to the log, or compacts the log instead once it holds more than
+   * {@value #COMPACT_LOG_RATIO} records per cataloged path, so that every path is only rewritten
+   * after that many changes. Called periodically and after batches of changes, a crash loses at
+   * most the records since the last call.
+   */
+  public synchronized void flush() {
+    if (log == null) {
+      return;
+    }
+    try {
+      if (logRecords >= Math.max(COMPACT_MIN_RECORDS, (long) COMPACT_LOG_RATIO * paths.size())) {
+        compact();
+      } else {
+        log.flush();
+      }
+    } catch (IOException e) {
+      Log.error("Could not save the catalog", e);
+    }
+  }
+
+  /**
+   * Writes all paths into a new snapshot and starts an empty log.
+   */
+  public synchronized void compact() throws IOException {
+    if (log == null) {
+      return;
+    }
+    Path tempFile = snapshotFile.resolveSibling(SNAPSHOT_FILE_NAME + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+      for (String path : paths) {
+        writer.write(path);
+        writer.write("\n");
+      }
+    }
+    Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    log.close();
+    log = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    logRecords = 0;
+  }
+}
@@ -0,0 +1,211 @@
+package org.filesync;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Moves received files from their temp file to their place in the server folder, so that nobody
+ * ever sees a half written file.
+ * <p>
+ * Incoming files are written to a temp file next to their final path, which is renamed atomically
+ * once the file is complete. Before the rename the content is forced to disk and after it the
+ * directory, so after a crash there is either the complete file or none. Forcing is expensive for
+ * small files, so commits are collected for the fsync interval and committed together: the content
+ * of all files of a batch is forced at once, then all of them are renamed and then every directory
+ * is forced once. Java has no call that syncs many files at once, so the data syncs of a batch are
+ * issued concurrently, which journaling file systems complete with one journal commit instead of
+ * one per file. Uploads do not wait for their commit, so a client that sends many small files
+ * fills the next batch in the meantime.
+ */
+class FileCommitter {
+
+  //temp files are hidden and never offered to clients, see isTempFile
+  static final String TEMP_SUFFIX = ".filesync-tmp";
+  //data syncs of a batch that run at once
+  static final int SYNC_THREADS = 16;
+
+  private static class Commit {
+
+    public final Path source;
+    public final Path target;
+    public final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    Commit(Path source, Path target) {
+      this.source = source;
+      this.target = target;
+    }
+  }
+
+  private final long fsyncIntervalMillis;
+  private final int syncThreads;
+  private final List<Commit> pendingCommits = new ArrayList<>();
+  private Thread committerThread;
+  private ExecutorService syncPool;
+
+  /**
+   * @param fsyncIntervalMillis how long commits are collected before they are forced together, -1
+   *                            to only rename without forcing anything to disk
+   */
+  FileCommitter(long fsyncIntervalMillis) {
+    this(fsyncIntervalMillis, SYNC_THREADS);
+  }
+
+  /**
+   * @param syncThreads how many files of a batch are forced at once
+   */
+  FileCommitter(long fsyncIntervalMillis, int syncThreads) {
+    this.fsyncIntervalMillis = fsyncIntervalMillis;
+    this.syncThreads = syncThreads;
+  }
+
+  /**
+   * @return the temp file, to which the file at the path is written until it is complete
+   */
+  public static Path tempFile(Path path) {
+    return path.resolveSibling("." + path.getFileName() + TEMP_SUFFIX);
+  }
+
+  /**
+   * Temp files only exist while their upload runs. A crash can leave one behind, which is replaced
+   * by the next upload of the same path.
+   */
+  public static boolean isTempFile(String path) {
+    return path.endsWith(TEMP_SUFFIX);
+  }
+
+  /**
+   * Moves the complete file to the target, replacing what was there.
+   *
+   * @return completed on the committer thread, once the file is durable
+   */
+  public CompletableFuture<Void> commit(Path source, Path target) {
+    if (fsyncIntervalMillis < 0) {
+      try {
+        move(source, target);
+        return CompletableFuture.completedFuture(null);
+      } catch (IOException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+    }
+    Commit commit = new Commit(source, target);
+    synchronized (pendingCommits) {
+      if (committerThread == null) {
+        syncPool = Executors.newFixedThreadPool(syncThreads, (task) -> {
+          Thread thread = new Thread(task, "file-committer-sync");
+          thread.setDaemon(true);
+          return thread;
+        });
+        committerThread = new Thread(this::runCommits, "file-committer");
+        committerThread.setDaemon(true);
+        committerThread.start();
+      }
+      pendingCommits.add(commit);
+      pendingCommits.notifyAll();
+    }
+    return commit.done;
+  }
+
+  private void runCommits() {
+    try {
+      while (true) {
+        synchronized (pendingCommits) {
+          while (pendingCommits.isEmpty()) {
+            pendingCommits.wait();
+          }
+        }
+        //uploads that finish in the meantime join the batch
+        Thread.sleep(fsyncIntervalMillis);
+        List<Commit> batch;
+        synchronized (pendingCommits) {
+          batch = new ArrayList<>(pendingCommits);
+          pendingCommits.clear();
+        }
+        commitBatch(batch);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void commitBatch(List<Commit> batch) {
+    //all data syncs of the batch are in flight together, instead of one after the other
+    List<CompletableFuture<Void>> syncs = new ArrayList<>(batch.size());
+    for (Commit commit : batch) {
+      syncs.add(CompletableFuture.runAsync(() -> {
+        try {
+          force(commit.source);
+        } catch (IOException e) {
+          throw new CompletionException(e);
+        }
+      }, syncPool));
+    }
+    List<Commit> moved = new ArrayList<>();
+    Set<Path> directories = new LinkedHashSet<>();
+    for (int i = 0; i < batch.size(); i++) {
+      Commit commit = batch.get(i);
+      try {
+        syncs.get(i).join();
+        move(commit.source, commit.target);
+        moved.add(commit);
+        directories.add(commit.target.getParent());
+      } catch (CompletionException e) {
+        commit.done.completeExceptionally(e.getCause());
+      } catch (IOException | RuntimeException e) {
+        commit.done.completeExceptionally(e);
+      }
+    }
+    //the renames are only durable once their directories are
+    for (Path directory : directories) {
+      forceDirectory(directory);
+    }
+    for (Commit commit : moved) {
+      commit.done.complete(null);
+    }
+  }
+
+  private void move(Path source, Path target) throws IOException {
+    try {
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      //the source is on another file system, so it is copied next to the target first
+      Path tempFile = tempFile(target);
+      Files.move(source, tempFile, StandardCopyOption.REPLACE_EXISTING);
+      if (fsyncIntervalMillis >= 0) {
+        force(tempFile);
+      }
+      Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+
+  private static void force(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+  }
+
+  private static void forceDirectory(Path directory) {
+    if (directory == null) {
+      return;
+    }
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      //not every platform can open or force directories, the rename is still atomic there
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package org.filesync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Client output that can send a region of a file directly from the page cache to the socket
+ * ({@link FileChannel#transferTo}), without copying it through the JVM heap. Buffers outside the
+ * heap, like memory mapped chunks, are written as they are as well.
+ */
+interface FileTransferTarget {
+
+  void transferFrom(FileChannel file, long position, long count) throws IOException;
+
+  /**
+   * Blocks until the complete buffer was written.
+   */
+  int write(ByteBuffer source) throws IOException;
+
+  /**
+   * Transfer target for clients of the virtual thread transport, whose channel blocks until
+   * everything was sent.
+   */
+  static FileTransferTarget forBlockingChannel(WritableByteChannel channel) {
+    return new FileTransferTarget() {
+      @Override
+      public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+          long sent = file.transferTo(position + transferred, count - transferred, channel);
+          if (sent == 0 && position + transferred >= file.size()) {
+            throw new IOException("File got shorter while it was being sent");
+          }
+          transferred += sent;
+        }
+      }
+
+      @Override
+      public int write(ByteBuffer source) throws IOException {
+        int length = source.remaining();
+        while (source.hasRemaining()) {
+          channel.write(source);
+        }
+        return length;
+      }
+    };
+  }
+}
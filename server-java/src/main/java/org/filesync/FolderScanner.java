@@ -0,0 +1,113 @@
+package org.filesync;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Walks the server folder in parallel. Every directory is its own fork-join task, so idle threads
+ * steal subdirectories of busy ones and deep trees are listed concurrently. Each entry costs a
+ * single attribute read. Found files are handed over as soon as they are found, not when the whole
+ * walk is done. Temp files of uploads in progress are skipped.
+ */
+class FolderScanner {
+
+  private final String pathToFolder;
+  private final int parallelism;
+
+  FolderScanner(String pathToFolder, int parallelism) {
+    this.pathToFolder = pathToFolder;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Blocks until the whole folder was walked.
+   *
+   * @param foundPathConsumer gets the path of every regular file relative to the folder, called
+   *                          from multiple threads
+   * @throws IOException if any directory could not be listed, as the result is incomplete then
+   */
+  public void scan(Consumer<String> foundPathConsumer) throws IOException {
+    scan(Path.of(pathToFolder), (directory) -> {
+    }, (foundPath, attributes) -> foundPathConsumer.accept(foundPath));
+  }
+
+  /**
+   * Walks only the given directory of the folder, including the directory itself.
+   *
+   * @param foundDirectoryConsumer gets every directory, called from multiple threads
+   * @param foundPathConsumer      gets the path of every regular file relative to the folder with
+   *                               its attributes, called from multiple threads
+   */
+  public void scan(Path directory, Consumer<Path> foundDirectoryConsumer,
+      BiConsumer<String, BasicFileAttributes> foundPathConsumer) throws IOException {
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.invoke(new DirectoryTask(directory, foundDirectoryConsumer, foundPathConsumer));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private class DirectoryTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Path directory;
+    private final Consumer<Path> foundDirectoryConsumer;
+    private final BiConsumer<String, BasicFileAttributes> foundPathConsumer;
+
+    DirectoryTask(Path directory, Consumer<Path> foundDirectoryConsumer,
+        BiConsumer<String, BasicFileAttributes> foundPathConsumer) {
+      this.directory = directory;
+      this.foundDirectoryConsumer = foundDirectoryConsumer;
+      this.foundPathConsumer = foundPathConsumer;
+    }
+
+    @Override
+    protected void compute() {
+      foundDirectoryConsumer.accept(directory);
+      List<DirectoryTask> subdirectories = new ArrayList<>();
+      try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)) {
+        for (Path path : directoryStream) {
+          BasicFileAttributes attributes;
+          try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+          } catch (IOException e) {
+            //deleted since it was listed or a broken link, like a failed isRegularFile check
+            continue;
+          }
+          if (attributes.isRegularFile()) {
+            if (FileCommitter.isTempFile(path.toString())) {
+              //an upload in progress, it is found under its own path once it is complete
+              continue;
+            }
+            foundPathConsumer.accept(path.toString().substring(pathToFolder.length() + 1),
+                attributes);
+          } else if (attributes.isDirectory()) {
+            DirectoryTask task = new DirectoryTask(path, foundDirectoryConsumer,
+                foundPathConsumer);
+            task.fork();
+            subdirectories.add(task);
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      for (DirectoryTask task : subdirectories) {
+        task.join();
+      }
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package org.filesync;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notices changes that are made directly in the server folder while the server runs and sends new
+ * and modified files to all clients.
+ * <p>
+ * Every directory is registered with a {@link WatchService}. Events for a file are collected until
+ * the file was quiet for the debounce time, so a burst of writes leads to one broadcast. Files the
+ * server wrote itself are recognized by the content index and not sent again. When the watch
+ * service drops events, and from time to time anyway, the whole folder is scanned again.
+ */
+class FolderWatcher {
+
+  //a file that never gets quiet is still sent after this many debounce times
+  private static final int MAX_DEBOUNCE_ROUNDS = 10;
+
+  private final SharedSyncState sharedSyncState;
+  private final SyncManager syncManager;
+  private final EnvVars vars;
+  private final Path folder;
+  private final FolderScanner scanner;
+  private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+  //paths with unsettled events, with the time of their first and of their last event
+  private final Map<String, long[]> pendingPaths = new HashMap<>();
+  private WatchService watchService;
+
+  FolderWatcher(SharedSyncState sharedSyncState, SyncManager syncManager, EnvVars vars) {
+    this.sharedSyncState = sharedSyncState;
+    this.syncManager = syncManager;
+    this.vars = vars;
+    this.folder = Paths.get(vars.pathToFolder);
+    this.scanner = new FolderScanner(vars.pathToFolder, vars.scanThreads);
+  }
+
+  /**
+   * Reconciles the catalog with the folder in the background and keeps watching the folder
+   * afterwards, if watching is enabled.
+   */
+  public void start() {
+    Thread thread = new Thread(this::run, "folder-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void run() {
+    if (vars.watch) {
+      try {
+        //registered before the first scan, so that nothing is missed while it runs
+        watchService = folder.getFileSystem().newWatchService();
+      } catch (IOException e) {
+        //the periodic rescans still notice changes, just later
+        Log.error("Could not watch the server folder", e);
+      }
+    }
+    rescan();
+    try {
+      sharedSyncState.catalog.compact();
+    } catch (IOException e) {
+      Log.error("Could not compact the catalog", e);
+    }
+    if (!vars.watch) {
+      return;
+    }
+    Log.info("Watching the server folder for changes.");
+
+    long debounceNanos = TimeUnit.MILLISECONDS.toNanos(vars.watchDebounceMillis);
+    long rescanNanos = TimeUnit.SECONDS.toNanos(vars.rescanSeconds);
+    long lastRescan = System.nanoTime();
+    try {
+      while (true) {
+        boolean overflow = false;
+        if (watchService == null) {
+          Thread.sleep(vars.watchDebounceMillis);
+        } else {
+          WatchKey key = watchService.poll(vars.watchDebounceMillis, TimeUnit.MILLISECONDS);
+          while (key != null) {
+            overflow |= handleEvents(key);
+            key = watchService.poll();
+          }
+        }
+        long now = System.nanoTime();
+        if (overflow || (vars.rescanSeconds > 0 && now - lastRescan >= rescanNanos)) {
+          if (overflow) {
+            Log.warn("Server folder changed faster than it could be watched, rescanning.");
+          }
+          rescan();
+          lastRescan = System.nanoTime();
+        }
+        flushSettledPaths(now, debounceNanos);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return true, if events were lost
+   */
+  private boolean handleEvents(WatchKey key) {
+    Path directory = watchedDirectories.get(key);
+    boolean overflow = false;
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        overflow = true;
+        continue;
+      }
+      if (directory == null) {
+        continue;
+      }
+      Path path = directory.resolve((Path) event.context());
+      if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+        //files can be created in the new directory before it is registered
+        try {
+          scanner.scan(path, this::register,
+              (foundPath, attributes) -> markPending(foundPath, System.nanoTime()));
+        } catch (IOException e) {
+          Log.error("Could not scan the new directory " + path, e);
+        }
+        continue;
+      }
+      if (FileCommitter.isTempFile(path.toString())) {
+        //the rename at the end of the upload reports the file itself
+        continue;
+      }
+      markPending(path.toString().substring(vars.pathToFolder.length() + 1), System.nanoTime());
+    }
+    if (!key.reset()) {
+      watchedDirectories.remove(key);
+    }
+    return overflow;
+  }
+
+  private void markPending(String path, long now) {
+    synchronized (pendingPaths) {
+      long[] times = pendingPaths.get(path);
+      if (times == null) {
+        pendingPaths.put(path, new long[]{now, now});
+      } else {
+        times[1] = now;
+      }
+    }
+  }
+
+  private void flushSettledPaths(long now, long debounceNanos) {
+    List<String> settledPaths = new ArrayList<>();
+    synchronized (pendingPaths) {
+      Iterator<Map.Entry<String, long[]>> iterator = pendingPaths.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<String, long[]> entry = iterator.next();
+        long[] times = entry.getValue();
+        if (now - times[1] >= debounceNanos
+            || now - times[0] >= MAX_DEBOUNCE_ROUNDS * debounceNanos) {
+          settledPaths.add(entry.getKey());
+          iterator.remove();
+        }
+      }
+    }
+    if (settledPaths.isEmpty()) {
+      return;
+    }
+    List<String> changedPaths = new ArrayList<>();
+    for (String path : settledPaths) {
+      if (isChanged(path)) {
+        changedPaths.add(path);
+      }
+    }
+    broadcast(changedPaths);
+  }
+
+  /**
+   * @return true, if the file is new or has new content that the clients need
+   */
+  private boolean isChanged(String path) {
+    if (!Files.isRegularFile(folder.resolve(path))) {
+      //there is no frame for deletions, the file is just not offered anymore
+      if (sharedSyncState.pathRegistry.removeAvailable(path)) {
+        sharedSyncState.catalog.recordRemoved(path);
+        sharedSyncState.contentIndex.remove(path);
+      }
+      return false;
+    }
+    if (sharedSyncState.pathRegistry.state(path) == PathRegistry.PathState.UPLOADING) {
+      //a client is writing this file right now and sends it around itself once it is done
+      return false;
+    }
+    if (syncManager.addFoundPath(path)) {
+      sharedSyncState.catalog.recordAdded(path);
+      return true;
+    }
+    try {
+      return sharedSyncState.pathRegistry.isAvailable(path)
+          && sharedSyncState.contentIndex.contentChanged(path);
+    } catch (IOException e) {
+      //deleted or still locked, a later event or rescan will pick it up
+      return false;
+    }
+  }
+
+  private void broadcast(List<String> changedPaths) {
+    if (changedPaths.isEmpty()) {
+      return;
+    }
+    Collections.sort(changedPaths);
+    Log.info("Server folder changed. Sending " + changedPaths.size() + " files.");
+    try {
+      sharedSyncState.writeQueue.put(WriteRequest.requestForAllButOneClient(changedPaths, null));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Scans the whole folder. New files are offered right away. Known files whose size or
+   * modification time differ from the content index are checked like a modify event. Files that
+   * are gone are removed at the end.
+   */
+  private void rescan() {
+    Set<String> knownBeforeScan = new HashSet<>(sharedSyncState.availableFilePaths);
+    Set<String> foundPaths = ConcurrentHashMap.newKeySet();
+    List<String> addedPaths = Collections.synchronizedList(new ArrayList<>());
+    Set<String> outdatedPaths = ConcurrentHashMap.newKeySet();
+    try {
+      scanner.scan(folder, this::register, (foundPath, attributes) -> {
+        foundPaths.add(foundPath);
+        if (syncManager.addFoundPath(foundPath)) {
+          addedPaths.add(foundPath);
+        } else if (sharedSyncState.contentIndex.isOutdated(foundPath, attributes)) {
+          outdatedPaths.add(foundPath);
+        }
+      });
+    } catch (IOException e) {
+      Log.error("Could not scan the server folder", e);
+      return;
+    }
+    syncManager.reconcile(knownBeforeScan, foundPaths, new ArrayList<>(addedPaths));
+    List<String> changedPaths = new ArrayList<>();
+    for (String outdatedPath : outdatedPaths) {
+      if (isChanged(outdatedPath)) {
+        changedPaths.add(outdatedPath);
+      }
+    }
+    broadcast(changedPaths);
+  }
+
+  private void register(Path directory) {
+    if (watchService == null) {
+      return;
+    }
+    try {
+      WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+      watchedDirectories.put(key, directory);
+    } catch (IOException e) {
+      //deleted since it was found, its parent reports that
+      Log.error("Could not watch the directory " + directory, e);
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package org.filesync;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Reads frames from a client incrementally, no matter how the bytes were split up on the network.
+ * <p>
+ * Small payloads are read completely into a pooled buffer. File parts can instead be streamed to
+ * their target in slices as they arrive, so even a large CHUNK_SIZE never has to fit into memory
+ * at once.
+ * <p>
+ * Payloads larger than a slice are read completely only once they fit into the in-flight
+ * {@link ByteBudget}. Smaller ones are not counted, every connection holds at most two of them.
+ */
+class FrameReader implements AutoCloseable {
+
+  static final int SLICE_SIZE = 256 * 1024;
+
+  private final ReadableByteChannel channel;
+  private final BufferPool bufferPool;
+  private final ByteBudget budget;
+  private final Metrics.Client metrics;
+  private final ByteBuffer header = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN);
+  private ByteBuffer slice;
+
+  private byte syncOpCode;
+  private int payloadRemaining = 0;
+
+  FrameReader(ReadableByteChannel channel, BufferPool bufferPool, ByteBudget budget,
+      Metrics.Client metrics) {
+    this.channel = channel;
+    this.bufferPool = bufferPool;
+    this.budget = budget;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Blocks until the header of the next frame was read. The payload has to be consumed afterwards
+   * with one of the payload methods.
+   *
+   * @return the opcode of the frame
+   */
+  public byte readHeader() throws IOException {
+    if (payloadRemaining > 0) {
+      throw new IllegalStateException("Payload of the previous frame was not consumed");
+    }
+    header.clear();
+    readFully(header);
+    header.flip();
+    syncOpCode = header.get();
+    payloadRemaining = header.getInt();
+    if (payloadRemaining < 0) {
+      throw new IOException("Invalid payload length: " + payloadRemaining);
+    }
+    metrics.frameReceived(header.capacity() + (long) payloadRemaining);
+    return syncOpCode;
+  }
+
+  /**
+   * @return the opcode of the frame whose header was read last
+   */
+  public byte syncOpCode() {
+    return syncOpCode;
+  }
+
+  /**
+   * Reads the complete next frame.
+   */
+  public PooledFrame readFrame() throws IOException {
+    readHeader();
+    return readPayload();
+  }
+
+  /**
+   * Reads the complete payload of the current frame.
+   */
+  public PooledFrame readPayload() throws IOException {
+    long budgetedBytes = 0;
+    if (payloadRemaining > SLICE_SIZE) {
+      if (budget.isLimited() && payloadRemaining > budget.maxBytes()) {
+        throw new IOException("Payload of " + payloadRemaining
+            + " bytes is larger than the in-flight budget");
+      }
+      budgetedBytes = payloadRemaining;
+      budget.acquire(budgetedBytes);
+    }
+    ByteBuffer payload = null;
+    try {
+      payload = bufferPool.acquire(payloadRemaining);
+      readFully(payload);
+    } catch (IOException | RuntimeException e) {
+      if (payload != null) {
+        bufferPool.release(payload);
+      }
+      budget.release(budgetedBytes);
+      throw e;
+    }
+    payloadRemaining = 0;
+    payload.flip();
+    return new PooledFrame(syncOpCode, payload, bufferPool, budget, budgetedBytes);
+  }
+
+  /**
+   * Reads the next 4 bytes of the payload as little endian number, like the stream id in front of
+   * the data of a {@link SyncOpcode#STREAM_FILE_PART}. The rest of the payload can be consumed
+   * afterwards as usual.
+   */
+  public int readPayloadInt() throws IOException {
+    if (payloadRemaining < 4) {
+      throw new IOException("Payload too short: " + payloadRemaining);
+    }
+    header.clear().limit(4);
+    readFully(header);
+    header.flip();
+    payloadRemaining -= 4;
+    return header.getInt();
+  }
+
+  /**
+   * Writes the payload of the current frame to the target, one slice at a time as it arrives.
+   *
+   * @return the length of the payload
+   */
+  public long transferPayload(WritableByteChannel target) throws IOException {
+    long transferred = 0;
+    if (payloadRemaining > 0 && slice == null) {
+      slice = bufferPool.acquire(SLICE_SIZE);
+    }
+    while (payloadRemaining > 0) {
+      slice.clear().limit(Math.min(SLICE_SIZE, payloadRemaining));
+      if (channel.read(slice) == -1) {
+        throw new EOFException("Connection ended in the middle of a frame");
+      }
+      slice.flip();
+      payloadRemaining -= slice.remaining();
+      transferred += slice.remaining();
+      while (slice.hasRemaining()) {
+        target.write(slice);
+      }
+    }
+    return transferred;
+  }
+
+  /**
+   * Discards the payload of the current frame.
+   */
+  public void skipPayload() throws IOException {
+    if (payloadRemaining > 0 && slice == null) {
+      slice = bufferPool.acquire(SLICE_SIZE);
+    }
+    while (payloadRemaining > 0) {
+      slice.clear().limit(Math.min(SLICE_SIZE, payloadRemaining));
+      readFully(slice);
+      payloadRemaining -= slice.limit();
+    }
+  }
+
+  private void readFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) == -1) {
+        throw new EOFException("Connection ended in the middle of a frame");
+      }
+    }
+  }
+
+  /**
+   * Returns the slice to the pool. The reader can still be used for the next frame afterwards and
+   * takes a slice again when it needs one.
+   */
+  @Override
+  public void close() {
+    if (slice != null) {
+      bufferPool.release(slice);
+      slice = null;
+    }
+  }
+}
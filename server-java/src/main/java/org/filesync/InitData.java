@@ -2,14 +2,29 @@ package org.filesync;
 
 import java.net.Socket;
 import java.util.List;
+import java.util.Set;
 
 class InitData {
 
   public final Socket client;
   public final List<String> filePathsMissingOnServer;
+  //null for clients that sent the original INIT
+  public final Set<String> acceptedCapabilities;
+  //differing files, for which the client is asked for block signatures
+  public final List<String> deltaPaths;
+  //"path\toffset\tsha256" of kept partial uploads of the requested files
+  public final List<String> resumeOffsets;
 
   InitData(Socket client, List<String> filePathsMissingOnServer) {
+    this(client, filePathsMissingOnServer, null, List.of(), List.of());
+  }
+
+  InitData(Socket client, List<String> filePathsMissingOnServer,
+      Set<String> acceptedCapabilities, List<String> deltaPaths, List<String> resumeOffsets) {
     this.client = client;
     this.filePathsMissingOnServer = filePathsMissingOnServer;
+    this.acceptedCapabilities = acceptedCapabilities;
+    this.deltaPaths = deltaPaths;
+    this.resumeOffsets = resumeOffsets;
   }
 }
@@ -0,0 +1,88 @@
+package org.filesync;
+
+import java.util.function.Supplier;
+
+/**
+ * Logging of the server, with levels and an asynchronous {@link AsyncAppender}. Messages that are
+ * expensive to build, like whole path lists, are passed as suppliers and only built if their level
+ * is enabled.
+ * <p>
+ * Until {@link #configure} is called, INFO and above is written as text to the standard output.
+ */
+class Log {
+
+  enum Level {
+    DEBUG, INFO, WARN, ERROR
+  }
+
+  private static volatile Level level = Level.INFO;
+  private static volatile AsyncAppender appender = new AsyncAppender(System.out, false, 8192);
+
+  static {
+    //otherwise the last lines before a shutdown would be lost
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> appender.close()));
+  }
+
+  /**
+   * @param json        whether every line is written as a JSON object instead of as text
+   * @param bufferLines how many lines may wait for the output, before further ones are dropped
+   */
+  public static void configure(Level newLevel, boolean json, int bufferLines) {
+    AsyncAppender previous = appender;
+    appender = new AsyncAppender(System.out, json, bufferLines);
+    level = newLevel;
+    previous.close();
+  }
+
+  public static boolean isEnabled(Level messageLevel) {
+    return messageLevel.compareTo(level) >= 0;
+  }
+
+  public static void debug(Supplier<String> message) {
+    if (isEnabled(Level.DEBUG)) {
+      append(Level.DEBUG, message.get(), null);
+    }
+  }
+
+  public static void info(String message) {
+    if (isEnabled(Level.INFO)) {
+      append(Level.INFO, message, null);
+    }
+  }
+
+  public static void info(Supplier<String> message) {
+    if (isEnabled(Level.INFO)) {
+      append(Level.INFO, message.get(), null);
+    }
+  }
+
+  public static void warn(String message) {
+    if (isEnabled(Level.WARN)) {
+      append(Level.WARN, message, null);
+    }
+  }
+
+  public static void error(String message, Throwable error) {
+    if (isEnabled(Level.ERROR)) {
+      append(Level.ERROR, message, error);
+    }
+  }
+
+  /**
+   * Blocks until everything that was logged so far was written.
+   */
+  public static void flush() {
+    appender.flush();
+  }
+
+  private static void append(Level messageLevel, String message, Throwable error) {
+    appender.append(new AsyncAppender.Entry(System.currentTimeMillis(), messageLevel,
+        threadName(), message, error));
+  }
+
+  private static String threadName() {
+    Thread thread = Thread.currentThread();
+    //virtual threads have no name
+    return thread.getName().isEmpty() ? "thread-" + thread.getId() : thread.getName();
+  }
+}
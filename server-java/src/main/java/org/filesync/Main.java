@@ -1,18 +1,14 @@
 package org.filesync;
 
 import java.io.IOException;
-import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
-import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
 
@@ -25,59 +21,90 @@ public class Main {
     }
 
     EnvVars vars = new EnvVars(args);
+    Log.configure(vars.logLevel, vars.logJson, vars.logBufferLines);
 
     CopyOnWriteArrayList<Socket> clients = new CopyOnWriteArrayList<>();
-    List<String> filePaths = new ArrayList<>();
+    //the catalog of the last run is served right away, the folder is scanned in the background
+    FileCatalog catalog = new FileCatalog(Paths.get(vars.stateFolder));
+    PartialUploads partialUploads = new PartialUploads(Paths.get(vars.stateFolder));
+    List<String> filePaths;
     try {
-      traverseFolder(vars, Paths.get(vars.pathToFolder), filePaths);
+      Files.createDirectories(Paths.get(vars.stateFolder));
+      filePaths = catalog.load();
+      partialUploads.load();
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
-    System.out.println("Server is started with the following found files: " + filePaths);
-    SharedSyncState sharedSyncState = new SharedSyncState(clients,
-        Collections.synchronizedList(filePaths), vars.pathToFolder);
+    Log.info("Server is started with " + filePaths.size() + " files from the catalog.");
+    ContentIndex contentIndex = createContentIndex(vars);
+    scheduleSaving(contentIndex, catalog);
+    SharedSyncState sharedSyncState = new SharedSyncState(clients, filePaths, vars.pathToFolder,
+        contentIndex, catalog, partialUploads, new ByteBudget(vars.maxInFlightBytes),
+        vars.queueCapacity);
     SyncManager syncManager = new SyncManager(sharedSyncState, vars);
+    sharedSyncState.metrics.registerJmx();
+    if (vars.metricsPort > 0) {
+      try {
+        new MetricsEndpoint(sharedSyncState.metrics, vars.metricsPort).start();
+      } catch (IOException e) {
+        Log.error("Could not start the metrics endpoint", e);
+      }
+    }
+    new FolderWatcher(sharedSyncState, syncManager, vars).start();
 
-    try (ServerSocket serverSocket = new ServerSocket(vars.serverPort)) {
-      syncManager.start();
+    if (vars.transport.equals(EnvVars.TRANSPORT_SELECTOR)) {
+      try (SelectorTransport transport = new SelectorTransport(vars, syncManager)) {
+        syncManager.startWriting();
+        transport.run();
+      } catch (IOException e) {
+        Log.error("Selector transport failed", e);
+      }
+      return;
+    }
+    if (vars.transport.equals(EnvVars.TRANSPORT_VIRTUAL)) {
+      try (VirtualThreadTransport transport = new VirtualThreadTransport(vars, syncManager)) {
+        syncManager.startWriting();
+        transport.run();
+      } catch (IOException e) {
+        Log.error("Virtual thread transport failed", e);
+      }
+      return;
+    }
 
-      while (true) {
-        try {
-          Socket clientSocket = serverSocket.accept();
-          String clientId = UUID.randomUUID().toString();
-          System.out.println("Client " + clientId + " connected: " + clientSocket.getInetAddress());
-          byte[] serverApiKeyBytes = vars.apiKey.getBytes();
-          byte[] clientApiKeyBytes = clientSocket.getInputStream()
-              .readNBytes(vars.apiKey.getBytes().length);
-          if (!Arrays.equals(serverApiKeyBytes, clientApiKeyBytes)) {
-            clientSocket.close();
-            System.out.println("Client " + clientId + "invalid key detected.");
-          } else {
-            System.out.println("Client " + clientId + " key validated.");
-            sharedSyncState.clientIds.put(clientSocket, clientId);
-            clients.add(clientSocket);
-          }
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+    try (BlockingTransport transport = new BlockingTransport(vars, sharedSyncState)) {
+      syncManager.start();
+      transport.run();
+    } catch (IOException e) {
+      Log.error("Blocking transport failed", e);
+    }
+  }
 
-      }
+  private static ContentIndex createContentIndex(EnvVars vars) {
+    ContentIndex contentIndex = new ContentIndex(vars.pathToFolder, Paths.get(vars.stateFolder));
+    try {
+      contentIndex.load();
     } catch (IOException e) {
-      e.printStackTrace();
+      throw new RuntimeException(e);
     }
+    return contentIndex;
   }
 
-  private static void traverseFolder(EnvVars vars, Path folderPath, List<String> filePaths)
-      throws IOException {
-    try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(folderPath)) {
-      for (Path path : directoryStream) {
-        if (Files.isRegularFile(path)) {
-          filePaths.add(path.toString().substring(vars.pathToFolder.length() + 1));
-        } else if (Files.isDirectory(path)) {
-          traverseFolder(vars, path, filePaths);
-        }
+  private static void scheduleSaving(ContentIndex contentIndex, FileCatalog catalog) {
+    Runnable save = () -> {
+      try {
+        contentIndex.saveIfChanged();
+      } catch (IOException e) {
+        Log.error("Could not save the content index", e);
       }
-    }
+      catalog.flush();
+    };
+    ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+      Thread thread = new Thread(runnable, "state-saver");
+      thread.setDaemon(true);
+      return thread;
+    });
+    saver.scheduleWithFixedDelay(save, 5, 5, TimeUnit.SECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(save));
   }
 
   private static void printHelp() {
@@ -95,6 +122,54 @@ public class Main {
         "  API_KEY         : The API key to compare with clients for authentication. Debug value: SUPER-SECRET-API-KEY");
     System.out.println(
         "  CHUNK_SIZE      : The chunk size in bytes for sending file parts. Debug value: 10000000");
+    System.out.println(
+        "  TRANSPORT       : Optional. 'selector' serves all clients from one event loop, 'blocking' polls every socket, 'virtual' gives every client and transfer its own virtual thread (Java 21+). Default: selector");
+    System.out.println(
+        "  ZERO_COPY       : Optional. Send file parts with FileChannel.transferTo instead of copying them through the heap. Default: true");
+    System.out.println(
+        "  LAGGARD_POLICY  : Optional. What happens to a client that falls behind a broadcast: 'drop' lets it continue on its own, 'disconnect' closes it, 'spill' buffers its chunks on disk. Default: drop");
+    System.out.println(
+        "  FANOUT_QUEUE_CHUNKS : Optional. How many chunks of a broadcast may wait for one client before it counts as falling behind. Default: 4");
+    System.out.println(
+        "  WRITE_CONCURRENCY : Optional. How many clients may be written to at the same time. Default: 32, unlimited with TRANSPORT=virtual");
+    System.out.println(
+        "  WRITE_BATCH_FILES : Optional. How many files of a single client request are sent before other requests of that client get a turn. Default: 32");
+    System.out.println(
+        "  WRITE_COALESCE_BYTES : Optional. Size of the buffer that collects small frames per client before sending them. Default: 65536");
+    System.out.println(
+        "  WRITE_COALESCE_MILLIS : Optional. How long small frames may wait in that buffer at most. Default: 10");
+    System.out.println(
+        "  STATE_FOLDER : Optional. Where the server keeps its own data, like the file catalog and the content index. Must not be inside SERVER_FOLDER. Default: SERVER_FOLDER + \"-state\"");
+    System.out.println(
+        "  SCAN_THREADS : Optional. How many threads scan SERVER_FOLDER. Default: number of processors");
+    System.out.println(
+        "  WATCH : Optional. Send files that are created or modified directly in SERVER_FOLDER while the server runs. Default: true");
+    System.out.println(
+        "  WATCH_DEBOUNCE_MILLIS : Optional. How long a changed file has to stay unchanged before it is sent. Default: 200");
+    System.out.println(
+        "  RESCAN_SECONDS : Optional. How often SERVER_FOLDER is scanned completely, in case the watcher missed changes. 0 rescans only when events were lost. Default: 300");
+    System.out.println(
+        "  STREAMS_PER_CLIENT : Optional. How many files are sent at once to a client that negotiated streams. Default: 8");
+    System.out.println(
+        "  FSYNC_INTERVAL_MILLIS : Optional. How long received files are collected before they are forced to disk together. -1 never forces them. Default: 10");
+    System.out.println(
+        "  CHUNK_CACHE_BYTES : Optional. Size of the cache of recently sent chunks, which clients that want the same files share instead of reading them again. 0 disables it. Default: 134217728");
+    System.out.println(
+        "  CHUNK_CACHE_OFF_HEAP : Optional. Keep the cached chunks in direct memory instead of the heap. Default: false");
+    System.out.println(
+        "  MAX_IN_FLIGHT_BYTES : Optional. Memory that all transfers together may hold for their buffers at once, further transfers wait for it. 0 disables the limit. Default: 268435456");
+    System.out.println(
+        "  QUEUE_CAPACITY  : Optional. Requests that can be queued for the writing loop, before readers and the folder watcher wait. Default: 1024");
+    System.out.println(
+        "  METRICS_PORT : Optional. Local port that serves the metrics as text under /metrics. They are always available through JMX. 0 disables the port. Default: 0");
+    System.out.println(
+        "  MMAP_THRESHOLD_BYTES : Optional. Files of at least this size are broadcast from a memory mapping instead of through the chunk cache. 0 disables it. Default: 268435456");
+    System.out.println(
+        "  LOG_LEVEL : Optional. Least severe level that is logged: debug, info, warn or error. Debug logs every frame and all paths. Default: info");
+    System.out.println(
+        "  LOG_FORMAT : Optional. text or json, which writes every line as a JSON object. Default: text");
+    System.out.println(
+        "  LOG_BUFFER_LINES : Optional. Lines that can wait to be written, further ones are dropped so that logging never slows down the server. Default: 8192");
 
     System.exit(0);
   }
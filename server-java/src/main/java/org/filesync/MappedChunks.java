@@ -0,0 +1,158 @@
+package org.filesync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+/**
+ * Chunks of a large file as views of a memory mapping, so that they are sent straight from the
+ * page cache instead of being read into buffers. Clients that get the same file share its pages.
+ * <p>
+ * A single mapping cannot be larger than 2 GB, so the file is mapped in windows of whole chunks,
+ * which slide along as the chunks are read. A window is unmapped by the garbage collector once no
+ * chunk of it is referenced anymore.
+ * <p>
+ * The server itself never truncates a file while it is mapped, as it replaces files instead of
+ * rewriting them, but someone else might. Reading a mapped page past the new end of the file then
+ * raises an {@link InternalError} instead of an {@link IOException}, in compiled code even some
+ * time after the read. So mapped chunks are only read through {@link #writeFrame} and
+ * {@link #compress}, which check that the file was not truncated before they read a chunk and turn
+ * the error into an IOException, if it was truncated right in between. Callers that read mapped
+ * chunks on a thread of their own treat a late InternalError as a failed transfer as well.
+ */
+class MappedChunks {
+
+  static final long MAX_WINDOW_BYTES = 1L << 30;
+
+  private final Path path;
+  private final FileChannel file;
+  private final long size;
+  //identifies the mapped file, a replaced file at the path does not affect the mapping
+  private final Object fileKey;
+  private final int chunkSize;
+  private final long windowSize;
+  private MappedByteBuffer window;
+  private long windowStart = 0;
+
+  /**
+   * @param path of the file, to check it for truncation while its chunks are sent, which might be
+   *             after the channel was closed
+   */
+  MappedChunks(Path path, FileChannel file, int chunkSize) throws IOException {
+    this(path, file, chunkSize, MAX_WINDOW_BYTES);
+  }
+
+  MappedChunks(Path path, FileChannel file, int chunkSize, long maxWindowBytes)
+      throws IOException {
+    this.path = path;
+    this.file = file;
+    this.size = file.size();
+    this.fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    this.chunkSize = chunkSize;
+    this.windowSize = Math.max(1, maxWindowBytes / chunkSize) * chunkSize;
+  }
+
+  /**
+   * @return read-only view of the chunk that starts at the position, with at most chunkSize bytes.
+   * It is shorter than chunkSize only at the end of the file.
+   */
+  public ByteBuffer chunk(long position) throws IOException {
+    int length = (int) Math.min(chunkSize, Math.max(0, size - position));
+    if (length == 0) {
+      return ByteBuffer.allocate(0);
+    }
+    if (window == null || position < windowStart
+        || position + length > windowStart + window.capacity()) {
+      windowStart = position - position % windowSize;
+      if (position + length > windowStart + windowSize) {
+        //only chunks that do not start at a multiple of the chunk size cross windows
+        windowStart = position;
+      }
+      window = file.map(FileChannel.MapMode.READ_ONLY, windowStart,
+          Math.min(windowSize, size - windowStart));
+    }
+    ByteBuffer chunk = window.duplicate();
+    chunk.position((int) (position - windowStart)).limit(chunk.position() + length);
+    return chunk.slice();
+  }
+
+  /**
+   * Writes a chunk of this file as frame and consumes it.
+   */
+  public void writeFrame(byte syncOpCode, ByteBuffer chunk, OutputStream outputStream)
+      throws IOException {
+    checkNotTruncated();
+    try {
+      SyncFrame.writeFrame(syncOpCode, chunk, outputStream);
+    } catch (InternalError e) {
+      throw truncated(e);
+    }
+  }
+
+  /**
+   * Compresses a chunk of this file like {@link ChunkCompression#compress}. Native zlib reading
+   * the mapping would crash the server instead of failing, so it reads copies: first one of the
+   * sample and only if that shrinks one of the whole chunk.
+   *
+   * @param chunk is not consumed
+   */
+  public byte[] compress(ByteBuffer chunk) throws IOException {
+    int length = chunk.remaining();
+    if (length < ChunkCompression.MIN_PART_SIZE) {
+      return null;
+    }
+    checkNotTruncated();
+    ByteBuffer copy = BufferPool.SHARED.acquire(length);
+    try {
+      if (length > ChunkCompression.SAMPLE_SIZE) {
+        copy.limit(ChunkCompression.SAMPLE_SIZE);
+        copy(chunk, copy);
+        if (!ChunkCompression.sampleShrinks(copy)) {
+          return null;
+        }
+        copy.clear().limit(length);
+      }
+      copy(chunk, copy);
+      return ChunkCompression.compressWhole(copy);
+    } finally {
+      BufferPool.SHARED.release(copy);
+    }
+  }
+
+  private void checkNotTruncated() throws IOException {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      //deleted, the mapped file stays intact until it is unmapped
+      return;
+    }
+    if (Objects.equals(attributes.fileKey(), fileKey) && attributes.size() < size) {
+      throw new IOException("Mapped file was truncated while it was being sent: " + path);
+    }
+  }
+
+  /**
+   * Fills the target from the start of the chunk and flips it.
+   */
+  private static void copy(ByteBuffer chunk, ByteBuffer target) throws IOException {
+    ByteBuffer source = chunk.duplicate();
+    source.limit(source.position() + target.remaining());
+    try {
+      target.put(source).flip();
+    } catch (InternalError e) {
+      throw truncated(e);
+    }
+  }
+
+  private static IOException truncated(InternalError e) {
+    return new IOException("Mapped file was truncated while it was being sent", e);
+  }
+}
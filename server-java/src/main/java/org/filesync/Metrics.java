@@ -0,0 +1,341 @@
+package org.filesync;
+
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters, latency histograms and gauges of the server, overall and per client.
+ * <p>
+ * Counters are {@link LongAdder}s and histograms count into fixed buckets, so recording never
+ * takes a lock on the hot paths. Gauges are only evaluated when someone looks at them. Everything
+ * can be read as plain text, see {@link MetricsEndpoint}, and through JMX, where every connected
+ * client is an MBean of its own.
+ */
+class Metrics {
+
+  static final String JMX_DOMAIN = "org.filesync";
+
+  /**
+   * Histogram with power of two buckets, from 1 up to 2^(BUCKETS - 2) and one for everything
+   * above.
+   */
+  static class Histogram {
+
+    static final int BUCKETS = 20;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long value) {
+      value = Math.max(0, value);
+      int bucket = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+      counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+      sum.add(value);
+    }
+
+    public void recordMillisSince(long startNanos) {
+      record((System.nanoTime() - startNanos) / 1_000_000);
+    }
+
+    /**
+     * @return the upper bound of the bucket, Long.MAX_VALUE for the last one
+     */
+    static long upperBound(int bucket) {
+      return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    public long count() {
+      long count = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        count += counts.get(i);
+      }
+      return count;
+    }
+
+    public long sum() {
+      return sum.sum();
+    }
+
+    /**
+     * @return upper bound of the bucket that contains the quantile, 0 without values
+     */
+    public long quantile(double quantile) {
+      long count = count();
+      long rank = (long) Math.ceil(quantile * count);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts.get(i);
+        if (seen >= rank && seen > 0) {
+          return upperBound(i);
+        }
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * Traffic of one connected client.
+   */
+  static class Client {
+
+    public final String clientId;
+    public final LongAdder bytesReceived = new LongAdder();
+    public final LongAdder bytesSent = new LongAdder();
+    public final LongAdder framesReceived = new LongAdder();
+    public final LongAdder framesSent = new LongAdder();
+    private final Metrics metrics;
+
+    Client(String clientId, Metrics metrics) {
+      this.clientId = clientId;
+      this.metrics = metrics;
+    }
+
+    public void frameReceived(long frameBytes) {
+      framesReceived.increment();
+      bytesReceived.add(frameBytes);
+      metrics.framesReceived.increment();
+      metrics.bytesReceived.add(frameBytes);
+    }
+
+    public void frameSent() {
+      framesSent.increment();
+      metrics.framesSent.increment();
+    }
+
+    public void bytesSent(long bytes) {
+      bytesSent.add(bytes);
+      metrics.bytesSent.add(bytes);
+    }
+
+    Map<String, LongSupplier> values() {
+      Map<String, LongSupplier> values = new LinkedHashMap<>();
+      values.put("bytes_received", bytesReceived::sum);
+      values.put("bytes_sent", bytesSent::sum);
+      values.put("frames_received", framesReceived::sum);
+      values.put("frames_sent", framesSent::sum);
+      return values;
+    }
+  }
+
+  public final LongAdder bytesReceived = new LongAdder();
+  public final LongAdder bytesSent = new LongAdder();
+  public final LongAdder framesReceived = new LongAdder();
+  public final LongAdder framesSent = new LongAdder();
+  public final LongAdder filesReceived = new LongAdder();
+  //from the path of an upload until it was committed
+  public final Histogram uploadMillis = new Histogram();
+  //from the dispatch of a write request until it was written to the client
+  public final Histogram writeMillis = new Histogram();
+
+  private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+  private final Map<Socket, Client> clients = new ConcurrentHashMap<>();
+  //set once the metrics are registered, clients are registered as they come and go
+  private volatile MBeanServer mBeanServer;
+
+  /**
+   * Adds a value that is read whenever the metrics are read, like the depth of a queue.
+   */
+  public void gauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  /**
+   * @return the traffic of the client, which is registered on first use
+   */
+  public Client client(Socket socket, String clientId) {
+    return clients.computeIfAbsent(socket, (newSocket) -> {
+      Client client = new Client(clientId, this);
+      MBeanServer server = mBeanServer;
+      if (server != null && clientId != null) {
+        register(server, clientName(clientId), client.values());
+      }
+      return client;
+    });
+  }
+
+  public void removeClient(Socket socket) {
+    Client client = clients.remove(socket);
+    MBeanServer server = mBeanServer;
+    if (client != null && server != null && client.clientId != null) {
+      try {
+        server.unregisterMBean(clientName(client.clientId));
+      } catch (JMException e) {
+        Log.error("Could not unregister the metrics of client " + client.clientId, e);
+      }
+    }
+  }
+
+  /**
+   * Registers the server wide metrics and from now on every client as MBeans of the platform
+   * server. Gauges that are added afterwards are only part of the text.
+   */
+  public void registerJmx() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      register(server, new ObjectName(JMX_DOMAIN + ":type=Metrics"), values());
+    } catch (JMException e) {
+      Log.error("Could not register the metrics", e);
+      return;
+    }
+    mBeanServer = server;
+    for (Client client : clients.values()) {
+      if (client.clientId != null) {
+        register(server, clientName(client.clientId), client.values());
+      }
+    }
+  }
+
+  private static ObjectName clientName(String clientId) {
+    try {
+      return new ObjectName(JMX_DOMAIN + ":type=Client,id=" + ObjectName.quote(clientId));
+    } catch (JMException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private static void register(MBeanServer server, ObjectName name,
+      Map<String, LongSupplier> values) {
+    try {
+      server.registerMBean(new ValuesMBean(values), name);
+    } catch (JMException e) {
+      Log.error("Could not register the metrics " + name, e);
+    }
+  }
+
+  /**
+   * @return all server wide values by name, histograms as count, sum and quantiles
+   */
+  Map<String, LongSupplier> values() {
+    Map<String, LongSupplier> values = new LinkedHashMap<>();
+    values.put("bytes_received", bytesReceived::sum);
+    values.put("bytes_sent", bytesSent::sum);
+    values.put("frames_received", framesReceived::sum);
+    values.put("frames_sent", framesSent::sum);
+    values.put("files_received", filesReceived::sum);
+    addHistogram(values, "upload_millis", uploadMillis);
+    addHistogram(values, "write_millis", writeMillis);
+    List<String> gaugeNames = new ArrayList<>(gauges.keySet());
+    gaugeNames.sort(null);
+    for (String name : gaugeNames) {
+      values.put(name, gauges.get(name));
+    }
+    return values;
+  }
+
+  private static void addHistogram(Map<String, LongSupplier> values, String name,
+      Histogram histogram) {
+    values.put(name + "_count", histogram::count);
+    values.put(name + "_sum", histogram::sum);
+    values.put(name + "_p50", () -> histogram.quantile(0.5));
+    values.put(name + "_p99", () -> histogram.quantile(0.99));
+  }
+
+  /**
+   * Writes all metrics in the Prometheus text format: one "name value" line per value, per client
+   * values labeled with the client id and histograms as cumulative buckets.
+   */
+  public void writeText(StringBuilder text) {
+    for (Map.Entry<String, LongSupplier> value : values().entrySet()) {
+      if (value.getKey().endsWith("_p50") || value.getKey().endsWith("_p99")) {
+        continue;
+      }
+      line(text, value.getKey(), "", value.getValue().getAsLong());
+    }
+    writeBuckets(text, "upload_millis", uploadMillis);
+    writeBuckets(text, "write_millis", writeMillis);
+    for (Client client : clients.values()) {
+      String labels = "{client=\"" + client.clientId + "\"}";
+      for (Map.Entry<String, LongSupplier> value : client.values().entrySet()) {
+        line(text, "client_" + value.getKey(), labels, value.getValue().getAsLong());
+      }
+    }
+  }
+
+  private static void writeBuckets(StringBuilder text, String name, Histogram histogram) {
+    long cumulative = 0;
+    for (int i = 0; i < Histogram.BUCKETS; i++) {
+      cumulative += histogram.counts.get(i);
+      long bound = Histogram.upperBound(i);
+      String le = bound == Long.MAX_VALUE ? "+Inf" : String.valueOf(bound);
+      line(text, name + "_bucket", "{le=\"" + le + "\"}", cumulative);
+    }
+  }
+
+  private static void line(StringBuilder text, String name, String labels, long value) {
+    text.append("filesync_").append(name).append(labels).append(' ').append(value).append('\n');
+  }
+
+  /**
+   * Read-only MBean, whose attributes are the given values.
+   */
+  private static class ValuesMBean implements DynamicMBean {
+
+    private final Map<String, LongSupplier> values;
+
+    ValuesMBean(Map<String, LongSupplier> values) {
+      this.values = values;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      LongSupplier value = values.get(attribute);
+      if (value == null) {
+        throw new AttributeNotFoundException(attribute);
+      }
+      return value.getAsLong();
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      AttributeList list = new AttributeList();
+      for (String attribute : attributes) {
+        LongSupplier value = values.get(attribute);
+        if (value != null) {
+          list.add(new Attribute(attribute, value.getAsLong()));
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+      throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      MBeanAttributeInfo[] attributes = values.keySet().stream()
+          .map((name) -> new MBeanAttributeInfo(name, "long", name, true, false, false))
+          .toArray(MBeanAttributeInfo[]::new);
+      return new MBeanInfo(ValuesMBean.class.getName(), "FileSync metrics", attributes, null,
+          null, null);
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package org.filesync;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the {@link Metrics} as plain text on /metrics, for scrapers like Prometheus. Only
+ * listens on the loopback interface, as the metrics are not protected by the api key.
+ */
+class MetricsEndpoint {
+
+  private final Metrics metrics;
+  private final HttpServer server;
+
+  MetricsEndpoint(Metrics metrics, int port) throws IOException {
+    this.metrics = metrics;
+    this.server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/metrics", this::handle);
+  }
+
+  public void start() {
+    server.start();
+    Log.info("Serving metrics on http://" + server.getAddress().getHostString() + ":"
+        + server.getAddress().getPort() + "/metrics");
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!exchange.getRequestMethod().equals("GET")) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      StringBuilder text = new StringBuilder();
+      metrics.writeText(text);
+      byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream responseBody = exchange.getResponseBody()) {
+        responseBody.write(body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+}
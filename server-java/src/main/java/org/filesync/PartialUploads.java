@@ -0,0 +1,193 @@
+package org.filesync;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Uploads that broke off, kept so that the client can continue them instead of starting over.
+ * <p>
+ * Clients that negotiated {@link Capabilities#RESUME} upload into "path.part" in the partial
+ * folder of the state folder, which is committed to the server folder once the upload is
+ * complete.
+ * The confirmed length of every partial file is kept in a tab separated file. A length is only
+ * recorded after the bytes were forced to disk, so after a crash the record never claims more than
+ * the partial file holds.
+ */
+class PartialUploads {
+
+  static final String RECORDS_FILE_NAME = "partial-uploads.tsv";
+  static final String PARTIAL_FOLDER_NAME = "partial";
+  //how many received bytes may be lost in a crash, before the offset is confirmed again
+  static final long CHECKPOINT_BYTES = 16 * 1024 * 1024;
+
+  private final Path partialFolder;
+  private final Path recordsFile;
+  private final Map<String, Long> confirmedOffsets = new ConcurrentHashMap<>();
+
+  /**
+   * @param stateFolder where partial uploads are kept, null to disable resuming
+   */
+  PartialUploads(Path stateFolder) {
+    this.partialFolder = stateFolder == null ? null : stateFolder.resolve(PARTIAL_FOLDER_NAME);
+    this.recordsFile = stateFolder == null ? null : stateFolder.resolve(RECORDS_FILE_NAME);
+  }
+
+  public boolean isEnabled() {
+    return partialFolder != null;
+  }
+
+  /**
+   * Loads the records. Records whose partial file is gone are dropped.
+   */
+  public void load() throws IOException {
+    if (recordsFile == null || !Files.exists(recordsFile)) {
+      return;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(recordsFile, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int offsetStart = line.lastIndexOf('\t');
+        if (offsetStart <= 0) {
+          continue;
+        }
+        String path = line.substring(0, offsetStart);
+        if (Files.isRegularFile(partialFile(path))) {
+          confirmedOffsets.put(path, Long.parseLong(line.substring(offsetStart + 1)));
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the confirmed length of the partial upload, -1 if there is none
+   */
+  public long confirmedOffset(String path) {
+    return confirmedOffsets.getOrDefault(path, -1L);
+  }
+
+  /**
+   * Opens the partial file to continue writing at the offset. Everything after the offset is
+   * discarded.
+   */
+  public FileChannel open(String path, long offset) throws IOException {
+    Path partialFile = partialFile(path);
+    Files.createDirectories(partialFile.getParent());
+    FileChannel channel = FileChannel.open(partialFile, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    try {
+      if (channel.size() < offset) {
+        throw new IOException("Partial upload of " + path + " is shorter than " + offset);
+      }
+      channel.truncate(offset);
+      channel.position(offset);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  /**
+   * Wraps the partial file, so that the written bytes are confirmed every
+   * {@link #CHECKPOINT_BYTES}.
+   */
+  public WritableByteChannel checkpointing(String path, FileChannel channel) {
+    return new WritableByteChannel() {
+      private long sinceCheckpoint = 0;
+
+      @Override
+      public int write(ByteBuffer source) throws IOException {
+        int length = channel.write(source);
+        sinceCheckpoint += length;
+        if (sinceCheckpoint >= CHECKPOINT_BYTES) {
+          checkpoint(path, channel);
+          sinceCheckpoint = 0;
+        }
+        return length;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return channel.isOpen();
+      }
+
+      @Override
+      public void close() throws IOException {
+        channel.close();
+      }
+    };
+  }
+
+  /**
+   * Confirms everything that was written to the partial file so far.
+   */
+  public void checkpoint(String path, FileChannel channel) throws IOException {
+    channel.force(false);
+    confirmedOffsets.put(path, channel.size());
+    save();
+  }
+
+  /**
+   * Confirms the partial file of an upload that broke off, so that it can be resumed later.
+   */
+  public void keep(String path) {
+    try (FileChannel channel = FileChannel.open(partialFile(path), StandardOpenOption.WRITE)) {
+      checkpoint(path, channel);
+      Log.info("Kept " + channel.size() + " bytes of the upload of " + path + " for resuming.");
+    } catch (IOException e) {
+      Log.error("Could not keep the upload of " + path, e);
+      remove(path);
+    }
+  }
+
+  /**
+   * Adds the first offset bytes of the partial file to the digest.
+   */
+  public void digestPrefix(String path, long offset, MessageDigest digest) throws IOException {
+    ContentIndex.digestPrefix(partialFile(path), offset, digest);
+  }
+
+  /**
+   * Drops the partial upload, e.g. because the file was uploaded completely.
+   */
+  public void remove(String path) {
+    if (!isEnabled()) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(partialFile(path));
+      if (confirmedOffsets.remove(path) != null) {
+        save();
+      }
+    } catch (IOException e) {
+      Log.error("Could not remove the upload of " + path, e);
+    }
+  }
+
+  public Path partialFile(String path) {
+    return partialFolder.resolve(path + ".part");
+  }
+
+  private synchronized void save() throws IOException {
+    Path tempFile = recordsFile.resolveSibling(RECORDS_FILE_NAME + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, Long> entry : confirmedOffsets.entrySet()) {
+        writer.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+      }
+    }
+    Files.move(tempFile, recordsFile, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+}
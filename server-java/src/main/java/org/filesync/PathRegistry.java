@@ -0,0 +1,176 @@
+package org.filesync;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * State of every path the server knows about, in a concurrent hash map instead of lists behind
+ * one lock. A path is either being uploaded or available. Claiming a path for an upload is atomic,
+ * so two clients can never upload the same path and uploads of different paths never wait for
+ * each other.
+ */
+class PathRegistry {
+
+  enum PathState {
+    UPLOADING,
+    AVAILABLE
+  }
+
+  private final Map<String, PathState> states = new ConcurrentHashMap<>();
+  private final Set<String> availableView = new StateView(PathState.AVAILABLE);
+  private final Set<String> uploadingView = new StateView(PathState.UPLOADING);
+
+  PathRegistry(Collection<String> availablePaths) {
+    for (String path : availablePaths) {
+      states.put(path, PathState.AVAILABLE);
+    }
+  }
+
+  /**
+   * @return false, if the path is already available or being uploaded by another client
+   */
+  public boolean claimForUpload(String path) {
+    return states.putIfAbsent(path, PathState.UPLOADING) == null;
+  }
+
+  public void completeUpload(String path) {
+    states.replace(path, PathState.UPLOADING, PathState.AVAILABLE);
+  }
+
+  public void abortUpload(String path) {
+    states.remove(path, PathState.UPLOADING);
+  }
+
+  /**
+   * Adds a path that was found in the server folder.
+   *
+   * @return false, if the path is already known, including paths that are being uploaded
+   */
+  public boolean addAvailable(String path) {
+    return states.putIfAbsent(path, PathState.AVAILABLE) == null;
+  }
+
+  public boolean removeAvailable(String path) {
+    return states.remove(path, PathState.AVAILABLE);
+  }
+
+  public boolean isAvailable(String path) {
+    return states.get(path) == PathState.AVAILABLE;
+  }
+
+  /**
+   * @return the state of the path, null if it is unknown
+   */
+  public PathState state(String path) {
+    return states.get(path);
+  }
+
+  /**
+   * Live view of the available paths. Iterating it is weakly consistent, like the map itself.
+   */
+  public Set<String> available() {
+    return availableView;
+  }
+
+  /**
+   * Live view of the paths that are being uploaded.
+   */
+  public Set<String> uploading() {
+    return uploadingView;
+  }
+
+  private class StateView extends AbstractSet<String> {
+
+    private final PathState state;
+
+    StateView(PathState state) {
+      this.state = state;
+    }
+
+    @Override
+    public boolean contains(Object path) {
+      return states.get(path) == state;
+    }
+
+    @Override
+    public boolean add(String path) {
+      return states.putIfAbsent(path, state) == null;
+    }
+
+    @Override
+    public boolean remove(Object path) {
+      return states.remove(path, state);
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super String> filter) {
+      boolean removed = false;
+      for (Map.Entry<String, PathState> entry : states.entrySet()) {
+        if (entry.getValue() == state && filter.test(entry.getKey())) {
+          removed |= states.remove(entry.getKey(), state);
+        }
+      }
+      return removed;
+    }
+
+    @Override
+    public int size() {
+      int size = 0;
+      for (PathState pathState : states.values()) {
+        if (pathState == state) {
+          size++;
+        }
+      }
+      return size;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      Iterator<Map.Entry<String, PathState>> entries = states.entrySet().iterator();
+      return new Iterator<>() {
+        private String next = advance();
+        private String last;
+
+        private String advance() {
+          while (entries.hasNext()) {
+            Map.Entry<String, PathState> entry = entries.next();
+            if (entry.getValue() == state) {
+              return entry.getKey();
+            }
+          }
+          return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+          return next != null;
+        }
+
+        @Override
+        public String next() {
+          if (next == null) {
+            throw new NoSuchElementException();
+          }
+          last = next;
+          next = advance();
+          return last;
+        }
+
+        @Override
+        public void remove() {
+          if (last == null) {
+            throw new IllegalStateException();
+          }
+          states.remove(last, state);
+          last = null;
+        }
+      };
+    }
+  }
+}
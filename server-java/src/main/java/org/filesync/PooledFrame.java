@@ -0,0 +1,48 @@
+package org.filesync;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incoming frame, read by a {@link FrameReader}, whose payload lives in a buffer of the
+ * {@link BufferPool}. Unlike {@link SyncFrame}, the payload is only valid until the frame is
+ * closed, which also gives its bytes back to the in-flight {@link ByteBudget}.
+ */
+class PooledFrame implements AutoCloseable {
+
+  public final byte syncOpCode;
+  private final BufferPool bufferPool;
+  private final ByteBudget budget;
+  private final long budgetedBytes;
+  private ByteBuffer payload;
+
+  PooledFrame(byte syncOpCode, ByteBuffer payload, BufferPool bufferPool, ByteBudget budget,
+      long budgetedBytes) {
+    this.syncOpCode = syncOpCode;
+    this.payload = payload;
+    this.bufferPool = bufferPool;
+    this.budget = budget;
+    this.budgetedBytes = budgetedBytes;
+  }
+
+  /**
+   * View of the payload, which can be handed to channels directly. Consuming it moves its
+   * position, like with any other buffer.
+   */
+  public ByteBuffer payload() {
+    return payload;
+  }
+
+  public String payloadAsString() {
+    return StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+  }
+
+  @Override
+  public void close() {
+    if (payload != null) {
+      bufferPool.release(payload);
+      payload = null;
+      budget.release(budgetedBytes);
+    }
+  }
+}
@@ -4,41 +4,76 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 class ReadManager {
 
+  //marks a line of an INIT_V2 payload as a file that the client received only partially
+  private static final String PARTIAL_SUFFIX = "\tpartial";
+  //shared files of an INIT_V2 are hashed in tasks of this many files
+  static final int INIT_HASH_BATCH_FILES = 64;
+
   private final SharedSyncState sharedSyncState;
-  private final ThreadPoolExecutor workerPool;
+  private final ExecutorService workerPool;
   private final Consumer<Socket> closeCallback;
+  private final Consumer<Socket> readFinishedCallback;
 
   private final ReadManagerIO ioAdapter;
 
   public final Map<Socket, InputStream> inputStreamMap = Collections.synchronizedMap(
       new HashMap<>());
+  //one reader per connection, it only holds a pooled buffer while a frame is read
+  public final Map<Socket, FrameReader> frameReaders = new ConcurrentHashMap<>();
   public final List<Socket> readInProgress = Collections.synchronizedList(new ArrayList<>());
-  public final List<String> fileReadInProgress = Collections.synchronizedList(new ArrayList<>());
+  //live view of the paths in the registry that are still being uploaded
+  public final Set<String> fileReadInProgress;
+  //streams that clients opened with STREAM_FILE_PATH and did not end yet, by stream id
+  public final Map<Socket, Map<Integer, IncomingStream>> incomingStreams =
+      new ConcurrentHashMap<>();
 
-  public ReadManager(SharedSyncState sharedSyncState, ThreadPoolExecutor workerPool,
+  public ReadManager(SharedSyncState sharedSyncState, ExecutorService workerPool,
       Consumer<Socket> closeCallback, ReadManagerIO ioAdapter) {
+    this(sharedSyncState, workerPool, closeCallback, ioAdapter, (client) -> {
+    });
+  }
+
+  /**
+   * @param readFinishedCallback is called after a read was handled successfully, so that an
+   *                             event-driven transport can check for already buffered frames
+   */
+  public ReadManager(SharedSyncState sharedSyncState, ExecutorService workerPool,
+      Consumer<Socket> closeCallback, ReadManagerIO ioAdapter,
+      Consumer<Socket> readFinishedCallback) {
     this.sharedSyncState = sharedSyncState;
     this.workerPool = workerPool;
     this.closeCallback = closeCallback;
     this.ioAdapter = ioAdapter;
+    this.readFinishedCallback = readFinishedCallback;
+    this.fileReadInProgress = sharedSyncState.pathRegistry.uploading();
   }
 
   public interface ReadManagerIO {
@@ -47,12 +82,52 @@ class ReadManager {
 
     OutputStream newOutputStream(Path path) throws IOException;
 
+    /**
+     * Opens the file for payloads that are already in buffers. Defaults to a channel on top of
+     * {@link #newOutputStream(Path)}.
+     */
+    default WritableByteChannel newChannel(Path path) throws IOException {
+      return Channels.newChannel(newOutputStream(path));
+    }
+
     void deleteIfExists(Path path) throws IOException;
 
+    /**
+     * Replaces the file at the path with the completely received temp file.
+     *
+     * @return completed once the file is durable
+     */
+    CompletableFuture<Void> commit(Path tempFile, Path path);
+
+  }
+
+  /**
+   * A file that a client uploads as one of several interleaved streams.
+   */
+  static class IncomingStream {
+
+    public final String path;
+    public final MessageDigest digest = ContentIndex.newDigest();
+    public final long startNanos = System.nanoTime();
+    public WritableByteChannel file;
+
+    IncomingStream(String path) {
+      this.path = path;
+    }
   }
 
   public static class IOAdapter implements ReadManagerIO {
 
+    private final FileCommitter committer;
+
+    public IOAdapter() {
+      this(new FileCommitter(-1));
+    }
+
+    public IOAdapter(FileCommitter committer) {
+      this.committer = committer;
+    }
+
     public void createDirectories(Path path) throws IOException {
       Files.createDirectories(path);
     }
@@ -61,10 +136,18 @@ class ReadManager {
       return Files.newOutputStream(path);
     }
 
+    public WritableByteChannel newChannel(Path path) throws IOException {
+      return FileChannel.open(path, StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
     public void deleteIfExists(Path path) throws IOException {
       Files.deleteIfExists(path);
     }
 
+    public CompletableFuture<Void> commit(Path tempFile, Path path) {
+      return committer.commit(tempFile, path);
+    }
 
   }
 
@@ -82,24 +165,54 @@ class ReadManager {
    * Executes one iteration of the loop that is checking and responding to frames from all clients.
    */
   public void executeReadCheck() {
-    Iterator<Socket> iterator = sharedSyncState.clients.iterator();
-    Socket lastClient = null;
-    while (iterator.hasNext()) {
-      try {
-        Socket client = iterator.next();
-        lastClient = client;
-        if (readInProgress.contains(client)) {
-          continue;
+    for (Socket client : sharedSyncState.clients) {
+      checkClient(client);
+    }
+  }
+
+  /**
+   * Starts handling the next frame of the given client, if it sent something and is not already
+   * being handled.
+   */
+  public void checkClient(Socket client) {
+    try {
+      InputStream inputStream;
+      synchronized (readInProgress) {
+        if (readInProgress.contains(client) || !sharedSyncState.clients.contains(client)) {
+          return;
         }
-        InputStream inputStream = getInputStream(client);
-        if (inputStream.available() > 0) {
-          readInProgress.add(client);
-          workerPool.execute(() -> handleRead(client, inputStream));
+        inputStream = getInputStream(client);
+        if (inputStream.available() <= 0) {
+          return;
         }
+        readInProgress.add(client);
+      }
+      workerPool.execute(() -> handleRead(client, inputStream));
+    } catch (Exception e) {
+      Log.error("Client " + sharedSyncState.clientIds.get(client)
+          + ". Could not start reading", e);
+      closeCallback.accept(client);
+    }
+  }
+
+  /**
+   * Executes a thread blocking loop of reading and responding to the frames of one client, until
+   * the client is closed. Used when every client has a thread of its own, which waits on the socket
+   * instead of being polled.
+   */
+  public void executeClientLoop(Socket client) {
+    while (sharedSyncState.clients.contains(client)) {
+      InputStream inputStream;
+      try {
+        inputStream = getInputStream(client);
       } catch (Exception e) {
-        e.printStackTrace();
-        closeCallback.accept(lastClient);
+        Log.error("Client " + sharedSyncState.clientIds.get(client)
+            + ". Could not start reading", e);
+        closeCallback.accept(client);
+        return;
       }
+      readInProgress.add(client);
+      handleRead(client, inputStream);
     }
   }
 
@@ -108,40 +221,48 @@ class ReadManager {
    */
   public void handleRead(Socket client, InputStream inputStream) {
     String newPath = null;
+    boolean resumableUpload = false;
+    FrameReader frameReader = frameReaders.computeIfAbsent(client,
+        (newClient) -> new FrameReader(getInputChannel(newClient, inputStream),
+            BufferPool.SHARED, sharedSyncState.inFlightBytes,
+            sharedSyncState.clientMetrics(newClient)));
 
-    try {
-      SyncFrame frame = SyncFrame.readFrame(inputStream);
-      System.out.println(
-          "Client " + sharedSyncState.clientIds.get(client) + ". Reacting to frame with opcode: "
-              + frame.syncOpCode);
-      switch (frame.syncOpCode) {
+    try (frameReader; PooledFrame frame = readFrameOrStreamPart(frameReader)) {
+      byte syncOpCode = frameReader.syncOpCode();
+      if (syncOpCode != SyncOpcode.STREAM_FILE_PART && syncOpCode != SyncOpcode.CREDIT) {
+        Log.debug(() -> "Client " + sharedSyncState.clientIds.get(client)
+            + ". Reacting to frame with opcode: " + syncOpCode);
+      }
+      switch (syncOpCode) {
         case SyncOpcode.CLOSE:
-          System.out.println(
-              "Client " + sharedSyncState.clientIds.get(client) + ". Received CLOSE.");
+          Log.info("Client " + sharedSyncState.clientIds.get(client) + ". Received CLOSE.");
           closeCallback.accept(client);
           break;
         case SyncOpcode.INIT:
           Set<String> initPaths = Arrays.stream(
-                  new String(frame.payload, StandardCharsets.UTF_8).split("\n"))
+                  frame.payloadAsString().split("\n"))
               .filter(s -> !s.trim().equals(""))
               .collect(Collectors.toSet());
-          System.out.println("Client " + sharedSyncState.clientIds.get(client)
-              + ". Starting client init. Received files: " + initPaths);
+          Log.info("Client " + sharedSyncState.clientIds.get(client)
+              + ". Starting client init. Received " + initPaths.size() + " files.");
+          Log.debug(() -> "Client " + sharedSyncState.clientIds.get(client)
+              + ". Received files: " + initPaths);
           List<String> newPathsFromClient = new ArrayList<>();
           List<String> newPathsFromServer = new ArrayList<>();
 
-          synchronized (sharedSyncState.availableFilePaths) {
-            for (String serverPath : sharedSyncState.availableFilePaths) {
-              if (!initPaths.contains(serverPath)) {
-                newPathsFromServer.add(serverPath);
-              }
+          //both lookups are hash lookups, no lock is needed as the registry is concurrent
+          for (String serverPath : sharedSyncState.availableFilePaths) {
+            if (!initPaths.contains(serverPath)) {
+              newPathsFromServer.add(serverPath);
             }
-            for (String path : initPaths) {
-              if (!sharedSyncState.availableFilePaths.contains(path)) {
-                newPathsFromClient.add(path);
-              }
+          }
+          for (String path : initPaths) {
+            if (!sharedSyncState.availableFilePaths.contains(path)) {
+              newPathsFromClient.add(path);
             }
           }
+          Collections.sort(newPathsFromServer);
+          Collections.sort(newPathsFromClient);
 
           //sending all files to client that are missing there
           if (newPathsFromServer.size() > 0) {
@@ -154,63 +275,567 @@ class ReadManager {
             sharedSyncState.initQueue.put(new InitData(client, newPathsFromClient));
           }
           break;
+        case SyncOpcode.INIT_V2:
+          handleInitV2(client, frame.payloadAsString());
+          break;
+        case SyncOpcode.SIGNATURES:
+          handleSignatures(client, frame);
+          break;
         case SyncOpcode.NEW_FILE_PATH:
-          newPath = new String(frame.payload, StandardCharsets.UTF_8);
-          synchronized (fileReadInProgress) {
-            synchronized (sharedSyncState.availableFilePaths) {
-              if (fileReadInProgress.contains(newPath)
-                  || sharedSyncState.availableFilePaths.contains(newPath)) {
-                System.out.println("Client " + sharedSyncState.clientIds.get(client)
-                    + " is being close due to collision. Incoming: " + newPath + ". In progress: "
-                    + fileReadInProgress + ". Already available: "
-                    + sharedSyncState.availableFilePaths);
-                closeCallback.accept(client);
-                return;
-              }
+        case SyncOpcode.RESUME_FILE_PATH:
+          String incomingPath = frame.payloadAsString();
+          long offset = 0;
+          if (syncOpCode == SyncOpcode.RESUME_FILE_PATH) {
+            int offsetStart = incomingPath.lastIndexOf('\t');
+            if (!isResumeNegotiated(client) || offsetStart <= 0) {
+              throw new IOException("Invalid resume: " + incomingPath);
+            }
+            offset = Long.parseLong(incomingPath.substring(offsetStart + 1));
+            incomingPath = incomingPath.substring(0, offsetStart);
+            if (offset < 0 || offset > sharedSyncState.partialUploads.confirmedOffset(
+                incomingPath)) {
+              throw new IOException(
+                  "No partial upload to resume: " + incomingPath + " at " + offset);
             }
-            fileReadInProgress.add(newPath);
           }
+          if (!sharedSyncState.pathRegistry.claimForUpload(incomingPath)) {
+            Log.warn("Client " + sharedSyncState.clientIds.get(client)
+                + " is being close due to collision. Incoming: " + incomingPath + ". State: "
+                + sharedSyncState.pathRegistry.state(incomingPath));
+            closeCallback.accept(client);
+            return;
+          }
+          newPath = incomingPath;
+          resumableUpload = isResumeNegotiated(client);
+          long uploadStartNanos = System.nanoTime();
 
           Path path = Paths.get(sharedSyncState.pathToRelativeFolder, newPath);
-          Path parent = path.getParent();
-          if (parent != null) {
-            ioAdapter.createDirectories(parent);
-          }
-          OutputStream os = ioAdapter.newOutputStream(path);
-          SyncFrame fileFrame = SyncFrame.readFrame(inputStream);
-          while (fileFrame.syncOpCode != SyncOpcode.NEW_FILE_END) {
-            if (!(fileFrame.syncOpCode == SyncOpcode.NEW_FILE_PART)) {
-              System.out.println("Client " + sharedSyncState.clientIds.get(client)
-                  + ". Received wrong op code in the middle of new file: " + fileFrame.syncOpCode);
-              closeCallback.accept(client);
+          MessageDigest digest = ContentIndex.newDigest();
+          if (resumableUpload) {
+            //received into the partial folder, so that a broken off upload can be kept
+            PartialUploads partialUploads = sharedSyncState.partialUploads;
+            if (offset > 0) {
+              partialUploads.digestPrefix(newPath, offset, digest);
+            }
+            boolean received;
+            try (FileChannel partial = partialUploads.open(newPath, offset);
+                WritableByteChannel file = ContentIndex.digesting(
+                    partialUploads.checkpointing(newPath, partial), digest)) {
+              received = receiveFileParts(client, frameReader, file);
+            }
+            if (!received) {
+              abortUpload(client, newPath, true);
+              return;
+            }
+            commitUpload(client, partialUploads.partialFile(newPath), newPath, digest, true,
+                uploadStartNanos);
+          } else {
+            Path parent = path.getParent();
+            if (parent != null) {
+              ioAdapter.createDirectories(parent);
+            }
+            //nobody sees the file until it is complete
+            Path tempFile = FileCommitter.tempFile(path);
+            boolean received;
+            try (WritableByteChannel file = ContentIndex.digesting(
+                ioAdapter.newChannel(tempFile), digest)) {
+              received = receiveFileParts(client, frameReader, file);
+            }
+            if (!received) {
+              abortUpload(client, newPath, false);
               return;
             }
-            os.write(fileFrame.payload);
-            fileFrame = SyncFrame.readFrame(inputStream);
+            commitUpload(client, tempFile, newPath, digest, false, uploadStartNanos);
           }
-          os.close();
-
-          sharedSyncState.availableFilePaths.add(newPath);
-          sharedSyncState.writeQueue.put(
-              WriteRequest.requestForAllButOneClient(List.of(newPath), client));
+          //the committer owns the upload now
+          newPath = null;
+          break;
+        case SyncOpcode.STREAM_FILE_PATH:
+          if (!openStream(client, frame)) {
+            return;
+          }
+          break;
+        case SyncOpcode.STREAM_FILE_PART:
+          handleStreamPart(client, frameReader);
+          break;
+        case SyncOpcode.STREAM_FILE_END:
+          endStream(client, frame);
+          break;
+        case SyncOpcode.CREDIT:
+          grantCredit(client, frame);
           break;
         default:
-          throw new IOException("Invalid opcode: " + frame.syncOpCode);
+          throw new IOException("Invalid opcode: " + syncOpCode);
       }
 
       readInProgress.remove(client);
+      readFinishedCallback.accept(client);
     } catch (Exception e) {
       if (newPath != null) {
-        try {
-          ioAdapter.deleteIfExists(Paths.get(sharedSyncState.pathToRelativeFolder, newPath));
-        } catch (IOException e2) {
-          e2.printStackTrace();
+        abortUpload(client, newPath, resumableUpload);
+      }
+      abortStreams(client);
+      Log.error("Client " + sharedSyncState.clientIds.get(client)
+          + ". Read failed", e);
+      closeCallback.accept(client);
+    }
+  }
+
+  /**
+   * Releases the claim of an upload that broke off, so that the path can be uploaded again. A
+   * resumable upload is kept for a later resume, otherwise the temp file is deleted.
+   */
+  private void abortUpload(Socket client, String path, boolean resumable) {
+    if (resumable) {
+      sharedSyncState.partialUploads.keep(path);
+    } else {
+      try {
+        ioAdapter.deleteIfExists(
+            FileCommitter.tempFile(Paths.get(sharedSyncState.pathToRelativeFolder, path)));
+      } catch (IOException e) {
+        Log.error("Client " + sharedSyncState.clientIds.get(client)
+            + ". Could not delete the upload of " + path, e);
+      }
+    }
+    sharedSyncState.pathRegistry.abortUpload(path);
+  }
+
+  /**
+   * @return the next frame or null for a {@link SyncOpcode#STREAM_FILE_PART}, whose payload is
+   * left in the reader, so that it can go to disk slice by slice
+   */
+  private static PooledFrame readFrameOrStreamPart(FrameReader frameReader) throws IOException {
+    if (frameReader.readHeader() == SyncOpcode.STREAM_FILE_PART) {
+      return null;
+    }
+    return frameReader.readPayload();
+  }
+
+  /**
+   * Writes the NEW_FILE_PART frames up to the NEW_FILE_END to the file.
+   *
+   * @return false, if the client was closed because it sent something else in between
+   */
+  private boolean receiveFileParts(Socket client, FrameReader frameReader,
+      WritableByteChannel file) throws IOException {
+    byte fileOpCode = frameReader.readHeader();
+    while (fileOpCode != SyncOpcode.NEW_FILE_END) {
+      if (fileOpCode == SyncOpcode.NEW_FILE_PART_DEFLATED && isNegotiated(client,
+          Capabilities.DEFLATE)) {
+        //compressed parts are at most a chunk, so they are decompressed as a whole
+        try (PooledFrame part = frameReader.readPayload()) {
+          ChunkCompression.decompress(part.payload(), file);
         }
-        fileReadInProgress.remove(newPath);
+        fileOpCode = frameReader.readHeader();
+        continue;
       }
-      e.printStackTrace();
+      if (!(fileOpCode == SyncOpcode.NEW_FILE_PART)) {
+        Log.warn("Client " + sharedSyncState.clientIds.get(client)
+            + ". Received wrong op code in the middle of new file: " + fileOpCode);
+        closeCallback.accept(client);
+        return false;
+      }
+      //large chunks go to disk piece by piece, while the rest is still arriving
+      frameReader.transferPayload(file);
+      fileOpCode = frameReader.readHeader();
+    }
+    frameReader.skipPayload();
+    return true;
+  }
+
+  /**
+   * Hands the completely received file to the committer. The upload is finished once the file is
+   * durable, while the client's next frames are already read. The rest runs on the worker pool, so
+   * that a full write queue or a slow close never holds up the commits of other clients.
+   *
+   * @param resumable  whether the file is a partial upload, which is kept if the commit fails
+   * @param startNanos when the client started the upload, for its latency
+   */
+  private void commitUpload(Socket client, Path file, String path, MessageDigest digest,
+      boolean resumable, long startNanos) {
+    ioAdapter.commit(file, Paths.get(sharedSyncState.pathToRelativeFolder, path))
+        .whenCompleteAsync((ignored, error) -> {
+          if (error == null) {
+            sharedSyncState.metrics.filesReceived.increment();
+            sharedSyncState.metrics.uploadMillis.recordMillisSince(startNanos);
+            try {
+              finishUpload(client, path, digest);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return;
+          }
+          Log.warn("Client " + sharedSyncState.clientIds.get(client)
+              + ". Could not commit " + path + ": " + error);
+          if (resumable) {
+            sharedSyncState.partialUploads.keep(path);
+          } else {
+            try {
+              ioAdapter.deleteIfExists(file);
+            } catch (IOException e) {
+              Log.error("Client " + sharedSyncState.clientIds.get(client)
+                  + ". Could not delete " + file, e);
+            }
+          }
+          sharedSyncState.pathRegistry.abortUpload(path);
+          closeCallback.accept(client);
+        }, workerPool);
+  }
+
+  /**
+   * Makes a completely received file available and sends it to all other clients.
+   */
+  private void finishUpload(Socket client, String path, MessageDigest digest)
+      throws InterruptedException {
+    //the record of a resumed upload, or a kept partial upload that is of no use anymore
+    if (sharedSyncState.partialUploads.confirmedOffset(path) >= 0) {
+      sharedSyncState.partialUploads.remove(path);
+    }
+    sharedSyncState.contentIndex.recordWrittenFile(path, digest);
+    sharedSyncState.pathRegistry.completeUpload(path);
+    sharedSyncState.catalog.recordAdded(path);
+    sharedSyncState.writeQueue.put(
+        WriteRequest.requestForAllButOneClient(List.of(path), client));
+  }
+
+  /**
+   * @return false, if the client was closed due to a collision
+   */
+  private boolean openStream(Socket client, PooledFrame frame) throws IOException {
+    checkStreamsNegotiated(client);
+    ByteBuffer payload = frame.payload().duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    if (payload.remaining() < 4) {
+      throw new IOException("Stream frame without stream id");
+    }
+    int streamId = payload.getInt();
+    String path = StandardCharsets.UTF_8.decode(payload).toString();
+    Map<Integer, IncomingStream> streams = incomingStreams.computeIfAbsent(client,
+        (newClient) -> new ConcurrentHashMap<>());
+    if (streams.containsKey(streamId)) {
+      throw new IOException("Stream " + streamId + " is already open");
+    }
+    if (!sharedSyncState.pathRegistry.claimForUpload(path)) {
+      Log.warn("Client " + sharedSyncState.clientIds.get(client)
+          + " is being close due to collision. Incoming: " + path + ". State: "
+          + sharedSyncState.pathRegistry.state(path));
       closeCallback.accept(client);
+      return false;
+    }
+    //registered before the file is opened, so that a failure cleans up the claim as well
+    IncomingStream stream = new IncomingStream(path);
+    streams.put(streamId, stream);
+    if (!sharedSyncState.clients.contains(client)) {
+      //closed in the meantime, after its streams were aborted
+      throw new IOException("Client closed while opening stream " + streamId);
+    }
+    Path file = Paths.get(sharedSyncState.pathToRelativeFolder, path);
+    if (file.getParent() != null) {
+      ioAdapter.createDirectories(file.getParent());
+    }
+    stream.file = ContentIndex.digesting(ioAdapter.newChannel(FileCommitter.tempFile(file)),
+        stream.digest);
+    return true;
+  }
+
+  private void handleStreamPart(Socket client, FrameReader frameReader) throws IOException {
+    checkStreamsNegotiated(client);
+    int streamId = frameReader.readPayloadInt();
+    frameReader.transferPayload(getStream(client, streamId).file);
+  }
+
+  private void endStream(Socket client, PooledFrame frame)
+      throws IOException, InterruptedException {
+    checkStreamsNegotiated(client);
+    int streamId = frame.payload().duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt();
+    IncomingStream stream = getStream(client, streamId);
+    stream.file.close();
+    incomingStreams.get(client).remove(streamId);
+    commitUpload(client,
+        FileCommitter.tempFile(Paths.get(sharedSyncState.pathToRelativeFolder, stream.path)),
+        stream.path, stream.digest, false, stream.startNanos);
+  }
+
+  private IncomingStream getStream(Socket client, int streamId) throws IOException {
+    Map<Integer, IncomingStream> streams = incomingStreams.get(client);
+    IncomingStream stream = streams == null ? null : streams.get(streamId);
+    if (stream == null) {
+      throw new IOException("Received frame for unknown stream " + streamId);
+    }
+    return stream;
+  }
+
+  private boolean isResumeNegotiated(Socket client) {
+    return isNegotiated(client, Capabilities.RESUME);
+  }
+
+  private boolean isNegotiated(Socket client, String capability) {
+    Set<String> capabilities = sharedSyncState.clientCapabilities.get(client);
+    return capabilities != null && capabilities.contains(capability);
+  }
+
+  private void grantCredit(Socket client, PooledFrame frame) throws IOException {
+    if (!isNegotiated(client, Capabilities.CREDIT)) {
+      throw new IOException("Received credit without negotiating it");
+    }
+    ByteBuffer payload = frame.payload().duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    long bytes = payload.remaining() < 8 ? -1 : payload.getLong();
+    if (bytes < 0) {
+      throw new IOException("Invalid credit frame");
+    }
+    sharedSyncState.sendCredit(client).grant(bytes);
+  }
+
+  private void checkStreamsNegotiated(Socket client) throws IOException {
+    Set<String> capabilities = sharedSyncState.clientCapabilities.get(client);
+    if (capabilities == null || !capabilities.contains(Capabilities.STREAMS)) {
+      throw new IOException("Received stream frame without negotiating streams");
+    }
+  }
+
+  /**
+   * Deletes the partial files of all streams that the client did not end, e.g. because it
+   * disconnected.
+   */
+  public void abortStreams(Socket client) {
+    Map<Integer, IncomingStream> streams = incomingStreams.remove(client);
+    if (streams == null) {
+      return;
+    }
+    for (IncomingStream stream : streams.values()) {
+      try {
+        if (stream.file != null) {
+          stream.file.close();
+        }
+        ioAdapter.deleteIfExists(
+            FileCommitter.tempFile(Paths.get(sharedSyncState.pathToRelativeFolder, stream.path)));
+      } catch (IOException e) {
+        Log.error("Client " + sharedSyncState.clientIds.get(client)
+            + ". Could not abort the stream of " + stream.path, e);
+      }
+      sharedSyncState.pathRegistry.abortUpload(stream.path);
+    }
+  }
+
+  /**
+   * Like INIT, but files that exist on both sides are compared by size and hash. Files that differ
+   * are sent to the client again, as the server copy is the one that all clients share. The
+   * capabilities apply right away, the files are compared and the reply is sent on the worker pool.
+   */
+  private void handleInitV2(Socket client, String payload) {
+    String[] lines = payload.split("\n");
+    Set<String> acceptedCapabilities = Capabilities.accept(lines[0]);
+    if (!sharedSyncState.partialUploads.isEnabled()) {
+      //without a state folder there is nowhere to keep broken off uploads
+      acceptedCapabilities.remove(Capabilities.RESUME);
+    }
+    boolean resume = acceptedCapabilities.contains(Capabilities.RESUME);
+    sharedSyncState.clientCapabilities.put(client, acceptedCapabilities);
+    if (acceptedCapabilities.contains(Capabilities.CREDIT)) {
+      //the init response already needs credit, which the client grants right after its INIT_V2
+      sharedSyncState.sendCredit(client).limit();
+    }
+    Map<String, String[]> clientFiles = new HashMap<>();
+    //files the client received only partially, with offset and hash of the received bytes
+    Map<String, String[]> partialFiles = new HashMap<>();
+    for (int i = 1; i < lines.length; i++) {
+      if (resume && lines[i].endsWith(PARTIAL_SUFFIX)) {
+        String line = lines[i].substring(0, lines[i].length() - PARTIAL_SUFFIX.length());
+        int hashStart = line.lastIndexOf('\t');
+        int offsetStart = line.lastIndexOf('\t', hashStart - 1);
+        if (offsetStart > 0) {
+          partialFiles.put(line.substring(0, offsetStart), new String[]{
+              line.substring(offsetStart + 1, hashStart), line.substring(hashStart + 1)});
+        }
+        continue;
+      }
+      //the path comes first, so it is split off last in case it contains tabs itself
+      int hashStart = lines[i].lastIndexOf('\t');
+      int sizeStart = lines[i].lastIndexOf('\t', hashStart - 1);
+      if (sizeStart <= 0) {
+        continue;
+      }
+      clientFiles.put(lines[i].substring(0, sizeStart), new String[]{
+          lines[i].substring(sizeStart + 1, hashStart), lines[i].substring(hashStart + 1)});
+    }
+    Log.info("Client " + sharedSyncState.clientIds.get(client)
+        + ". Starting client init with capabilities " + acceptedCapabilities + ". Received "
+        + clientFiles.size() + " files" + (partialFiles.isEmpty() ? "."
+        : " and " + partialFiles.size() + " partial files."));
+
+    List<String> newPathsFromClient = new ArrayList<>();
+    List<String> newPathsFromServer = new ArrayList<>();
+    List<String> sharedPaths = new ArrayList<>();
+    for (String serverPath : sharedSyncState.availableFilePaths) {
+      if (clientFiles.containsKey(serverPath)) {
+        sharedPaths.add(serverPath);
+      } else if (!partialFiles.containsKey(serverPath)) {
+        newPathsFromServer.add(serverPath);
+      }
+    }
+    for (String path : clientFiles.keySet()) {
+      if (!sharedSyncState.availableFilePaths.contains(path)) {
+        newPathsFromClient.add(path);
+      }
+    }
+    //hashing every shared file takes long for a large folder, so it runs on the worker pool in
+    //batches, while the next frames of the client, like its credit, are already read
+    Collections.sort(sharedPaths);
+    List<CompletableFuture<List<String>>> changedBatches = new ArrayList<>();
+    for (int start = 0; start < sharedPaths.size(); start += INIT_HASH_BATCH_FILES) {
+      List<String> batch = sharedPaths.subList(start,
+          Math.min(start + INIT_HASH_BATCH_FILES, sharedPaths.size()));
+      changedBatches.add(CompletableFuture.supplyAsync(() -> changedPaths(batch, clientFiles),
+          workerPool));
+    }
+    CompletableFuture.allOf(changedBatches.toArray(new CompletableFuture<?>[0]))
+        .whenCompleteAsync((ignored, error) -> {
+          try {
+            if (error != null) {
+              throw new IOException("Could not compare the files", error.getCause());
+            }
+            List<String> changedPaths = new ArrayList<>();
+            for (CompletableFuture<List<String>> changedBatch : changedBatches) {
+              changedPaths.addAll(changedBatch.join());
+            }
+            replyToInitV2(client, acceptedCapabilities, newPathsFromServer, newPathsFromClient,
+                changedPaths, partialFiles);
+          } catch (IOException e) {
+            Log.error("Client " + sharedSyncState.clientIds.get(client) + ". Init failed", e);
+            closeCallback.accept(client);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }, workerPool);
+  }
+
+  /**
+   * @return the paths of the batch whose content differs from the client's copy
+   */
+  private List<String> changedPaths(List<String> paths, Map<String, String[]> clientFiles) {
+    List<String> changedPaths = new ArrayList<>();
+    try {
+      for (String path : paths) {
+        String[] sizeAndHash = clientFiles.get(path);
+        if (!hasSameContent(path, Long.parseLong(sizeAndHash[0]), sizeAndHash[1])) {
+          changedPaths.add(path);
+        }
+      }
+    } catch (IOException e) {
+      throw new CompletionException(e);
+    }
+    return changedPaths;
+  }
+
+  /**
+   * Queues the files that the client misses or has in another version and sends the init reply.
+   *
+   * @param changedPaths files that exist on both sides with different content, in order
+   */
+  private void replyToInitV2(Socket client, Set<String> acceptedCapabilities,
+      List<String> newPathsFromServer, List<String> newPathsFromClient, List<String> changedPaths,
+      Map<String, String[]> partialFiles) throws IOException, InterruptedException {
+    boolean resume = acceptedCapabilities.contains(Capabilities.RESUME);
+    List<WriteRequest> resumedDownloads = new ArrayList<>();
+    for (Map.Entry<String, String[]> partialFile : partialFiles.entrySet()) {
+      String path = partialFile.getKey();
+      if (!sharedSyncState.availableFilePaths.contains(path)) {
+        //the client learns about it once someone uploads it
+        continue;
+      }
+      long offset = Long.parseLong(partialFile.getValue()[0]);
+      if (isPrefix(path, offset, partialFile.getValue()[1])) {
+        resumedDownloads.add(WriteRequest.resumeForOneClient(path, offset, client));
+      } else {
+        newPathsFromServer.add(path);
+      }
+    }
+    Collections.sort(newPathsFromServer);
+    List<String> deltaPaths = new ArrayList<>();
+    boolean delta = acceptedCapabilities.contains(Capabilities.DELTA);
+    for (String changedPath : changedPaths) {
+      if (delta && sharedSyncState.contentIndex.size(changedPath) >= BlockDelta.MIN_FILE_SIZE) {
+        deltaPaths.add(changedPath);
+      } else {
+        newPathsFromServer.add(changedPath);
+      }
+    }
+
+    if (newPathsFromServer.size() > 0) {
+      sharedSyncState.writeQueue.put(
+          WriteRequest.requestForOneClient(newPathsFromServer, client));
+    }
+    for (WriteRequest resumedDownload : resumedDownloads) {
+      sharedSyncState.writeQueue.put(resumedDownload);
+    }
+    //the reply is sent even without requested files, so that the client learns the capabilities
+    Collections.sort(newPathsFromClient);
+    List<String> resumeOffsets = new ArrayList<>();
+    if (resume) {
+      for (String path : newPathsFromClient) {
+        long offset = sharedSyncState.partialUploads.confirmedOffset(path);
+        if (offset > 0) {
+          MessageDigest digest = ContentIndex.newDigest();
+          sharedSyncState.partialUploads.digestPrefix(path, offset, digest);
+          resumeOffsets.add(path + "\t" + offset + "\t" + ContentIndex.toHex(digest.digest()));
+        }
+      }
+    }
+    sharedSyncState.initQueue.put(new InitData(client, newPathsFromClient, acceptedCapabilities,
+        deltaPaths, resumeOffsets));
+  }
+
+  /**
+   * @return true, if the server copy of the file starts with the bytes of the given hash
+   */
+  private boolean isPrefix(String path, long offset, String prefixSha256) throws IOException {
+    if (offset <= 0 || sharedSyncState.contentIndex.size(path) < offset) {
+      return false;
+    }
+    MessageDigest digest = ContentIndex.newDigest();
+    ContentIndex.digestPrefix(Paths.get(sharedSyncState.pathToRelativeFolder, path), offset,
+        digest);
+    return ContentIndex.toHex(digest.digest()).equalsIgnoreCase(prefixSha256);
+  }
+
+  /**
+   * Queues the delta of a file against the client's copy, which the client described with the
+   * signatures.
+   */
+  private void handleSignatures(Socket client, PooledFrame frame)
+      throws IOException, InterruptedException {
+    Set<String> capabilities = sharedSyncState.clientCapabilities.get(client);
+    if (capabilities == null || !capabilities.contains(Capabilities.DELTA)) {
+      throw new IOException("Received signatures without negotiating delta transfers");
+    }
+    BlockDelta.Signatures signatures = BlockDelta.Signatures.read(frame.payload());
+    if (!sharedSyncState.availableFilePaths.contains(signatures.path)) {
+      throw new IOException("Received signatures for unknown path: " + signatures.path);
+    }
+    sharedSyncState.writeQueue.put(WriteRequest.deltaForOneClient(signatures, client));
+  }
+
+  private boolean hasSameContent(String path, long clientSize, String clientSha256)
+      throws IOException {
+    if (sharedSyncState.contentIndex.size(path) != clientSize) {
+      return false;
+    }
+    //without a hash, the client only gets the same guarantee as with the original INIT
+    return clientSha256.isEmpty()
+        || sharedSyncState.contentIndex.sha256(path).equalsIgnoreCase(clientSha256);
+  }
+
+  /**
+   * Frames are read through a channel, so that their payloads can go into pooled buffers without
+   * copying them through a temporary array.
+   */
+  private static ReadableByteChannel getInputChannel(Socket client, InputStream inputStream) {
+    if (inputStream instanceof ReadableByteChannel) {
+      return (ReadableByteChannel) inputStream;
+    }
+    if (client.getChannel() != null && client.getChannel().isBlocking()) {
+      return client.getChannel();
     }
+    return Channels.newChannel(inputStream);
   }
 
   private InputStream getInputStream(Socket client) throws IOException {
@@ -0,0 +1,170 @@
+package org.filesync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.UUID;
+
+/**
+ * Accepts, authenticates and reads from all clients on one thread that only wakes up when a
+ * channel is ready, instead of polling every socket.
+ * <p>
+ * Complete handling of the incoming frames still happens on the worker pool of the
+ * {@link ReadManager}, which reads the bytes buffered by the {@link ChannelConnection}.
+ */
+class SelectorTransport implements Closeable {
+
+  private static final int READ_SCRATCH_SIZE = 64 * 1024;
+
+  private final SyncManager syncManager;
+  private final Selector selector;
+  private final ServerSocketChannel serverChannel;
+  private final ByteBuffer readScratch = ByteBuffer.allocateDirect(READ_SCRATCH_SIZE);
+  private final byte[] serverApiKeyBytes;
+
+  SelectorTransport(EnvVars vars, SyncManager syncManager) throws IOException {
+    this.syncManager = syncManager;
+    this.serverApiKeyBytes = vars.apiKey.getBytes(StandardCharsets.UTF_8);
+    this.selector = Selector.open();
+    this.serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(vars.serverPort));
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  //attachment of a connection that did not send its complete api key yet
+  private static class PendingClient {
+
+    final String clientId;
+    final ByteBuffer apiKey;
+
+    PendingClient(String clientId, int apiKeyLength) {
+      this.clientId = clientId;
+      this.apiKey = ByteBuffer.allocate(apiKeyLength);
+    }
+  }
+
+  /**
+   * @return the port the server listens on, which was chosen by the system if SERVER_PORT is 0
+   */
+  int localPort() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  /**
+   * Executes the thread blocking event loop, until the transport is closed.
+   */
+  public void run() {
+    while (serverChannel.isOpen()) {
+      try {
+        selector.select();
+      } catch (ClosedSelectorException e) {
+        return;
+      } catch (IOException e) {
+        Log.error("Could not select the ready connections", e);
+        return;
+      }
+      if (!selector.isOpen()) {
+        //closed by another thread, which woke up the select
+        return;
+      }
+      Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+      while (selectedKeys.hasNext()) {
+        SelectionKey key = selectedKeys.next();
+        selectedKeys.remove();
+        try {
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+          } else if (key.attachment() instanceof PendingClient) {
+            authenticate(key, (PendingClient) key.attachment());
+          } else {
+            ChannelConnection connection = (ChannelConnection) key.attachment();
+            if (key.isWritable()) {
+              connection.onWritable();
+            }
+            if (key.isValid() && key.isReadable()) {
+              read(key, connection);
+            }
+          }
+        } catch (Exception e) {
+          Log.error("Connection failed", e);
+          closeKey(key);
+        }
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) {
+      return;
+    }
+    String clientId = UUID.randomUUID().toString();
+    Log.info("Client " + clientId + " connected: " + channel.socket().getInetAddress());
+    channel.configureBlocking(false);
+    channel.register(selector, SelectionKey.OP_READ,
+        new PendingClient(clientId, serverApiKeyBytes.length));
+  }
+
+  private void authenticate(SelectionKey key, PendingClient pending) throws IOException {
+    SocketChannel channel = (SocketChannel) key.channel();
+    if (channel.read(pending.apiKey) == -1) {
+      Log.info("Client " + pending.clientId + " disconnected before sending its key.");
+      closeKey(key);
+      return;
+    }
+    if (pending.apiKey.hasRemaining()) {
+      return;
+    }
+    if (!Arrays.equals(serverApiKeyBytes, pending.apiKey.array())) {
+      Log.warn("Client " + pending.clientId + " invalid key detected.");
+      closeKey(key);
+      return;
+    }
+    Log.info("Client " + pending.clientId + " key validated.");
+    ChannelConnection connection = new ChannelConnection(channel, key);
+    key.attach(connection);
+    syncManager.registerChannelClient(connection, pending.clientId);
+  }
+
+  private void read(SelectionKey key, ChannelConnection connection) throws IOException {
+    int read = connection.readFromChannel(readScratch);
+    if (read == -1) {
+      //nothing more will arrive, the worker closes the client once it consumed the rest
+      key.interestOpsAnd(~SelectionKey.OP_READ);
+    }
+    syncManager.onReadable(connection.channel.socket());
+  }
+
+  private void closeKey(SelectionKey key) {
+    key.cancel();
+    Object attachment = key.attachment();
+    if (attachment instanceof ChannelConnection) {
+      syncManager.closeLater(((ChannelConnection) attachment).channel.socket());
+      return;
+    }
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      Log.error("Could not close a connection", e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverChannel.close();
+    selector.close();
+  }
+}
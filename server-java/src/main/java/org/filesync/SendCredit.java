@@ -0,0 +1,77 @@
+package org.filesync;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bytes that a client which negotiated {@link Capabilities#CREDIT} is still willing to receive, see
+ * {@link SyncOpcode#CREDIT}. Clients without the capability have unlimited credit.
+ * <p>
+ * Sending waits while the credit is used up, a single write may overdraw it. So a client that
+ * cannot keep up makes its writers wait, instead of the server buffering frames for it, and a
+ * client that grants less than a chunk at a time still gets whole chunks.
+ */
+class SendCredit {
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition granted = lock.newCondition();
+  //guarded by lock
+  private boolean limited = false;
+  private boolean closed = false;
+  private long availableBytes = 0;
+
+  /**
+   * Starts counting. From now on the client has to grant credit for everything it receives.
+   */
+  public void limit() {
+    lock.lock();
+    try {
+      limited = true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void grant(long bytes) {
+    lock.lock();
+    try {
+      availableBytes += bytes;
+      granted.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Lifts the limit for good, so that writers which still wait for credit fail on the closed
+   * socket instead.
+   */
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      granted.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Blocks until there is credit left and takes the bytes from it.
+   */
+  public void take(long bytes) throws InterruptedIOException {
+    lock.lock();
+    try {
+      while (limited && !closed && availableBytes <= 0) {
+        granted.await();
+      }
+      availableBytes -= bytes;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for credit of the client");
+    } finally {
+      lock.unlock();
+    }
+  }
+}
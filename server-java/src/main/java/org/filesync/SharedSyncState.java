@@ -1,25 +1,75 @@
 package org.filesync;
 
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Collection;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
 
 public class SharedSyncState {
 
   public final CopyOnWriteArrayList<Socket> clients;
-  public final Map<Socket, String> clientIds = new HashMap<>();
-  public final List<String> availableFilePaths;
+  public final Map<Socket, String> clientIds = new ConcurrentHashMap<>();
+  public final PathRegistry pathRegistry;
+  //live view of the paths in the registry that are completely on disk
+  public final Set<String> availableFilePaths;
   public final String pathToRelativeFolder;
-  public final LinkedBlockingQueue<WriteRequest> writeQueue = new LinkedBlockingQueue<>();
-  public final LinkedBlockingQueue<InitData> initQueue = new LinkedBlockingQueue<>();
+  public final ContentIndex contentIndex;
+  public final FileCatalog catalog;
+  public final PartialUploads partialUploads;
+  //capabilities that were negotiated with clients that sent an INIT_V2
+  public final Map<Socket, Set<String>> clientCapabilities = new ConcurrentHashMap<>();
+  //credit of every client, unlimited unless it negotiated Capabilities.CREDIT
+  public final Map<Socket, SendCredit> sendCredits = new ConcurrentHashMap<>();
+  public final Metrics metrics = new Metrics();
+  //memory that transfers hold at once, shared by all clients
+  public final ByteBudget inFlightBytes;
+  //signaled on every new write or init request and whenever a write finishes
+  public final WorkSignal writeSignal = new WorkSignal();
+  //bounded, so that producers wait for the writing loop instead of piling up requests
+  public final LinkedBlockingQueue<WriteRequest> writeQueue;
+  public final LinkedBlockingQueue<InitData> initQueue;
 
-  public SharedSyncState(CopyOnWriteArrayList<Socket> clients, List<String> availableFilePaths,
-      String pathToRelativeFolder) {
+  public SharedSyncState(CopyOnWriteArrayList<Socket> clients,
+      Collection<String> availableFilePaths, String pathToRelativeFolder) {
+    this(clients, availableFilePaths, pathToRelativeFolder,
+        new ContentIndex(pathToRelativeFolder, null), new FileCatalog(null),
+        new PartialUploads(null));
+  }
+
+  public SharedSyncState(CopyOnWriteArrayList<Socket> clients,
+      Collection<String> availableFilePaths, String pathToRelativeFolder,
+      ContentIndex contentIndex, FileCatalog catalog, PartialUploads partialUploads) {
+    this(clients, availableFilePaths, pathToRelativeFolder, contentIndex, catalog,
+        partialUploads, new ByteBudget(0), Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param queueCapacity of the write queue and of the init queue
+   */
+  public SharedSyncState(CopyOnWriteArrayList<Socket> clients,
+      Collection<String> availableFilePaths, String pathToRelativeFolder,
+      ContentIndex contentIndex, FileCatalog catalog, PartialUploads partialUploads,
+      ByteBudget inFlightBytes, int queueCapacity) {
     this.clients = clients;
-    this.availableFilePaths = availableFilePaths;
+    this.pathRegistry = new PathRegistry(availableFilePaths);
+    this.availableFilePaths = pathRegistry.available();
     this.pathToRelativeFolder = pathToRelativeFolder;
+    this.contentIndex = contentIndex;
+    this.catalog = catalog;
+    this.partialUploads = partialUploads;
+    this.inFlightBytes = inFlightBytes;
+    this.writeQueue = new SignalingQueue<>(writeSignal, queueCapacity);
+    this.initQueue = new SignalingQueue<>(writeSignal, queueCapacity);
+  }
+
+  public Metrics.Client clientMetrics(Socket client) {
+    return metrics.client(client, clientIds.get(client));
+  }
+
+  public SendCredit sendCredit(Socket client) {
+    return sendCredits.computeIfAbsent(client, (newClient) -> new SendCredit());
   }
 }
@@ -0,0 +1,47 @@
+package org.filesync;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue that announces every insertion on a {@link WorkSignal}, so that its consumer can block
+ * until there is something to do.
+ * <p>
+ * A bounded queue blocks {@link #put(Object)} until the consumer took something, so producers
+ * wait instead of piling up requests.
+ */
+class SignalingQueue<T> extends LinkedBlockingQueue<T> {
+
+  private static final long serialVersionUID = 1L;
+
+  private final WorkSignal signal;
+
+  SignalingQueue(WorkSignal signal, int capacity) {
+    super(capacity);
+    this.signal = signal;
+  }
+
+  @Override
+  public void put(T t) throws InterruptedException {
+    super.put(t);
+    signal.signal();
+  }
+
+  @Override
+  public boolean offer(T t) {
+    boolean added = super.offer(t);
+    if (added) {
+      signal.signal();
+    }
+    return added;
+  }
+
+  @Override
+  public boolean offer(T t, long timeout, TimeUnit unit) throws InterruptedException {
+    boolean added = super.offer(t, timeout, unit);
+    if (added) {
+      signal.signal();
+    }
+    return added;
+  }
+}
@@ -1,10 +1,10 @@
 package org.filesync;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
 
 class SyncFrame {
 
@@ -12,40 +12,84 @@ class SyncFrame {
   public final byte syncOpCode;
   public final byte[] payload;
 
+  //per thread, so that encoding a frame does not allocate
+  private static final ThreadLocal<ByteBuffer[]> GATHER_BUFFERS = ThreadLocal.withInitial(
+      () -> new ByteBuffer[]{ByteBuffer.allocateDirect(5).order(ByteOrder.LITTLE_ENDIAN), null});
+  private static final ThreadLocal<byte[]> HEADER_BYTES = ThreadLocal.withInitial(
+      () -> new byte[5]);
+  private static final ThreadLocal<byte[]> COPY_SCRATCH = ThreadLocal.withInitial(
+      () -> new byte[64 * 1024]);
+
   public SyncFrame(byte syncOpCode, byte[] payload) {
     this.syncOpCode = syncOpCode;
     this.payload = payload;
   }
 
-  public static SyncFrame readFrame(InputStream inputStream) throws IOException {
-    byte opcode = (byte) inputStream.read(); //the first websocket byte contains 4 additional bits, which we don't implement for our protocol
-    //for simplicity, we work with 4 bytes/int-size for the payload size
-    // depending on specific use case (e.g. frequent big files vs frequent small files) a different size could make sense
-    ByteBuffer payloadByteBuffer = ByteBuffer.wrap(inputStream.readNBytes(4));
-    payloadByteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-    int payloadLength = payloadByteBuffer
-        .getInt();
-    byte[] payload = new byte[payloadLength];
-    if (payloadLength > 0) {
-      int readPayloadAmount = inputStream.read(payload);
-      if (readPayloadAmount != payloadLength) {
-        throw new IOException("Expected payload amount did not match actually read amount");
+  public static void writeFrame(SyncFrame frame, OutputStream outputStream) throws IOException {
+    writeFrame(frame.syncOpCode, ByteBuffer.wrap(frame.payload), outputStream);
+  }
+
+  /**
+   * Writes the frame and consumes the payload, without flushing the stream. Streams that are backed
+   * by a channel get the header and payload in one gathering write.
+   */
+  public static void writeFrame(byte syncOpCode, ByteBuffer payload, OutputStream outputStream)
+      throws IOException {
+    if (outputStream instanceof GatheringByteChannel) {
+      ByteBuffer[] headerAndPayload = GATHER_BUFFERS.get();
+      ByteBuffer header = headerAndPayload[0];
+      header.clear();
+      header.put(syncOpCode).putInt(payload.remaining()).flip();
+      headerAndPayload[1] = payload;
+      try {
+        GatheringByteChannel channel = (GatheringByteChannel) outputStream;
+        while (header.hasRemaining() || payload.hasRemaining()) {
+          channel.write(headerAndPayload);
+        }
+      } finally {
+        headerAndPayload[1] = null;
       }
+    } else {
+      writeHeader(syncOpCode, payload.remaining(), outputStream);
+      writePayload(payload, outputStream);
     }
-
-    return new SyncFrame(opcode, payload);
   }
 
-  public static void writeFrame(SyncFrame frame, OutputStream outputStream) throws IOException {
-    outputStream.write(frame.syncOpCode);
-    byte[] payloadLengthBytes = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN)
-        .putInt(frame.payload.length).array();
+  /**
+   * Writes only the opcode and payload length, for callers that send the payload themselves.
+   */
+  public static void writeHeader(byte syncOpCode, int payloadLength, OutputStream outputStream)
+      throws IOException {
+    byte[] header = HEADER_BYTES.get();
+    header[0] = syncOpCode;
+    header[1] = (byte) payloadLength;
+    header[2] = (byte) (payloadLength >>> 8);
+    header[3] = (byte) (payloadLength >>> 16);
+    header[4] = (byte) (payloadLength >>> 24);
+    if (outputStream instanceof CoalescingOutputStream) {
+      ((CoalescingOutputStream) outputStream).frameWritten();
+    }
+    outputStream.write(header);
+  }
 
-    for (byte b : payloadLengthBytes) {
-      outputStream.write(b);
+  private static void writePayload(ByteBuffer payload, OutputStream outputStream)
+      throws IOException {
+    if (outputStream instanceof FileTransferTarget) {
+      ((FileTransferTarget) outputStream).write(payload);
+      return;
+    }
+    if (payload.hasArray()) {
+      outputStream.write(payload.array(), payload.arrayOffset() + payload.position(),
+          payload.remaining());
+      payload.position(payload.limit());
+      return;
+    }
+    byte[] scratch = COPY_SCRATCH.get();
+    while (payload.hasRemaining()) {
+      int length = Math.min(scratch.length, payload.remaining());
+      payload.get(scratch, 0, length);
+      outputStream.write(scratch, 0, length);
     }
-    outputStream.write(frame.payload);
-    outputStream.flush();
   }
 
   public byte[] toBytes() {
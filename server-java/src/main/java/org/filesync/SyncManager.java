@@ -1,6 +1,14 @@
 package org.filesync;
 
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -8,52 +16,217 @@ import org.filesync.ReadManager.IOAdapter;
 
 class SyncManager {
 
+  //how long the close frame waits for a writer that holds the output of the client
+  static final long CLOSE_FRAME_TIMEOUT_MILLIS = 1000;
+
   private final SharedSyncState sharedSyncState;
   private final ReadManager readManager;
   private final WriteManager writeManager;
+  private final ExecutorService workerPool;
+  //only filled when the selector transport is used
+  private final Map<Socket, ChannelConnection> channelConnections = new ConcurrentHashMap<>();
 
   SyncManager(SharedSyncState sharedSyncState, EnvVars vars) {
     this.sharedSyncState = sharedSyncState;
-    int corePoolSize = 4;
-    int maxPoolSize = 32 + 6; //max client size + misc tasks
+    ExecutorService fanOutPool;
+    if (vars.transport.equals(EnvVars.TRANSPORT_VIRTUAL)) {
+      //every read, write and broadcast writer gets a virtual thread, so nothing has to be sized
+      this.workerPool = VirtualThreads.newThreadPerTaskExecutor();
+      fanOutPool = VirtualThreads.newThreadPerTaskExecutor();
+    } else {
+      this.workerPool = createWorkerPool();
+      fanOutPool = Executors.newCachedThreadPool();
+    }
+    this.readManager = new ReadManager(sharedSyncState, workerPool, this::close,
+        new IOAdapter(new FileCommitter(vars.fsyncIntervalMillis)),
+        this::readFinished);
+    this.writeManager = new WriteManager(sharedSyncState, vars, workerPool, fanOutPool,
+        this::close);
+    registerGauges();
+  }
+
+  private void registerGauges() {
+    Metrics metrics = sharedSyncState.metrics;
+    metrics.gauge("clients", sharedSyncState.clients::size);
+    metrics.gauge("write_queue_depth", sharedSyncState.writeQueue::size);
+    metrics.gauge("init_queue_depth", sharedSyncState.initQueue::size);
+    metrics.gauge("writes_in_progress", writeManager.writeInProgress::size);
+    metrics.gauge("in_flight_bytes", sharedSyncState.inFlightBytes::usedBytes);
+    metrics.gauge("in_flight_stalls", sharedSyncState.inFlightBytes.stalls::get);
+    metrics.gauge("chunk_cache_hits", writeManager.chunkCache.hits::get);
+    metrics.gauge("chunk_cache_misses", writeManager.chunkCache.misses::get);
+    if (workerPool instanceof ThreadPoolExecutor) {
+      ThreadPoolExecutor pool = (ThreadPoolExecutor) workerPool;
+      metrics.gauge("worker_pool_active_threads", pool::getActiveCount);
+      metrics.gauge("worker_pool_queue_depth", () -> pool.getQueue().size());
+    }
+  }
+
+  private static ThreadPoolExecutor createWorkerPool() {
+    //a pool only grows beyond its core threads once its queue is full, which an unbounded queue
+    //never is, so all threads are core threads that time out when idle
+    int poolSize = 32 + 6; //max client size + misc tasks
     long keepAliveTime = 60;
 
     ThreadPoolExecutor workerPool = new ThreadPoolExecutor(
-        corePoolSize,
-        maxPoolSize,
+        poolSize,
+        poolSize,
         keepAliveTime,
         TimeUnit.SECONDS,
         new LinkedBlockingQueue<>()
     );
-    this.readManager = new ReadManager(sharedSyncState, workerPool, this::close, new IOAdapter());
-    this.writeManager = new WriteManager(sharedSyncState, vars, workerPool, this::close);
+    workerPool.allowCoreThreadTimeOut(true);
+    return workerPool;
   }
 
+  /**
+   * Starts the writing loop and the polling reading loop for clients of the blocking transport.
+   */
   public void start() {
-    new Thread(writeManager::executeWritingLoop).start();
+    startWriting();
     new Thread(readManager::executeReadingLoop).start();
   }
 
-  private void close(Socket client) {
+  /**
+   * Starts only the writing loop. Reads are triggered by the {@link SelectorTransport}.
+   */
+  public void startWriting() {
+    new Thread(writeManager::executeWritingLoop).start();
+  }
+
+  /**
+   * Offers a file that was found in the server folder right away, so that clients get it even
+   * before the scan of the folder finished. The catalog only learns about it when the scan is
+   * reconciled, so that the threads of the scan do not wait for each other on the catalog.
+   *
+   * @return false, if the path was already known or is being uploaded right now, in which case it
+   * is added once the upload finished
+   */
+  boolean addFoundPath(String foundPath) {
+    return sharedSyncState.pathRegistry.addAvailable(foundPath);
+  }
+
+  /**
+   * Finishes a scan of the server folder. Files that were added by {@link #addFoundPath(String)}
+   * are recorded in the catalog and sent to all connected clients. Files that disappeared are no
+   * longer offered, as long as they were already known when the scan of the folder started.
+   */
+  void reconcile(Set<String> knownBeforeScan, Set<String> foundPaths, List<String> addedPaths) {
+    List<String> removedPaths = new ArrayList<>();
+    for (String knownPath : knownBeforeScan) {
+      if (!foundPaths.contains(knownPath)
+          && sharedSyncState.pathRegistry.removeAvailable(knownPath)) {
+        removedPaths.add(knownPath);
+      }
+    }
+    sharedSyncState.catalog.record(addedPaths, removedPaths);
+    for (String removedPath : removedPaths) {
+      sharedSyncState.contentIndex.remove(removedPath);
+    }
+    Log.info("Reconciled the catalog with the server folder. Added " + addedPaths.size()
+        + " files, removed " + removedPaths.size() + " files.");
+    if (!addedPaths.isEmpty()) {
+      try {
+        sharedSyncState.writeQueue.put(WriteRequest.requestForAllButOneClient(addedPaths, null));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Registers a client of the {@link VirtualThreadTransport} and handles its frames on the calling
+   * thread until it is closed.
+   */
+  void serveClient(Socket client, String clientId) {
+    sharedSyncState.clientIds.put(client, clientId);
+    sharedSyncState.clients.add(client);
+    readManager.executeClientLoop(client);
+  }
+
+  void registerChannelClient(ChannelConnection connection, String clientId) {
+    Socket client = connection.channel.socket();
+    channelConnections.put(client, connection);
+    readManager.inputStreamMap.put(client, connection.inputStream);
+    //the id first, the output stream counts the traffic of the client under it
+    sharedSyncState.clientIds.put(client, clientId);
+    writeManager.registerOutputStream(client, connection.outputStream);
+    sharedSyncState.clients.add(client);
+  }
+
+  void onReadable(Socket client) {
+    readManager.checkClient(client);
+    closeIfDisconnected(client);
+  }
+
+  private void readFinished(Socket client) {
+    if (channelConnections.containsKey(client)) {
+      onReadable(client);
+    }
+  }
+
+  private void closeIfDisconnected(Socket client) {
+    ChannelConnection connection = channelConnections.get(client);
+    if (connection != null && connection.isDrainedAtEndOfStream()
+        && !readManager.readInProgress.contains(client)) {
+      closeLater(client);
+    }
+  }
+
+  /**
+   * Closes the client on the worker pool. Used by the selector thread, which must never block on
+   * the close frame, because only it can report the channel as writable again.
+   */
+  void closeLater(Socket client) {
+    workerPool.execute(() -> close(client));
+  }
+
+  void close(Socket client) {
     if (client != null) {
+      if (!sharedSyncState.clients.remove(client)) {
+        //already closed by another thread
+        return;
+      }
       String clientId = sharedSyncState.clientIds.remove(client);
-      System.out.println("Client " + clientId + " closing.");
-      sharedSyncState.clients.remove(client);
+      sharedSyncState.clientCapabilities.remove(client);
+      sharedSyncState.metrics.removeClient(client);
+      SendCredit credit = sharedSyncState.sendCredits.remove(client);
+      if (credit != null) {
+        //the close frame goes out regardless and writers that wait for credit fail
+        credit.close();
+      }
+      Log.info("Client " + clientId + " closing.");
+      channelConnections.remove(client);
       readManager.inputStreamMap.remove(client);
+      readManager.frameReaders.remove(client);
       readManager.readInProgress.remove(client);
-      writeManager.outputStreamMap.remove(client);
+      readManager.abortStreams(client);
       writeManager.writeInProgress.remove(client);
+      sharedSyncState.writeSignal.signal();
+      OutputStream outputStream = writeManager.outputStreamMap.remove(client);
       try {
-        SyncFrame.writeFrame(SyncFrame.closeFrame(), client.getOutputStream());
+        if (outputStream instanceof CoalescingOutputStream) {
+          //a writer might be stuck on the socket, which only closing the socket resolves
+          if (!((CoalescingOutputStream) outputStream).tryWriteAndFlush(SyncFrame.closeFrame(),
+              CLOSE_FRAME_TIMEOUT_MILLIS)) {
+            Log.warn("Client " + clientId + ". Output is blocked, closing without close frame.");
+          }
+        } else {
+          if (outputStream == null) {
+            outputStream = client.getOutputStream();
+          }
+          SyncFrame.writeFrame(SyncFrame.closeFrame(), outputStream);
+          outputStream.flush();
+        }
       } catch (Exception e) {
-        e.printStackTrace();
+        Log.error("Client " + clientId + ". Could not send the close frame", e);
       }
       try {
         client.close();
       } catch (Exception e) {
-        e.printStackTrace();
+        Log.error("Client " + clientId + ". Could not close the socket", e);
       }
-      System.out.println("Client " + clientId + " closed: " + client.getInetAddress());
+      Log.info("Client " + clientId + " closed: " + client.getInetAddress());
     }
   }
 
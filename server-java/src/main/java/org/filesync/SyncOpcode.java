@@ -7,5 +7,82 @@ class SyncOpcode {
   public static final byte NEW_FILE_PART = 0x2;
   public static final byte NEW_FILE_END = 0x3;
   public static final byte CLOSE = 0x4;
+  /**
+   * Extended INIT, which clients only send if they understand the extended reply. The payload
+   * starts with a line of requested {@link Capabilities} ("caps hash"), followed by one line per
+   * file: "path\tsize\tsha256". The hash may be empty if the client does not know it. With
+   * {@link Capabilities#RESUME}, a line "path\toffset\tsha256\tpartial" announces a file that the
+   * client received only partially, the hash is the one of its first offset bytes.
+   * <p>
+   * The server always answers with an INIT_V2 frame, whose payload starts with the accepted
+   * capabilities, followed by the paths that the client should upload.
+   */
+  public static final byte INIT_V2 = 0x5;
+  /**
+   * Server asks a client that negotiated {@link Capabilities#DELTA} for the block signatures of its
+   * copy of the path in the payload, because the copy differs from the server's.
+   */
+  public static final byte SIGNATURE_REQUEST = 0x6;
+  /**
+   * Client answers a {@link #SIGNATURE_REQUEST}, see {@link BlockDelta.Signatures#read}.
+   */
+  public static final byte SIGNATURES = 0x7;
+  //0x8 is skipped, because older clients used it for CLOSE
+  /**
+   * Starts the delta of a file, the payload is "path\tsha256" of the complete new content. Followed
+   * by NEW_FILE_PART frames with literal data and DELTA_COPY frames in file order, ended by
+   * NEW_FILE_END.
+   */
+  public static final byte DELTA_START = 0x9;
+  /**
+   * Reuses blocks of the client's old copy. The payload is the index of the first block and the
+   * amount of consecutive blocks, both 4 byte little endian.
+   */
+  public static final byte DELTA_COPY = 0xA;
+  /**
+   * Opens a file stream on a connection that negotiated {@link Capabilities#STREAMS}. The payload
+   * is the stream id, 4 byte little endian, followed by the path. Stream ids are chosen by the
+   * sender and may be reused once their stream ended. Each direction has its own ids.
+   * <p>
+   * Unlike NEW_FILE_PATH, the parts of several streams may be interleaved with each other and with
+   * other frames.
+   */
+  public static final byte STREAM_FILE_PATH = 0xB;
+  /**
+   * Data of an open stream. The payload is the stream id, followed by the next bytes of the file.
+   */
+  public static final byte STREAM_FILE_PART = 0xC;
+  /**
+   * Ends a stream, the payload is only the stream id.
+   */
+  public static final byte STREAM_FILE_END = 0xD;
+  /**
+   * Server tells a client that negotiated {@link Capabilities#RESUME}, that it kept a broken off
+   * upload of a file which the client is asked to upload. The payload is "path\toffset\tsha256"
+   * with the hash of the kept bytes. If the client's file starts with the same bytes, it continues
+   * with {@link #RESUME_FILE_PATH}, otherwise it uploads the file from the start.
+   */
+  public static final byte RESUME_OFFSET = 0xE;
+  /**
+   * Like NEW_FILE_PATH, but the payload is "path\toffset" and the following NEW_FILE_PART frames
+   * only carry the bytes from the offset on. Used in both directions, by the server for files that
+   * a client announced as partial in its INIT_V2.
+   */
+  public static final byte RESUME_FILE_PATH = 0xF;
+  /**
+   * Like NEW_FILE_PART, but compressed, on connections that negotiated
+   * {@link Capabilities#DEFLATE}. The payload is the uncompressed length, 4 byte little endian,
+   * followed by the raw deflate data of the part. Senders may mix both kinds of parts freely, see
+   * {@link ChunkCompression}.
+   */
+  public static final byte NEW_FILE_PART_DEFLATED = 0x10;
+  /**
+   * Client grants the server to send more bytes, on connections that negotiated
+   * {@link Capabilities#CREDIT}. The payload is the amount of bytes, 8 byte little endian. Once the
+   * capability was accepted, the server only writes while the granted bytes are not used up, a
+   * single write may overdraw them. All frames count. Clients usually grant a window right after
+   * their INIT_V2 and more whenever they processed part of it, see {@link SendCredit}.
+   */
+  public static final byte CREDIT = 0x11;
 
 }
@@ -0,0 +1,79 @@
+package org.filesync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Serves every client on a virtual thread of its own, which authenticates the client and then
+ * blocks on its socket until the next frame arrives.
+ * <p>
+ * Waiting virtual threads do not hold on to an OS thread, so thousands of connected clients cost
+ * neither a thread each nor the polling of the blocking transport. Reads, writes and broadcasts
+ * run on virtual threads as well, see {@link SyncManager}. Needs Java 21 or newer.
+ */
+class VirtualThreadTransport implements Closeable {
+
+  private final SyncManager syncManager;
+  private final ServerSocketChannel serverChannel;
+  private final ExecutorService connectionThreads = VirtualThreads.newThreadPerTaskExecutor();
+  private final byte[] serverApiKeyBytes;
+
+  VirtualThreadTransport(EnvVars vars, SyncManager syncManager) throws IOException {
+    this.syncManager = syncManager;
+    this.serverApiKeyBytes = vars.apiKey.getBytes(StandardCharsets.UTF_8);
+    //opened through a channel, so that file parts can be sent with zero-copy transfers
+    this.serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(vars.serverPort));
+  }
+
+  /**
+   * Executes the thread blocking loop of accepting clients.
+   */
+  public void run() {
+    while (serverChannel.isOpen()) {
+      try {
+        Socket clientSocket = serverChannel.accept().socket();
+        String clientId = UUID.randomUUID().toString();
+        Log.info("Client " + clientId + " connected: " + clientSocket.getInetAddress());
+        connectionThreads.execute(() -> serve(clientSocket, clientId));
+      } catch (IOException e) {
+        Log.error("Could not accept a connection", e);
+      }
+    }
+  }
+
+  private void serve(Socket clientSocket, String clientId) {
+    try {
+      byte[] clientApiKeyBytes = clientSocket.getInputStream()
+          .readNBytes(serverApiKeyBytes.length);
+      if (!Arrays.equals(serverApiKeyBytes, clientApiKeyBytes)) {
+        clientSocket.close();
+        Log.warn("Client " + clientId + " invalid key detected.");
+        return;
+      }
+    } catch (IOException e) {
+      Log.error("Client " + clientId + " failed before its key was validated", e);
+      try {
+        clientSocket.close();
+      } catch (IOException e2) {
+        Log.error("Could not close client " + clientId, e2);
+      }
+      return;
+    }
+    Log.info("Client " + clientId + " key validated.");
+    syncManager.serveClient(clientSocket, clientId);
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverChannel.close();
+    connectionThreads.shutdown();
+  }
+}
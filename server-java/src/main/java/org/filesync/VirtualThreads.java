@@ -0,0 +1,47 @@
+package org.filesync;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads, which only exist since Java 21. The server is still built for Java
+ * 11, so they are looked up at runtime and {@link EnvVars#TRANSPORT_VIRTUAL} is only available
+ * when the server runs on Java 21 or newer.
+ */
+class VirtualThreads {
+
+  private static final Method NEW_THREAD_PER_TASK_EXECUTOR = lookupExecutorFactory();
+
+  private static Method lookupExecutorFactory() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      //on Java 19 and 20 virtual threads are a preview feature, which throws unless enabled
+      ((ExecutorService) factory.invoke(null)).shutdown();
+      return factory;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  public static boolean isSupported() {
+    return NEW_THREAD_PER_TASK_EXECUTOR != null;
+  }
+
+  /**
+   * @return an executor that starts a new virtual thread for every task
+   */
+  public static ExecutorService newThreadPerTaskExecutor() {
+    if (!isSupported()) {
+      throw new UnsupportedOperationException("Virtual threads need Java 21 or newer");
+    }
+    try {
+      return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    } catch (InvocationTargetException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+}
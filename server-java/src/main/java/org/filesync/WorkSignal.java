@@ -0,0 +1,27 @@
+package org.filesync;
+
+/**
+ * Generation counter that lets a loop sleep until new work was announced instead of polling.
+ * <p>
+ * A loop reads the generation before checking for work and waits on exactly that generation
+ * afterwards, so a signal that arrives in between is never lost.
+ */
+class WorkSignal {
+
+  private long generation = 0;
+
+  public synchronized long generation() {
+    return generation;
+  }
+
+  public synchronized void signal() {
+    generation++;
+    notifyAll();
+  }
+
+  public synchronized void awaitChange(long seenGeneration) throws InterruptedException {
+    while (generation == seenGeneration) {
+      wait();
+    }
+  }
+}
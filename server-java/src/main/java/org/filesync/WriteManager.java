@@ -1,116 +1,272 @@
 package org.filesync;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.function.Consumer;
 
 class WriteManager {
 
+  //interleaving granularity of streams, large parts would delay the other streams again
+  static final int STREAM_PART_SIZE = 256 * 1024;
+
   private final SharedSyncState sharedSyncState;
   private final EnvVars vars;
-  private final ThreadPoolExecutor workerPool;
+  private final ExecutorService workerPool;
+  private final Executor fanOutPool;
   private final Consumer<Socket> closeCallback;
+  //shared by all writes, so that clients which want the same files share their disk reads
+  public final ChunkCache chunkCache;
 
   public final Map<Socket, OutputStream> outputStreamMap = Collections.synchronizedMap(
       new HashMap<>());
   public final List<Socket> writeInProgress = Collections.synchronizedList(new ArrayList<>());
+  //when the current write of a client was dispatched, for its latency
+  private final Map<Socket, Long> writeStartNanos = new ConcurrentHashMap<>();
+  //requests per client that were not dispatched yet, only accessed by the writing loop
+  private final Map<Socket, Deque<Object>> outboundQueues = new HashMap<>();
+  //clients with queued requests, the next one to serve first
+  private final Deque<Socket> roundRobin = new ArrayDeque<>();
 
-  public WriteManager(SharedSyncState sharedSyncState, EnvVars vars, ThreadPoolExecutor workerPool,
-      Consumer<Socket> closeCallback) {
+  /**
+   * @param fanOutPool runs one writer per client of a broadcast, so it must not limit the amount
+   *                   of threads
+   */
+  public WriteManager(SharedSyncState sharedSyncState, EnvVars vars, ExecutorService workerPool,
+      Executor fanOutPool, Consumer<Socket> closeCallback) {
     this.sharedSyncState = sharedSyncState;
     this.vars = vars;
     this.workerPool = workerPool;
+    this.fanOutPool = fanOutPool;
     this.closeCallback = closeCallback;
+    this.chunkCache = new ChunkCache(vars.chunkCacheBytes, vars.chunkCacheOffHeap);
   }
 
+  /**
+   * Executes a thread blocking loop of dispatching queued writes. The loop sleeps until new
+   * requests are queued or an ongoing write finishes, instead of re-checking the queues.
+   */
   public void executeWritingLoop() {
     while (true) {
-      executeWriteCheck();
+      long seenGeneration = sharedSyncState.writeSignal.generation();
+      if (!executeWriteCheck()) {
+        try {
+          sharedSyncState.writeSignal.awaitChange(seenGeneration);
+        } catch (InterruptedException e) {
+          Log.error("Writing loop was interrupted", e);
+          return;
+        }
+      }
     }
   }
 
-  public void executeWriteCheck() {
-    try {
-      InitData initData = sharedSyncState.initQueue.poll();
-      if (initData != null && !initData.client.isClosed()) {
-        if (writeInProgress.contains(initData.client)) {
-          sharedSyncState.initQueue.put(initData);
-
-        } else {
-          writeInProgress.add(initData.client);
-          workerPool.execute(() -> handleInitResponse(initData));
+  /**
+   * Moves new requests into the outbound queues of their clients and dispatches the next request
+   * of every client that is not busy, in round-robin order. A request only waits for its own
+   * clients, never for writes to other clients.
+   * <p>
+   * A broadcast is queued for each of its clients. All free clients that have the same broadcast
+   * at the head of their queue are served together, so the broadcast reads each chunk once for
+   * them. Clients that are busy get it later on their own.
+   *
+   * @return if at least one request was dispatched
+   */
+  public boolean executeWriteCheck() {
+    InitData initData;
+    while ((initData = sharedSyncState.initQueue.poll()) != null) {
+      enqueueOutbound(initData.client, initData);
+    }
+    WriteRequest writeRequest;
+    while ((writeRequest = sharedSyncState.writeQueue.poll()) != null) {
+      if (writeRequest.relevantClient != null) {
+        enqueueOutbound(writeRequest.relevantClient, writeRequest);
+      } else {
+        for (Socket client : sharedSyncState.clients) {
+          if (!client.equals(writeRequest.notRelevantClient)) {
+            enqueueOutbound(client, writeRequest);
+          }
         }
       }
+    }
+    //queues of closed clients are not needed anymore
+    outboundQueues.keySet().retainAll(new HashSet<>(sharedSyncState.clients));
 
-      WriteRequest writeRequest = sharedSyncState.writeQueue.poll();
-      if (writeRequest != null) {
-        if (writeRequest.relevantClient != null) {
-          if (writeInProgress.contains(writeRequest.relevantClient)) {
-            sharedSyncState.writeQueue.put(writeRequest);
-          } else {
-            writeInProgress.add(writeRequest.relevantClient);
-            workerPool.execute(() -> handleSingleWrite(writeRequest));
-          }
-        } else {
-          boolean forAtLeastOneClientThereIsAlreadyAWriteOngoing;
-          //if any of the clients which is not the ignored one currently has an ongoing write, we re-add this request
-          synchronized (writeInProgress) {
-            forAtLeastOneClientThereIsAlreadyAWriteOngoing = writeInProgress.stream()
-                .anyMatch(client -> !client.equals(writeRequest.notRelevantClient));
-          }
-          if (forAtLeastOneClientThereIsAlreadyAWriteOngoing) {
-            sharedSyncState.writeQueue.put(writeRequest);
-          } else {
-            List<Socket> relevantClients = new ArrayList<>();
-            for (Socket client : sharedSyncState.clients) {
-              if (!client.equals(writeRequest.notRelevantClient) && !client.isClosed()) {
-                relevantClients.add(client);
-              }
-            }
-            writeInProgress.addAll(relevantClients);
-            workerPool.execute(() -> handleMultiWrite(relevantClients, writeRequest));
-          }
-        }
+    boolean dispatched = false;
+    int clientsWithRequests = roundRobin.size();
+    for (int i = 0; i < clientsWithRequests; i++) {
+      if (writeInProgress.size() >= vars.writeConcurrency) {
+        //the clients that were not served keep their place ahead of the ones that just were
+        break;
+      }
+      Socket client = roundRobin.pollFirst();
+      Deque<Object> queue = outboundQueues.get(client);
+      if (queue == null) {
+        continue;
+      }
+      if (!queue.isEmpty() && !writeInProgress.contains(client)) {
+        dispatchNext(client, queue);
+        dispatched = true;
+      }
+      if (queue.isEmpty()) {
+        outboundQueues.remove(client);
+      } else {
+        roundRobin.addLast(client);
+      }
+    }
+    return dispatched;
+  }
+
+  private void enqueueOutbound(Socket client, Object request) {
+    outboundQueues.computeIfAbsent(client, (newClient) -> {
+      roundRobin.addLast(newClient);
+      return new ArrayDeque<>();
+    }).addLast(request);
+  }
+
+  private void dispatchNext(Socket client, Deque<Object> queue) {
+    Object next = queue.pollFirst();
+    if (next instanceof InitData) {
+      InitData initData = (InitData) next;
+      startWrite(List.of(client));
+      workerPool.execute(() -> handleInitResponse(initData));
+      return;
+    }
+
+    WriteRequest writeRequest = (WriteRequest) next;
+    if (writeRequest.relevantClient != null) {
+      //long initial syncs are split up, so that broadcasts for the same client can go in between
+      WriteRequest batch = writeRequest;
+      if (writeRequest.paths.size() > vars.writeBatchFiles) {
+        batch = WriteRequest.requestForOneClient(
+            writeRequest.paths.subList(0, vars.writeBatchFiles), client);
+        queue.addLast(WriteRequest.requestForOneClient(
+            writeRequest.paths.subList(vars.writeBatchFiles, writeRequest.paths.size()), client));
+      }
+      WriteRequest singleWrite = batch;
+      startWrite(List.of(client));
+      workerPool.execute(() -> handleSingleWrite(singleWrite));
+      return;
+    }
+
+    List<Socket> relevantClients = new ArrayList<>();
+    relevantClients.add(client);
+    for (Socket otherClient : roundRobin) {
+      if (writeInProgress.size() + relevantClients.size() >= vars.writeConcurrency) {
+        break;
+      }
+      Deque<Object> otherQueue = outboundQueues.get(otherClient);
+      if (otherQueue != null && otherQueue.peekFirst() == writeRequest
+          && !writeInProgress.contains(otherClient)) {
+        otherQueue.pollFirst();
+        relevantClients.add(otherClient);
+      }
+    }
+    startWrite(relevantClients);
+    workerPool.execute(() -> handleMultiWrite(relevantClients, writeRequest));
+  }
+
+  private void startWrite(Collection<Socket> clients) {
+    long now = System.nanoTime();
+    for (Socket client : clients) {
+      writeStartNanos.put(client, now);
+    }
+    writeInProgress.addAll(clients);
+  }
+
+  private void finishWrite(Collection<Socket> clients) {
+    for (Socket client : clients) {
+      Long startNanos = writeStartNanos.remove(client);
+      if (startNanos != null) {
+        sharedSyncState.metrics.writeMillis.recordMillisSince(startNanos);
       }
-    } catch (InterruptedException e) {
-      e.printStackTrace();
     }
+    writeInProgress.removeAll(clients);
+    sharedSyncState.writeSignal.signal();
   }
 
+  /**
+   * Registers the raw output of a client, which is then used through a
+   * {@link CoalescingOutputStream}.
+   */
+  public void registerOutputStream(Socket client, OutputStream outputStream) {
+    outputStreamMap.put(client, coalesce(client, outputStream));
+  }
 
   private OutputStream getOutputStream(Socket client) throws IOException {
     synchronized (outputStreamMap) {
       OutputStream outputStream = outputStreamMap.get(client);
       if (outputStream == null) {
-        outputStream = client.getOutputStream();
+        outputStream = coalesce(client, client.getOutputStream());
         outputStreamMap.put(client, outputStream);
       }
       return outputStream;
     }
   }
 
+  private CoalescingOutputStream coalesce(Socket client, OutputStream outputStream) {
+    FileTransferTarget transferTarget = null;
+    if (outputStream instanceof FileTransferTarget) {
+      transferTarget = (FileTransferTarget) outputStream;
+    } else if (client.getChannel() != null && client.getChannel().isBlocking()) {
+      transferTarget = FileTransferTarget.forBlockingChannel(client.getChannel());
+    }
+    return new CoalescingOutputStream(outputStream, transferTarget,
+        sharedSyncState.sendCredit(client), sharedSyncState.clientMetrics(client),
+        vars.writeCoalesceBytes, vars.writeCoalesceMillis);
+  }
+
   private void handleInitResponse(InitData initData) {
     try {
-      System.out.println(
-          "Writing init response, requesting files: " + initData.filePathsMissingOnServer);
+      Log.info("Writing init response, requesting "
+          + initData.filePathsMissingOnServer.size() + " files.");
+      Log.debug(() -> "Requested files: " + initData.filePathsMissingOnServer);
       OutputStream outputStream = getOutputStream(initData.client);
-      byte[] payload = String.join("\n", initData.filePathsMissingOnServer)
-          .getBytes(StandardCharsets.UTF_8);
-      SyncFrame.writeFrame(new SyncFrame(SyncOpcode.INIT, payload), outputStream);
-      writeInProgress.remove(initData.client);
+      if (initData.acceptedCapabilities == null) {
+        byte[] payload = String.join("\n", initData.filePathsMissingOnServer)
+            .getBytes(StandardCharsets.UTF_8);
+        SyncFrame.writeFrame(new SyncFrame(SyncOpcode.INIT, payload), outputStream);
+      } else {
+        StringBuilder payload = new StringBuilder(
+            Capabilities.toLine(initData.acceptedCapabilities));
+        for (String path : initData.filePathsMissingOnServer) {
+          payload.append("\n").append(path);
+        }
+        SyncFrame.writeFrame(new SyncFrame(SyncOpcode.INIT_V2,
+            payload.toString().getBytes(StandardCharsets.UTF_8)), outputStream);
+        for (String resumeOffset : initData.resumeOffsets) {
+          SyncFrame.writeFrame(new SyncFrame(SyncOpcode.RESUME_OFFSET,
+              resumeOffset.getBytes(StandardCharsets.UTF_8)), outputStream);
+        }
+        for (String deltaPath : initData.deltaPaths) {
+          SyncFrame.writeFrame(new SyncFrame(SyncOpcode.SIGNATURE_REQUEST,
+              deltaPath.getBytes(StandardCharsets.UTF_8)), outputStream);
+        }
+      }
+      outputStream.flush();
+      finishWrite(List.of(initData.client));
     } catch (IOException e) {
-      e.printStackTrace();
+      Log.error("Could not write the init response", e);
       closeCallback.accept(initData.client);
     }
 
@@ -118,83 +274,400 @@ class WriteManager {
 
   private void handleSingleWrite(WriteRequest writeRequest) {
     try {
-      System.out.println("Writing files to single client: " + writeRequest.paths);
+      Log.info("Writing " + writeRequest.paths.size() + " files to single client.");
+      Log.debug(() -> "Written files: " + writeRequest.paths);
       OutputStream outputStream = getOutputStream(writeRequest.relevantClient);
-      for (String newPathFromServer : writeRequest.paths) {
-        writeFileToClient(newPathFromServer, outputStream);
+      FileTransferTarget transferTarget = getTransferTarget(writeRequest.relevantClient,
+          outputStream);
+      Set<String> capabilities = sharedSyncState.clientCapabilities.get(
+          writeRequest.relevantClient);
+      boolean deflate = isDeflateNegotiated(writeRequest.relevantClient);
+      if (writeRequest.signatures != null) {
+        writeDeltaToClient(writeRequest.signatures, outputStream);
+      } else if (writeRequest.resumeOffset > 0) {
+        writeResumedFileToClient(writeRequest.paths.get(0), writeRequest.resumeOffset,
+            outputStream, transferTarget, deflate);
+      } else if (writeRequest.paths.size() > 1 && capabilities != null
+          && capabilities.contains(Capabilities.STREAMS)) {
+        writeFilesAsStreams(writeRequest.paths, outputStream, transferTarget);
+      } else {
+        for (String newPathFromServer : writeRequest.paths) {
+          writeFileToClient(newPathFromServer, outputStream, transferTarget, deflate);
+        }
       }
-      writeInProgress.remove(writeRequest.relevantClient);
-    } catch (IOException e) {
-      e.printStackTrace();
+      outputStream.flush();
+      finishWrite(List.of(writeRequest.relevantClient));
+    } catch (IOException | InternalError e) {
+      //an InternalError is raised late for a mapped file that was truncated, see MappedChunks
+      Log.error("Could not write files to a client", e);
       closeCallback.accept(writeRequest.relevantClient);
     }
 
   }
 
-  private void writeFileToClient(String path, OutputStream outputStream)
-      throws IOException {
-    SyncFrame.writeFrame(new SyncFrame(SyncOpcode.NEW_FILE_PATH,
-        path.getBytes(StandardCharsets.UTF_8)), outputStream);
-    try (InputStream is = Files.newInputStream(
-        Paths.get(sharedSyncState.pathToRelativeFolder, path))) {
-      while (true) {
-        byte[] chunk = is.readNBytes(vars.chunkSize);
-        SyncFrame.writeFrame(new SyncFrame(SyncOpcode.NEW_FILE_PART,
-            chunk), outputStream);
-        if (chunk.length < vars.chunkSize) {
-          break;
-        }
+  /**
+   * @return the target for zero-copy transfers to the client or null, if the file parts need to be
+   * copied through the heap, which is also the case if they are compressed
+   */
+  private FileTransferTarget getTransferTarget(Socket client, OutputStream outputStream) {
+    if (vars.zeroCopy && !isDeflateNegotiated(client)
+        && outputStream instanceof CoalescingOutputStream
+        && ((CoalescingOutputStream) outputStream).supportsTransfer()) {
+      return (CoalescingOutputStream) outputStream;
+    }
+    return null;
+  }
+
+  private boolean isDeflateNegotiated(Socket client) {
+    Set<String> capabilities = sharedSyncState.clientCapabilities.get(client);
+    return capabilities != null && capabilities.contains(Capabilities.DEFLATE);
+  }
+
+  /**
+   * A file of the server folder that was opened for sending, with the version under which its
+   * chunks are cached.
+   */
+  private static class SourceFile implements AutoCloseable {
+
+    public final Path path;
+    public final ChunkCache.FileVersion version;
+    public final FileChannel channel;
+
+    SourceFile(Path path, ChunkCache.FileVersion version, FileChannel channel) {
+      this.path = path;
+      this.version = version;
+      this.channel = channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /**
+   * Opens the file before anything about it is sent. Known paths can be gone by now, for example
+   * when they were deleted while the server was down and the reconcile did not finish yet, or
+   * right after the folder watcher saw the deletion.
+   *
+   * @return null, if the file does not exist anymore, in which case it is left out of the transfer
+   */
+  private SourceFile openSourceFile(String path) throws IOException {
+    Path file = Paths.get(sharedSyncState.pathToRelativeFolder, path);
+    try {
+      //the version is read first, see ChunkCache.version
+      ChunkCache.FileVersion version = chunkCache.isEnabled()
+          ? ChunkCache.version(path, file) : null;
+      return new SourceFile(file, version, FileChannel.open(file, StandardOpenOption.READ));
+    } catch (NoSuchFileException e) {
+      Log.debug(() -> "Skipped " + path + ", it was deleted before it could be sent.");
+      return null;
+    }
+  }
+
+  private void writeFileToClient(String path, OutputStream outputStream,
+      FileTransferTarget transferTarget, boolean deflate) throws IOException {
+    try (SourceFile file = openSourceFile(path)) {
+      if (file == null) {
+        return;
       }
+      byte[] pathPayload = path.getBytes(StandardCharsets.UTF_8);
+      SyncFrame.writeFrame(new SyncFrame(SyncOpcode.NEW_FILE_PATH, pathPayload), outputStream);
+      writeFileParts(file, 0, outputStream, transferTarget, deflate);
+      SyncFrame.writeFrame(new SyncFrame(SyncOpcode.NEW_FILE_END, pathPayload), outputStream);
     }
-    SyncFrame.writeFrame(new SyncFrame(SyncOpcode.NEW_FILE_END,
-        path.getBytes(StandardCharsets.UTF_8)), outputStream);
+  }
 
+  /**
+   * Sends the rest of a file that the client already received up to the offset.
+   */
+  private void writeResumedFileToClient(String path, long offset, OutputStream outputStream,
+      FileTransferTarget transferTarget, boolean deflate) throws IOException {
+    try (SourceFile file = openSourceFile(path)) {
+      if (file == null) {
+        return;
+      }
+      SyncFrame.writeFrame(new SyncFrame(SyncOpcode.RESUME_FILE_PATH,
+          (path + "\t" + offset).getBytes(StandardCharsets.UTF_8)), outputStream);
+      writeFileParts(file, offset, outputStream, transferTarget, deflate);
+      SyncFrame.writeFrame(new SyncFrame(SyncOpcode.NEW_FILE_END,
+          path.getBytes(StandardCharsets.UTF_8)), outputStream);
+    }
+    Log.info("Resumed " + path + " at " + offset + " bytes.");
   }
 
-  private void handleMultiWrite(List<Socket> relevantClients, WriteRequest writeRequest) {
+  /**
+   * A file that is sent as one of several interleaved streams.
+   */
+  private static class OutgoingStream {
+
+    public final int streamId;
+    //in front of every part, for zero-copy transfers that write the header separately
+    public final byte[] streamIdBytes;
+    public final FileChannel file;
+    public final long size;
+    public long position = 0;
+
+    OutgoingStream(int streamId, FileChannel file) throws IOException {
+      this.streamId = streamId;
+      this.streamIdBytes = new byte[]{(byte) streamId, (byte) (streamId >>> 8),
+          (byte) (streamId >>> 16), (byte) (streamId >>> 24)};
+      this.file = file;
+      this.size = file.size();
+    }
+  }
+
+  /**
+   * Sends the files as interleaved streams. Up to STREAMS_PER_CLIENT files are open at once and
+   * each of them sends one part in turn, so small files are not stuck behind a large one.
+   */
+  private void writeFilesAsStreams(List<String> paths, OutputStream outputStream,
+      FileTransferTarget transferTarget) throws IOException {
+    int partSize = Math.min(vars.chunkSize, STREAM_PART_SIZE);
+    Deque<OutgoingStream> openStreams = new ArrayDeque<>();
+    ByteBuffer part = BufferPool.SHARED.acquire(4 + partSize).order(ByteOrder.LITTLE_ENDIAN);
+    int nextPath = 0;
     try {
-      System.out.println(
-          "Writing files to " + relevantClients.size() + " clients: " + writeRequest.paths);
-      var outputStreams = new ArrayList<OutputStream>(relevantClients.size());
-      for (Socket client : relevantClients) {
-        OutputStream outputStream = getOutputStream(client);
-        outputStreams.add(outputStream);
-      }
-      for (String path : writeRequest.paths) {
-        //the idea was to make this multi-threaded too, but the impl was slightly unstable
-        //so I removed it due to time-constraints and made it single-threaded again
-        byte[] pathPayload = path.getBytes(StandardCharsets.UTF_8);
-        SyncFrame startFrame = new SyncFrame(SyncOpcode.NEW_FILE_PATH,
-            pathPayload);
-        for (OutputStream os : outputStreams) {
-          SyncFrame.writeFrame(startFrame, os);
-        }
-
-        try (InputStream is = Files.newInputStream(
-            Paths.get(sharedSyncState.pathToRelativeFolder, path))) {
-          while (true) {
-            byte[] chunk = is.readNBytes(vars.chunkSize);
-            SyncFrame chunkFrame = new SyncFrame(SyncOpcode.NEW_FILE_PART,
-                chunk);
-            for (OutputStream os : outputStreams) {
-              SyncFrame.writeFrame(chunkFrame, os);
-            }
-            if (chunk.length < vars.chunkSize) {
+      while (nextPath < paths.size() || !openStreams.isEmpty()) {
+        while (openStreams.size() < vars.streamsPerClient && nextPath < paths.size()) {
+          String path = paths.get(nextPath);
+          SourceFile file = openSourceFile(path);
+          if (file == null) {
+            nextPath++;
+            continue;
+          }
+          //ids only have to be unique among open streams, all of them end within this write
+          OutgoingStream stream = new OutgoingStream(nextPath, file.channel);
+          nextPath++;
+          openStreams.addLast(stream);
+          byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+          part.clear();
+          part.putInt(stream.streamId).put(pathBytes).flip();
+          SyncFrame.writeFrame(SyncOpcode.STREAM_FILE_PATH, part, outputStream);
+        }
+        OutgoingStream stream = openStreams.pollFirst();
+        int length = (int) Math.min(partSize, stream.size - stream.position);
+        if (length > 0) {
+          writeStreamPart(stream, length, part, outputStream, transferTarget);
+        }
+        if (stream.position < stream.size) {
+          openStreams.addLast(stream);
+        } else {
+          stream.file.close();
+          part.clear();
+          part.putInt(stream.streamId).flip();
+          SyncFrame.writeFrame(SyncOpcode.STREAM_FILE_END, part, outputStream);
+        }
+      }
+    } finally {
+      for (OutgoingStream stream : openStreams) {
+        stream.file.close();
+      }
+      BufferPool.SHARED.release(part);
+    }
+  }
+
+  private void writeStreamPart(OutgoingStream stream, int length, ByteBuffer part,
+      OutputStream outputStream, FileTransferTarget transferTarget) throws IOException {
+    if (transferTarget != null) {
+      SyncFrame.writeHeader(SyncOpcode.STREAM_FILE_PART, 4 + length, outputStream);
+      outputStream.write(stream.streamIdBytes);
+      transferTarget.transferFrom(stream.file, stream.position, length);
+    } else {
+      part.clear();
+      part.putInt(stream.streamId).limit(4 + length);
+      while (part.hasRemaining()) {
+        if (stream.file.read(part, stream.position + part.position() - 4) == -1) {
+          throw new IOException("File got shorter while it was being sent");
+        }
+      }
+      part.flip();
+      SyncFrame.writeFrame(SyncOpcode.STREAM_FILE_PART, part, outputStream);
+    }
+    stream.position += length;
+  }
+
+  /**
+   * Sends the file as delta against the client's copy: literal data as NEW_FILE_PART frames and
+   * reused blocks as DELTA_COPY frames.
+   */
+  private void writeDeltaToClient(BlockDelta.Signatures signatures, OutputStream outputStream)
+      throws IOException {
+    String path = signatures.path;
+    ByteBuffer copyPayload = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    long[] literalBytes = {0};
+    try (SourceFile file = openSourceFile(path)) {
+      if (file == null) {
+        return;
+      }
+      String sha256;
+      try {
+        sha256 = sharedSyncState.contentIndex.sha256(path);
+      } catch (NoSuchFileException e) {
+        Log.debug(() -> "Skipped the delta of " + path + ", it was deleted before it was sent.");
+        return;
+      }
+      SyncFrame.writeFrame(new SyncFrame(SyncOpcode.DELTA_START,
+          (path + "\t" + sha256).getBytes(StandardCharsets.UTF_8)), outputStream);
+      BlockDelta.DeltaSink sink = new BlockDelta.DeltaSink() {
+        @Override
+        public void literal(ByteBuffer data) throws IOException {
+          literalBytes[0] += data.remaining();
+          SyncFrame.writeFrame(SyncOpcode.NEW_FILE_PART, data, outputStream);
+        }
+
+        @Override
+        public void copy(int firstBlock, int blockCount) throws IOException {
+          copyPayload.clear();
+          copyPayload.putInt(firstBlock).putInt(blockCount).flip();
+          SyncFrame.writeFrame(SyncOpcode.DELTA_COPY, copyPayload, outputStream);
+        }
+      };
+      BlockDelta.encode(file.channel, signatures, vars.chunkSize, BufferPool.SHARED,
+          sharedSyncState.inFlightBytes, sink);
+      SyncFrame.writeFrame(new SyncFrame(SyncOpcode.NEW_FILE_END,
+          path.getBytes(StandardCharsets.UTF_8)), outputStream);
+    }
+    Log.info("Sent delta of " + path + " with " + literalBytes[0] + " literal bytes.");
+  }
+
+  /**
+   * Writes the NEW_FILE_PART frames of the file, starting at the given position. Like all parts,
+   * the last one is shorter than the chunk size, if necessary empty.
+   *
+   * @param deflate whether parts that shrink are sent as NEW_FILE_PART_DEFLATED
+   */
+  private void writeFileParts(SourceFile file, long position, OutputStream outputStream,
+      FileTransferTarget transferTarget, boolean deflate) throws IOException {
+    FileChannel channel = file.channel;
+    if (position > channel.size()) {
+      throw new IOException("File got shorter while it was being sent: " + file.path);
+    }
+    if (transferTarget != null) {
+      long size = channel.size();
+      while (true) {
+        int length = (int) Math.min(vars.chunkSize, Math.max(0, size - position));
+        SyncFrame.writeHeader(SyncOpcode.NEW_FILE_PART, length, outputStream);
+        transferTarget.transferFrom(channel, position, length);
+        position += length;
+        if (length < vars.chunkSize) {
+          break;
+        }
+      }
+    } else if (vars.mmapThresholdBytes > 0 && channel.size() >= vars.mmapThresholdBytes) {
+      //large files would only push everything else out of the cache, like in FanOut
+      MappedChunks mappedChunks = new MappedChunks(file.path, channel, vars.chunkSize);
+      while (true) {
+        ByteBuffer chunk = mappedChunks.chunk(position);
+        int length = chunk.remaining();
+        byte[] compressed = deflate ? mappedChunks.compress(chunk) : null;
+        if (compressed != null) {
+          SyncFrame.writeFrame(new SyncFrame(SyncOpcode.NEW_FILE_PART_DEFLATED, compressed),
+              outputStream);
+        } else {
+          mappedChunks.writeFrame(SyncOpcode.NEW_FILE_PART, chunk, outputStream);
+        }
+        position += length;
+        if (length < vars.chunkSize) {
+          break;
+        }
+      }
+    } else if (file.version != null) {
+      while (true) {
+        ChunkCache.Chunk chunk = chunkCache.get(file.version, channel, position, vars.chunkSize);
+        byte[] compressed = deflate ? chunk.deflated() : null;
+        if (compressed != null) {
+          SyncFrame.writeFrame(new SyncFrame(SyncOpcode.NEW_FILE_PART_DEFLATED, compressed),
+              outputStream);
+        } else {
+          SyncFrame.writeFrame(SyncOpcode.NEW_FILE_PART, chunk.data(), outputStream);
+        }
+        position += chunk.length();
+        if (chunk.length() < vars.chunkSize) {
+          break;
+        }
+      }
+    } else {
+      //the chunk and its compressed copy
+      long budgetedBytes = deflate ? 2L * vars.chunkSize : vars.chunkSize;
+      sharedSyncState.inFlightBytes.acquire(budgetedBytes);
+      ByteBuffer chunk = BufferPool.SHARED.acquire(vars.chunkSize);
+      try {
+        channel.position(position);
+        while (true) {
+          chunk.clear().limit(vars.chunkSize);
+          while (chunk.hasRemaining()) {
+            if (channel.read(chunk) == -1) {
               break;
             }
           }
+          chunk.flip();
+          int length = chunk.remaining();
+          byte[] compressed = deflate ? ChunkCompression.compress(chunk) : null;
+          if (compressed != null) {
+            SyncFrame.writeFrame(new SyncFrame(SyncOpcode.NEW_FILE_PART_DEFLATED, compressed),
+                outputStream);
+          } else {
+            SyncFrame.writeFrame(SyncOpcode.NEW_FILE_PART, chunk, outputStream);
+          }
+          if (length < vars.chunkSize) {
+            break;
+          }
         }
+      } finally {
+        BufferPool.SHARED.release(chunk);
+        sharedSyncState.inFlightBytes.release(budgetedBytes);
+      }
+    }
+  }
 
-        SyncFrame endFrame = new SyncFrame(SyncOpcode.NEW_FILE_END,
-            pathPayload);
-        for (OutputStream os : outputStreams) {
-          SyncFrame.writeFrame(endFrame, os);
-        }
+  private void handleMultiWrite(List<Socket> relevantClients, WriteRequest writeRequest) {
+    Log.info("Writing " + writeRequest.paths.size() + " files to " + relevantClients.size()
+        + " clients.");
+    Log.debug(() -> "Written files: " + writeRequest.paths);
+    List<Socket> reachableClients = new ArrayList<>(relevantClients.size());
+    List<OutputStream> outputStreams = new ArrayList<>(relevantClients.size());
+    for (Socket client : relevantClients) {
+      try {
+        outputStreams.add(getOutputStream(client));
+        reachableClients.add(client);
+      } catch (IOException e) {
+        Log.error("Could not write files to a client", e);
+        closeCallback.accept(client);
+      }
+    }
+    //each client is drained by its own writer, which finishes the write for its client independently
+    new FanOut(vars, sharedSyncState.pathToRelativeFolder, fanOutPool, this::continueBroadcast,
+        (client) -> finishWrite(List.of(client)), closeCallback, this::isDeflateNegotiated,
+        chunkCache)
+        .broadcast(writeRequest.paths, reachableClients, outputStreams);
+  }
 
+  /**
+   * Sends the rest of a broadcast to a client that was too slow to keep up with the others.
+   */
+  private void continueBroadcast(List<String> paths, FanOut.Resume resume, Socket client,
+      OutputStream outputStream) throws IOException {
+    FileTransferTarget transferTarget = getTransferTarget(client, outputStream);
+    boolean deflate = isDeflateNegotiated(client);
+    String path = paths.get(resume.pathIndex);
+    if (resume.syncOpCode == SyncOpcode.NEW_FILE_PATH) {
+      writeFileToClient(path, outputStream, transferTarget, deflate);
+    } else {
+      if (resume.syncOpCode == SyncOpcode.NEW_FILE_PART) {
+        try (SourceFile file = openSourceFile(path)) {
+          if (file == null) {
+            //the client has the first parts already, so the file cannot be left out anymore
+            throw new IOException("File was deleted while it was being sent: " + path);
+          }
+          writeFileParts(file, resume.filePosition, outputStream, transferTarget, deflate);
+        }
       }
-    } catch (IOException e) {
-      e.printStackTrace();
+      SyncFrame.writeFrame(new SyncFrame(SyncOpcode.NEW_FILE_END,
+          path.getBytes(StandardCharsets.UTF_8)), outputStream);
+    }
+    for (String remainingPath : paths.subList(resume.pathIndex + 1, paths.size())) {
+      writeFileToClient(remainingPath, outputStream, transferTarget, deflate);
     }
-    writeInProgress.removeAll(relevantClients);
   }
 }
@@ -8,19 +8,36 @@ class WriteRequest {
   public final List<String> paths;
   public final Socket relevantClient;
   public final Socket notRelevantClient;
+  //set if the only path is sent as delta against the client's copy
+  public final BlockDelta.Signatures signatures;
+  //greater than 0 if the only path continues a partial copy of the client from this offset
+  public final long resumeOffset;
 
-  private WriteRequest(List<String> paths, Socket relevantClient, Socket notRelevantClient) {
+  private WriteRequest(List<String> paths, Socket relevantClient, Socket notRelevantClient,
+      BlockDelta.Signatures signatures, long resumeOffset) {
     this.paths = paths;
     this.relevantClient = relevantClient;
     this.notRelevantClient = notRelevantClient;
+    this.signatures = signatures;
+    this.resumeOffset = resumeOffset;
   }
 
   public static WriteRequest requestForOneClient(List<String> paths, Socket relevantClient) {
-    return new WriteRequest(paths, relevantClient, null);
+    return new WriteRequest(paths, relevantClient, null, null, 0);
   }
 
   public static WriteRequest requestForAllButOneClient(List<String> paths,
       Socket notRelevantClient) {
-    return new WriteRequest(paths, null, notRelevantClient);
+    return new WriteRequest(paths, null, notRelevantClient, null, 0);
+  }
+
+  public static WriteRequest deltaForOneClient(BlockDelta.Signatures signatures,
+      Socket relevantClient) {
+    return new WriteRequest(List.of(signatures.path), relevantClient, null, signatures, 0);
+  }
+
+  public static WriteRequest resumeForOneClient(String path, long resumeOffset,
+      Socket relevantClient) {
+    return new WriteRequest(List.of(path), relevantClient, null, null, resumeOffset);
   }
 }
@@ -0,0 +1,86 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+
+class AsyncAppenderTest {
+
+  public static AsyncAppender.Entry entry(String message) {
+    return new AsyncAppender.Entry(0, Log.Level.INFO, "worker", message, null);
+  }
+
+  @Test
+  public void lines_are_written_in_order_as_json() {
+    // GIVEN
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    AsyncAppender appender = new AsyncAppender(new PrintStream(output), true, 16);
+
+    // WHEN
+    appender.append(entry("first"));
+    appender.append(entry("second \"quoted\"\nline"));
+    appender.flush();
+    appender.close();
+
+    // THEN
+    assertEquals(
+        "{\"time\":\"1970-01-01T00:00:00Z\",\"level\":\"INFO\",\"thread\":\"worker\","
+            + "\"message\":\"first\"}\n"
+            + "{\"time\":\"1970-01-01T00:00:00Z\",\"level\":\"INFO\",\"thread\":\"worker\","
+            + "\"message\":\"second \\\"quoted\\\"\\nline\"}\n",
+        output.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void lines_are_dropped_instead_of_waiting_for_a_full_buffer() {
+    // GIVEN
+    CountDownLatch outputBlocked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    OutputStream slowOutput = new OutputStream() {
+      @Override
+      public void write(int b) {
+        write(new byte[]{(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) {
+        outputBlocked.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        output.write(bytes, offset, length);
+      }
+    };
+    AsyncAppender appender = new AsyncAppender(new PrintStream(slowOutput), false, 4);
+
+    // WHEN
+    appender.append(entry("blocks the writer"));
+    try {
+      outputBlocked.await();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    for (int i = 0; i < 10; i++) {
+      appender.append(entry("line " + i));
+    }
+    release.countDown();
+    appender.flush();
+    appender.close();
+
+    // THEN
+    assertEquals(6, appender.dropped.sum());
+    String written = output.toString(StandardCharsets.UTF_8);
+    assertTrue(written.contains("line 3"));
+    assertTrue(written.contains("WARN [log-writer] Dropped 6 log lines"));
+  }
+}
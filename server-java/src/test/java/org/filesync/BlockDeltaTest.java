@@ -0,0 +1,186 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BlockDeltaTest {
+
+  private static final int BLOCK_SIZE = 1024;
+
+  @TempDir
+  Path tempDir;
+
+  public static BlockDelta.Signatures createSignatures(byte[] oldContent) {
+    int blockCount = oldContent.length / BLOCK_SIZE;
+    int[] weakHashes = new int[blockCount];
+    byte[] strongHashes = new byte[blockCount * BlockDelta.STRONG_HASH_LENGTH];
+    MessageDigest digest = ContentIndex.newDigest();
+    for (int block = 0; block < blockCount; block++) {
+      weakHashes[block] = BlockDelta.weakHash(oldContent, block * BLOCK_SIZE, BLOCK_SIZE);
+      digest.update(oldContent, block * BLOCK_SIZE, BLOCK_SIZE);
+      System.arraycopy(digest.digest(), 0, strongHashes, block * BlockDelta.STRONG_HASH_LENGTH,
+          BlockDelta.STRONG_HASH_LENGTH);
+    }
+    return new BlockDelta.Signatures("file", BLOCK_SIZE, weakHashes, strongHashes);
+  }
+
+  //applies the delta like a client would
+  public static class ApplyingSink implements BlockDelta.DeltaSink {
+
+    private final byte[] oldContent;
+    public final ByteArrayOutputStream newContent = new ByteArrayOutputStream();
+    public long literalBytes = 0;
+
+    public ApplyingSink(byte[] oldContent) {
+      this.oldContent = oldContent;
+    }
+
+    public void literal(ByteBuffer data) {
+      byte[] bytes = new byte[data.remaining()];
+      data.get(bytes);
+      literalBytes += bytes.length;
+      newContent.writeBytes(bytes);
+    }
+
+    public void copy(int firstBlock, int blockCount) {
+      newContent.write(oldContent, firstBlock * BLOCK_SIZE, blockCount * BLOCK_SIZE);
+    }
+  }
+
+  public ApplyingSink encode(byte[] oldContent, byte[] newContent, int maxLiteralLength,
+      ApplyingSink sink) throws IOException {
+    return encode(oldContent, newContent, maxLiteralLength, new ByteBudget(0), sink);
+  }
+
+  public ApplyingSink encode(byte[] oldContent, byte[] newContent, int maxLiteralLength,
+      ByteBudget budget, ApplyingSink sink) throws IOException {
+    Path file = tempDir.resolve("file");
+    Files.write(file, newContent);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      BlockDelta.encode(channel, createSignatures(oldContent), maxLiteralLength,
+          new BufferPool(1024 * 1024), budget, sink);
+    }
+    return sink;
+  }
+
+  public static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(42).nextBytes(bytes);
+    return bytes;
+  }
+
+  @Test
+  public void inserted_bytes_are_the_only_literal_data() throws IOException {
+    // GIVEN
+    byte[] oldContent = randomBytes(200 * BLOCK_SIZE + 100);
+    byte[] newContent = new byte[oldContent.length + 10];
+    System.arraycopy(oldContent, 0, newContent, 0, 5000);
+    Arrays.fill(newContent, 5000, 5010, (byte) 7);
+    System.arraycopy(oldContent, 5000, newContent, 5010, oldContent.length - 5000);
+
+    // WHEN
+    ApplyingSink sink = encode(oldContent, newContent, 64 * 1024,
+        new ApplyingSink(oldContent));
+
+    // THEN
+    assertArrayEquals(newContent, sink.newContent.toByteArray());
+    //the changed block, the inserted bytes and the unmatched tail
+    assertTrue(sink.literalBytes <= 2 * BLOCK_SIZE + 10 + 100, "" + sink.literalBytes);
+  }
+
+  @Test
+  public void unknown_content_is_sent_as_literal_data_in_limited_pieces() throws IOException {
+    // GIVEN
+    byte[] oldContent = new byte[0];
+    byte[] newContent = randomBytes(10 * BLOCK_SIZE + 1);
+    int[] largestLiteral = {0};
+
+    // WHEN
+    ApplyingSink sink = encode(oldContent, newContent, 3000, new ApplyingSink(oldContent) {
+      @Override
+      public void literal(ByteBuffer data) {
+        largestLiteral[0] = Math.max(largestLiteral[0], data.remaining());
+        super.literal(data);
+      }
+    });
+
+    // THEN
+    assertArrayEquals(newContent, sink.newContent.toByteArray());
+    assertEquals(newContent.length, sink.literalBytes);
+    assertTrue(largestLiteral[0] <= 3000);
+  }
+
+  @Test
+  public void window_is_only_held_within_the_in_flight_budget() throws IOException {
+    // GIVEN
+    byte[] content = randomBytes(10 * BLOCK_SIZE);
+    ByteBudget budget = new ByteBudget(1024 * 1024);
+    long[] usedWhileEncoding = {0};
+
+    // WHEN
+    encode(new byte[0], content, 64 * 1024, budget, new ApplyingSink(new byte[0]) {
+      @Override
+      public void literal(ByteBuffer data) {
+        usedWhileEncoding[0] = budget.usedBytes();
+        super.literal(data);
+      }
+    });
+
+    // THEN
+    assertEquals(64 * 1024 + BLOCK_SIZE, usedWhileEncoding[0]);
+    assertEquals(0, budget.usedBytes());
+    assertThrows(IOException.class, () -> encode(new byte[0], content, 2 * 1024 * 1024, budget,
+        new ApplyingSink(new byte[0])));
+  }
+
+  @Test
+  public void identical_content_is_only_copied() throws IOException {
+    // GIVEN
+    byte[] content = randomBytes(50 * BLOCK_SIZE);
+
+    // WHEN
+    ApplyingSink sink = encode(content, content, 64 * 1024, new ApplyingSink(content));
+
+    // THEN
+    assertArrayEquals(content, sink.newContent.toByteArray());
+    assertEquals(0, sink.literalBytes);
+  }
+
+  @Test
+  public void zero_filled_content_is_copied_and_indexed_in_linear_time() throws IOException {
+    // GIVEN
+    byte[] content = new byte[1000 * BLOCK_SIZE];
+    //a sparse multi-GB file, every block has the same signature
+    int blockCount = 1_000_000;
+    int[] weakHashes = new int[blockCount];
+    Arrays.fill(weakHashes, BlockDelta.weakHash(content, 0, BLOCK_SIZE));
+
+    // WHEN
+    BlockDelta.Signatures signatures = assertTimeoutPreemptively(Duration.ofSeconds(10),
+        () -> new BlockDelta.Signatures("file", BLOCK_SIZE, weakHashes,
+            new byte[blockCount * BlockDelta.STRONG_HASH_LENGTH]));
+    ApplyingSink sink = encode(content, content, 64 * 1024, new ApplyingSink(content));
+
+    // THEN
+    assertEquals(blockCount, signatures.blockCount());
+    assertArrayEquals(content, sink.newContent.toByteArray());
+    assertEquals(0, sink.literalBytes);
+  }
+}
@@ -0,0 +1,124 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BlockingTransportTest {
+
+  private static final String API_KEY = "test-key";
+
+  private final List<AutoCloseable> resources = new ArrayList<>();
+  private SharedSyncState sharedSyncState;
+  private BlockingTransport transport;
+
+  @AfterEach
+  public void closeResources() throws Exception {
+    for (AutoCloseable resource : resources) {
+      resource.close();
+    }
+  }
+
+  private void startTransport(Path folder) throws IOException {
+    Map<String, String> env = Map.of("SERVER_PORT", "0", "API_KEY", API_KEY,
+        "SERVER_FOLDER", folder.toString());
+    EnvVars vars = new EnvVars(new String[]{"--debug"}, env::get);
+    sharedSyncState = new SharedSyncState(new CopyOnWriteArrayList<>(), List.of(),
+        folder.toString());
+    transport = new BlockingTransport(vars, sharedSyncState);
+    resources.add(transport);
+    Thread thread = new Thread(transport::run, "blocking-transport-test");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private Socket connect() throws IOException, InterruptedException {
+    Socket client = new Socket("localhost", transport.localPort());
+    client.setTcpNoDelay(true);
+    resources.add(client);
+    client.getOutputStream().write(API_KEY.getBytes(StandardCharsets.UTF_8));
+    long deadline = System.currentTimeMillis() + 5000;
+    while (sharedSyncState.clients.isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(1, sharedSyncState.clients.size());
+    return client;
+  }
+
+  @Test
+  public void frames_of_an_accepted_client_are_found_by_the_reading_loop(@TempDir Path folder)
+      throws IOException, InterruptedException {
+    // GIVEN
+    startTransport(folder);
+    Socket client = connect();
+    ReadManager manager = ReadManagerTest.createManager(sharedSyncState,
+        ReadManagerTest.createWorkerPool(), (socket) -> {
+        });
+
+    // WHEN
+    client.getOutputStream().write(ReadManagerTest.initFrame(List.of("a.txt")).toBytes());
+
+    // THEN
+    //the reading loop only dispatches clients whose socket reports available bytes
+    InitData initData = null;
+    long deadline = System.currentTimeMillis() + 5000;
+    while (initData == null && System.currentTimeMillis() < deadline) {
+      manager.executeReadCheck();
+      initData = sharedSyncState.initQueue.poll(10, TimeUnit.MILLISECONDS);
+    }
+    assert initData != null;
+    assertEquals(List.of("a.txt"), initData.filePathsMissingOnServer);
+  }
+
+  @Test
+  public void writes_to_a_client_do_not_wait_for_a_running_read(@TempDir Path folder)
+      throws IOException, InterruptedException, ExecutionException, TimeoutException {
+    // GIVEN
+    startTransport(folder);
+    Socket client = connect();
+    Socket accepted = sharedSyncState.clients.get(0);
+    InputStream acceptedInput = accepted.getInputStream();
+    CompletableFuture<Integer> read = CompletableFuture.supplyAsync(() -> {
+      try {
+        return acceptedInput.read();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    Thread.sleep(100);
+
+    // WHEN
+    CompletableFuture<Void> write = CompletableFuture.runAsync(() -> {
+      try {
+        accepted.getOutputStream().write(new byte[]{1, 2, 3});
+        accepted.getOutputStream().flush();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    write.get(5, TimeUnit.SECONDS);
+
+    // THEN
+    assertArrayEquals(new byte[]{1, 2, 3}, client.getInputStream().readNBytes(3));
+    assertNull(accepted.getChannel());
+    client.getOutputStream().write(7);
+    assertEquals(7, read.get(5, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,71 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class ByteBudgetTest {
+
+  public static CountDownLatch acquireInBackground(ByteBudget budget, long bytes) {
+    CountDownLatch acquired = new CountDownLatch(1);
+    Thread thread = new Thread(() -> {
+      try {
+        budget.acquire(bytes);
+        acquired.countDown();
+      } catch (InterruptedIOException e) {
+        e.printStackTrace();
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+    return acquired;
+  }
+
+  @Test
+  public void transfers_wait_until_earlier_ones_released_their_bytes()
+      throws InterruptedException, InterruptedIOException {
+    // GIVEN
+    ByteBudget budget = new ByteBudget(100);
+    budget.acquire(60);
+
+    // WHEN
+    CountDownLatch acquired = acquireInBackground(budget, 60);
+
+    // THEN
+    assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+    // WHEN
+    budget.release(60);
+
+    // THEN
+    assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    assertEquals(60, budget.usedBytes());
+    assertEquals(1, budget.stalls.get());
+  }
+
+  @Test
+  public void transfers_larger_than_the_budget_run_alone()
+      throws InterruptedException, InterruptedIOException {
+    // GIVEN
+    ByteBudget budget = new ByteBudget(100);
+    budget.acquire(10);
+
+    // WHEN
+    CountDownLatch acquired = acquireInBackground(budget, 500);
+
+    // THEN
+    assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+    // WHEN
+    budget.release(10);
+
+    // THEN
+    assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    assertEquals(500, budget.usedBytes());
+  }
+}
@@ -0,0 +1,71 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChunkCacheTest {
+
+  @TempDir
+  Path tempDir;
+
+  public static ChunkCache.Chunk getChunk(ChunkCache cache, Path file, long position,
+      int chunkSize) throws IOException {
+    ChunkCache.FileVersion version = ChunkCache.version(file.getFileName().toString(), file);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return cache.get(version, channel, position, chunkSize);
+    }
+  }
+
+  @Test
+  public void chunks_are_read_once_until_the_file_changes() throws IOException {
+    // GIVEN
+    Path file = tempDir.resolve("a.txt");
+    Files.writeString(file, "0123456789");
+    ChunkCache cache = new ChunkCache(1024, false);
+
+    // WHEN
+    ChunkCache.Chunk first = getChunk(cache, file, 4, 4);
+    ChunkCache.Chunk second = getChunk(cache, file, 4, 4);
+    Files.writeString(file, "abcdefghij");
+    Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+    ChunkCache.Chunk changed = getChunk(cache, file, 4, 4);
+
+    // THEN
+    assertSame(first, second);
+    assertEquals("4567", StandardCharsets.UTF_8.decode(first.data()).toString());
+    assertEquals("efgh", StandardCharsets.UTF_8.decode(changed.data()).toString());
+    assertEquals(1, cache.hits.get());
+    assertEquals(2, cache.misses.get());
+  }
+
+  @Test
+  public void least_recently_used_chunks_are_evicted_by_size() throws IOException {
+    // GIVEN
+    Path file = tempDir.resolve("b.bin");
+    Files.write(file, new byte[40]);
+    ChunkCache cache = new ChunkCache(25, true);
+
+    // WHEN
+    ChunkCache.Chunk first = getChunk(cache, file, 0, 10);
+    getChunk(cache, file, 10, 10);
+    getChunk(cache, file, 0, 10);
+    getChunk(cache, file, 20, 10);
+    ChunkCache.Chunk stillCached = getChunk(cache, file, 0, 10);
+    getChunk(cache, file, 10, 10);
+
+    // THEN
+    assertSame(first, stillCached);
+    assertEquals(2, cache.hits.get());
+    assertEquals(4, cache.misses.get());
+  }
+}
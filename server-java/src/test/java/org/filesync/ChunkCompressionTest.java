@@ -0,0 +1,52 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class ChunkCompressionTest {
+
+  @Test
+  public void text_parts_are_compressed_and_restored() throws IOException {
+    // GIVEN
+    StringBuilder csv = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      csv.append(i).append(",sensor-").append(i % 7).append(",").append(i * 31 % 1000)
+          .append("\n");
+    }
+    byte[] part = csv.toString().getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.wrap(part);
+
+    // WHEN
+    byte[] compressed = ChunkCompression.compress(buffer);
+    ByteArrayOutputStream restored = new ByteArrayOutputStream();
+    ChunkCompression.decompress(ByteBuffer.wrap(compressed), Channels.newChannel(restored));
+
+    // THEN
+    assertTrue(compressed.length < part.length / 3);
+    assertEquals(part.length, buffer.remaining());
+    assertArrayEquals(part, restored.toByteArray());
+  }
+
+  @Test
+  public void incompressible_parts_are_sent_as_is() {
+    // GIVEN
+    byte[] part = new byte[256 * 1024];
+    new Random(42).nextBytes(part);
+
+    // WHEN
+    byte[] compressed = ChunkCompression.compress(ByteBuffer.wrap(part));
+
+    // THEN
+    assertNull(compressed);
+  }
+}
@@ -0,0 +1,136 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.Test;
+
+class CoalescingOutputStreamTest {
+
+  //remembers the size of every write that reached the socket
+  public static class RecordingOutputStream extends ByteArrayOutputStream {
+
+    public final List<Integer> writes = new ArrayList<>();
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      writes.add(len);
+      super.write(b, off, len);
+    }
+  }
+
+  public static CoalescingOutputStream createStream(OutputStream out, SendCredit credit,
+      int bufferSize, long maxDelayMillis) {
+    return new CoalescingOutputStream(out, null, credit,
+        new Metrics.Client("client", new Metrics()), bufferSize, maxDelayMillis);
+  }
+
+  @Test
+  public void small_writes_are_sent_together_once_the_buffer_is_full() throws IOException {
+    // GIVEN
+    RecordingOutputStream sent = new RecordingOutputStream();
+    CoalescingOutputStream outputStream = createStream(sent, new SendCredit(), 8, 60_000);
+
+    // WHEN
+    outputStream.write(new byte[]{1, 2, 3});
+    outputStream.write(new byte[]{4, 5, 6});
+
+    // THEN
+    assertEquals(0, sent.size());
+
+    // WHEN
+    outputStream.write(new byte[]{7, 8, 9});
+
+    // THEN
+    assertEquals(List.of(6), sent.writes);
+
+    // WHEN
+    outputStream.write(new byte[16]);
+    outputStream.flush();
+
+    // THEN
+    //the buffered bytes first, then the large write as it is
+    assertEquals(List.of(6, 3, 16), sent.writes);
+  }
+
+  @Test
+  public void a_lone_small_write_is_sent_once_its_delay_passed()
+      throws IOException, InterruptedException {
+    // GIVEN
+    RecordingOutputStream sent = new RecordingOutputStream();
+    CoalescingOutputStream outputStream = createStream(sent, new SendCredit(), 1024, 20);
+
+    // WHEN
+    outputStream.write(new byte[]{1, 2, 3});
+
+    // THEN
+    assertEquals(0, sent.size());
+    long deadline = System.currentTimeMillis() + 5000;
+    while (sent.size() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertArrayEquals(new byte[]{1, 2, 3}, sent.toByteArray());
+  }
+
+  @Test
+  public void large_buffers_outside_the_heap_are_copied_in_pieces() throws IOException {
+    // GIVEN
+    RecordingOutputStream sent = new RecordingOutputStream();
+    CoalescingOutputStream outputStream = createStream(sent, new SendCredit(), 16, 60_000);
+    int length = 2 * CoalescingOutputStream.SCRATCH_SIZE + 1;
+    ByteBuffer source = ByteBuffer.allocateDirect(length);
+    for (int i = 0; i < length; i++) {
+      source.put((byte) i);
+    }
+    source.flip();
+
+    // WHEN
+    outputStream.write(source);
+
+    // THEN
+    assertEquals(List.of(CoalescingOutputStream.SCRATCH_SIZE, CoalescingOutputStream.SCRATCH_SIZE,
+        1), sent.writes);
+    byte[] bytes = sent.toByteArray();
+    for (int i = 0; i < length; i++) {
+      assertEquals((byte) i, bytes[i]);
+    }
+  }
+
+  @Test
+  public void a_writer_that_waits_for_credit_does_not_block_the_close_frame()
+      throws IOException, InterruptedException, ExecutionException, TimeoutException {
+    // GIVEN
+    ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    SendCredit credit = new SendCredit();
+    credit.limit();
+    CoalescingOutputStream outputStream = createStream(sent, credit, 1024, 60_000);
+    CompletableFuture<Void> write = CompletableFuture.runAsync(() -> {
+      try {
+        outputStream.write(new byte[]{1, 2, 3});
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    Thread.sleep(100);
+
+    // WHEN
+    credit.close();
+    boolean written = outputStream.tryWriteAndFlush(SyncFrame.closeFrame(), 1000);
+    write.get(5, TimeUnit.SECONDS);
+
+    // THEN
+    assertTrue(written);
+    assertTrue(sent.size() >= SyncFrame.closeFrame().toBytes().length);
+  }
+}
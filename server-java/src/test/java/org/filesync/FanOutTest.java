@@ -0,0 +1,211 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FanOutTest {
+
+  private final List<Socket> finished = new CopyOnWriteArrayList<>();
+  private final List<Socket> closed = new CopyOnWriteArrayList<>();
+
+  private FanOut createFanOut(Path folder, Executor writerPool,
+      FanOut.DetachedWriter detachedWriter) {
+    return createFanOut(new EnvVars(new String[]{"--debug"}), folder, writerPool, detachedWriter);
+  }
+
+  private FanOut createFanOut(EnvVars vars, Path folder, Executor writerPool,
+      FanOut.DetachedWriter detachedWriter) {
+    return new FanOut(vars, folder.toString(), writerPool, detachedWriter, finished::add,
+        closed::add, (client) -> false, new ChunkCache(0, false));
+  }
+
+  //tiny chunks and a queue of one chunk, so that a client that does not read falls behind at once
+  public static EnvVars laggardVars(FanOut.LaggardPolicy policy) {
+    Map<String, String> env = Map.of("CHUNK_SIZE", "4", "FANOUT_QUEUE_CHUNKS", "1",
+        "LAGGARD_POLICY", policy.name());
+    return new EnvVars(new String[]{"--debug"}, env::get);
+  }
+
+  //the frames that a client receives for the file, if it is broadcast in chunks of the given size
+  public static byte[] broadcastOf(String path, String content, int chunkSize) throws IOException {
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+    byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+    frames.write(new SyncFrame(SyncOpcode.NEW_FILE_PATH, pathBytes).toBytes());
+    for (int position = 0; ; position += chunkSize) {
+      int length = Math.min(chunkSize, contentBytes.length - position);
+      frames.write(new SyncFrame(SyncOpcode.NEW_FILE_PART,
+          Arrays.copyOfRange(contentBytes, position, position + length)).toBytes());
+      if (length < chunkSize) {
+        break;
+      }
+    }
+    frames.write(new SyncFrame(SyncOpcode.NEW_FILE_END, pathBytes).toBytes());
+    return frames.toByteArray();
+  }
+
+  //runs the writer of the first client right away, the others only once they are released, so
+  //that they fall behind deterministically
+  public static class StalledWriters implements Executor {
+
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+    private final List<Runnable> stalled = new ArrayList<>();
+    private boolean first = true;
+
+    @Override
+    public synchronized void execute(Runnable writer) {
+      if (first) {
+        first = false;
+        pool.execute(writer);
+      } else {
+        stalled.add(writer);
+      }
+    }
+
+    public synchronized void releaseAndAwait() throws InterruptedException {
+      stalled.forEach(pool::execute);
+      pool.shutdown();
+      pool.awaitTermination(5, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void files_that_were_deleted_before_the_broadcast_are_left_out(@TempDir Path folder)
+      throws IOException, InterruptedException {
+    // GIVEN
+    Files.writeString(folder.resolve("present"), "content");
+    Socket client1 = mock(Socket.class);
+    Socket client2 = mock(Socket.class);
+    ByteArrayOutputStream output1 = new ByteArrayOutputStream();
+    ByteArrayOutputStream output2 = new ByteArrayOutputStream();
+    ExecutorService writerPool = Executors.newCachedThreadPool();
+    FanOut fanOut = createFanOut(folder, writerPool, (paths, resume, client, outputStream) -> {
+    });
+
+    // WHEN
+    fanOut.broadcast(List.of("gone", "present"), List.of(client1, client2),
+        List.of(output1, output2));
+    writerPool.shutdown();
+    writerPool.awaitTermination(5, TimeUnit.SECONDS);
+
+    // THEN
+    assertTrue(closed.isEmpty());
+    assertEquals(2, finished.size());
+    for (ByteArrayOutputStream output : List.of(output1, output2)) {
+      String sent = output.toString(StandardCharsets.UTF_8);
+      assertTrue(sent.contains("present") && sent.contains("content"));
+      assertFalse(sent.contains("gone"));
+    }
+  }
+
+  @Test
+  public void dropped_laggard_continues_on_its_own_where_it_fell_behind(@TempDir Path folder)
+      throws IOException, InterruptedException {
+    // GIVEN
+    Files.writeString(folder.resolve("file"), "0123456789".repeat(4));
+    Socket fastClient = mock(Socket.class);
+    Socket slowClient = mock(Socket.class);
+    ByteArrayOutputStream fastOutput = new ByteArrayOutputStream();
+    ByteArrayOutputStream slowOutput = new ByteArrayOutputStream();
+    List<FanOut.Resume> resumes = new CopyOnWriteArrayList<>();
+    StalledWriters writerPool = new StalledWriters();
+    FanOut fanOut = createFanOut(laggardVars(FanOut.LaggardPolicy.DROP), folder, writerPool,
+        (paths, resume, client, outputStream) -> resumes.add(resume));
+
+    // WHEN
+    fanOut.broadcast(List.of("file"), List.of(fastClient, slowClient),
+        List.of(fastOutput, slowOutput));
+    writerPool.releaseAndAwait();
+
+    // THEN
+    assertTrue(closed.isEmpty());
+    assertEquals(Set.of(fastClient, slowClient), Set.copyOf(finished));
+    assertArrayEquals(broadcastOf("file", "0123456789".repeat(4), 4), fastOutput.toByteArray());
+    //the slow client got the path and was dropped at the first part, which its queue had no room for
+    assertEquals(1, resumes.size());
+    assertEquals(0, resumes.get(0).pathIndex);
+    assertEquals(SyncOpcode.NEW_FILE_PART, resumes.get(0).syncOpCode);
+    assertEquals(0, resumes.get(0).filePosition);
+    assertArrayEquals(new SyncFrame(SyncOpcode.NEW_FILE_PATH,
+        "file".getBytes(StandardCharsets.UTF_8)).toBytes(), slowOutput.toByteArray());
+  }
+
+  @Test
+  public void laggard_is_disconnected_while_the_others_get_everything(@TempDir Path folder)
+      throws IOException, InterruptedException {
+    // GIVEN
+    Files.writeString(folder.resolve("file"), "0123456789".repeat(4));
+    Socket fastClient = mock(Socket.class);
+    Socket slowClient = mock(Socket.class);
+    ByteArrayOutputStream fastOutput = new ByteArrayOutputStream();
+    ByteArrayOutputStream slowOutput = new ByteArrayOutputStream();
+    StalledWriters writerPool = new StalledWriters();
+    FanOut fanOut = createFanOut(laggardVars(FanOut.LaggardPolicy.DISCONNECT), folder,
+        writerPool, (paths, resume, client, outputStream) -> {
+          //will not be executed
+          throw new RuntimeException();
+        });
+
+    // WHEN
+    fanOut.broadcast(List.of("file"), List.of(fastClient, slowClient),
+        List.of(fastOutput, slowOutput));
+    writerPool.releaseAndAwait();
+
+    // THEN
+    assertEquals(List.of(slowClient), closed);
+    verify(slowClient).close();
+    assertEquals(List.of(fastClient), finished);
+    assertArrayEquals(broadcastOf("file", "0123456789".repeat(4), 4), fastOutput.toByteArray());
+  }
+
+  @Test
+  public void spilled_laggard_gets_the_same_frames_once_it_caught_up(@TempDir Path folder)
+      throws IOException, InterruptedException {
+    // GIVEN
+    Files.writeString(folder.resolve("file"), "0123456789".repeat(4));
+    Socket fastClient = mock(Socket.class);
+    Socket slowClient = mock(Socket.class);
+    ByteArrayOutputStream fastOutput = new ByteArrayOutputStream();
+    ByteArrayOutputStream slowOutput = new ByteArrayOutputStream();
+    StalledWriters writerPool = new StalledWriters();
+    FanOut fanOut = createFanOut(laggardVars(FanOut.LaggardPolicy.SPILL), folder, writerPool,
+        (paths, resume, client, outputStream) -> {
+          //will not be executed
+          throw new RuntimeException();
+        });
+
+    // WHEN
+    fanOut.broadcast(List.of("file"), List.of(fastClient, slowClient),
+        List.of(fastOutput, slowOutput));
+    writerPool.releaseAndAwait();
+
+    // THEN
+    assertTrue(closed.isEmpty());
+    assertEquals(Set.of(fastClient, slowClient), Set.copyOf(finished));
+    assertArrayEquals(broadcastOf("file", "0123456789".repeat(4), 4), fastOutput.toByteArray());
+    assertArrayEquals(fastOutput.toByteArray(), slowOutput.toByteArray());
+  }
+}
@@ -0,0 +1,70 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileCatalogTest {
+
+  @Test
+  public void records_reach_the_log_once_the_catalog_is_flushed(@TempDir Path folder)
+      throws IOException {
+    // GIVEN
+    FileCatalog catalog = new FileCatalog(folder);
+    catalog.load();
+    Path logFile = folder.resolve(FileCatalog.LOG_FILE_NAME);
+
+    // WHEN
+    catalog.recordAdded("a.txt");
+    catalog.recordAdded("b.txt");
+    catalog.recordRemoved("a.txt");
+
+    // THEN
+    assertEquals(0, Files.size(logFile));
+
+    // WHEN
+    catalog.flush();
+
+    // THEN
+    assertEquals(List.of("+a.txt", "+b.txt", "-a.txt"), Files.readAllLines(logFile));
+    assertFalse(Files.exists(folder.resolve(FileCatalog.SNAPSHOT_FILE_NAME)));
+    assertEquals(List.of("b.txt"), new FileCatalog(folder).load());
+  }
+
+  @Test
+  public void log_is_only_compacted_once_it_outgrew_the_snapshot(@TempDir Path folder)
+      throws IOException {
+    // GIVEN
+    FileCatalog catalog = new FileCatalog(folder);
+    catalog.load();
+    Path logFile = folder.resolve(FileCatalog.LOG_FILE_NAME);
+    for (int i = 0; i < 4000; i++) {
+      catalog.recordAdded("file-" + i);
+    }
+    for (int i = 0; i < 4000; i++) {
+      catalog.recordRemoved("file-" + i);
+    }
+    catalog.flush();
+    assertEquals(8000, Files.readAllLines(logFile).size());
+
+    // WHEN
+    for (int i = 0; i < 4000; i++) {
+      catalog.recordAdded("file-" + i);
+    }
+    catalog.flush();
+
+    // THEN
+    assertEquals(0, Files.size(logFile));
+    List<String> snapshot = Files.readAllLines(folder.resolve(FileCatalog.SNAPSHOT_FILE_NAME));
+    assertEquals(4000, snapshot.size());
+    assertTrue(snapshot.contains("file-3999"));
+    assertEquals(4000, new FileCatalog(folder).load().size());
+  }
+}
@@ -0,0 +1,112 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileCommitterTest {
+
+  public static Path writeTempFile(Path target, String content) throws IOException {
+    Path tempFile = FileCommitter.tempFile(target);
+    Files.writeString(tempFile, content);
+    return tempFile;
+  }
+
+  @Test
+  public void temp_file_replaces_the_target(@TempDir Path folder)
+      throws IOException, InterruptedException, ExecutionException, TimeoutException {
+    // GIVEN
+    Path target = folder.resolve("file.txt");
+    Files.writeString(target, "old");
+    Path tempFile = writeTempFile(target, "new");
+    FileCommitter committer = new FileCommitter(10);
+
+    // WHEN
+    committer.commit(tempFile, target).get(5, TimeUnit.SECONDS);
+
+    // THEN
+    assertEquals("new", Files.readString(target));
+    assertFalse(Files.exists(tempFile));
+  }
+
+  @Test
+  public void commits_within_the_interval_are_completed_together(@TempDir Path folder)
+      throws IOException, InterruptedException, ExecutionException, TimeoutException {
+    // GIVEN
+    FileCommitter committer = new FileCommitter(300);
+    List<Path> targets = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      Path target = folder.resolve("file" + i);
+      writeTempFile(target, "content " + i);
+      targets.add(target);
+    }
+
+    // WHEN
+    List<CompletableFuture<Void>> commits = new ArrayList<>();
+    for (Path target : targets) {
+      commits.add(committer.commit(FileCommitter.tempFile(target), target));
+    }
+
+    // THEN
+    //nothing is renamed before the interval passed, so later uploads can still join the batch
+    assertTrue(commits.stream().noneMatch(CompletableFuture::isDone));
+    assertFalse(Files.exists(targets.get(0)));
+    CompletableFuture.allOf(commits.toArray(new CompletableFuture<?>[0]))
+        .get(5, TimeUnit.SECONDS);
+    for (int i = 0; i < targets.size(); i++) {
+      assertEquals("content " + i, Files.readString(targets.get(i)));
+    }
+  }
+
+  @Test
+  public void failed_commit_does_not_fail_the_rest_of_its_batch(@TempDir Path folder)
+      throws IOException, InterruptedException, ExecutionException, TimeoutException {
+    // GIVEN
+    FileCommitter committer = new FileCommitter(100);
+    Path target = folder.resolve("file.txt");
+    Path missingTarget = folder.resolve("missing.txt");
+
+    // WHEN
+    CompletableFuture<Void> commit = committer.commit(writeTempFile(target, "content"), target);
+    CompletableFuture<Void> missingCommit = committer.commit(
+        FileCommitter.tempFile(missingTarget), missingTarget);
+
+    // THEN
+    commit.get(5, TimeUnit.SECONDS);
+    assertEquals("content", Files.readString(target));
+    ExecutionException failure = assertThrows(ExecutionException.class,
+        () -> missingCommit.get(5, TimeUnit.SECONDS));
+    assertInstanceOf(NoSuchFileException.class, failure.getCause());
+    assertFalse(Files.exists(missingTarget));
+  }
+
+  @Test
+  public void without_fsync_interval_the_file_is_renamed_right_away(@TempDir Path folder)
+      throws IOException {
+    // GIVEN
+    FileCommitter committer = new FileCommitter(-1);
+    Path target = folder.resolve("file.txt");
+
+    // WHEN
+    CompletableFuture<Void> commit = committer.commit(writeTempFile(target, "content"), target);
+
+    // THEN
+    assertTrue(commit.isDone());
+    assertEquals("content", Files.readString(target));
+  }
+}
@@ -0,0 +1,65 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FolderScannerTest {
+
+  @Test
+  public void nested_files_are_found_relative_to_the_folder(@TempDir Path folder)
+      throws IOException {
+    // GIVEN
+    Files.createDirectories(folder.resolve("a/b/c"));
+    Files.createDirectories(folder.resolve("empty"));
+    Files.writeString(folder.resolve("top.txt"), "top");
+    Files.writeString(folder.resolve("a/one.txt"), "one");
+    Files.writeString(folder.resolve("a/b/c/deep.txt"), "deep");
+    FolderScanner scanner = new FolderScanner(folder.toString(), 4);
+
+    // WHEN
+    Set<String> foundPaths = ConcurrentHashMap.newKeySet();
+    scanner.scan(foundPaths::add);
+
+    // THEN
+    assertEquals(Set.of("top.txt", "a/one.txt", "a/b/c/deep.txt"), foundPaths);
+  }
+
+  @Test
+  public void temp_files_of_running_uploads_are_skipped(@TempDir Path folder)
+      throws IOException {
+    // GIVEN
+    Files.createDirectories(folder.resolve("dir"));
+    Files.writeString(folder.resolve("done.txt"), "done");
+    Files.writeString(FileCommitter.tempFile(folder.resolve("dir/upload.txt")), "half");
+    FolderScanner scanner = new FolderScanner(folder.toString(), 2);
+
+    // WHEN
+    Set<String> foundPaths = ConcurrentHashMap.newKeySet();
+    Set<Path> foundDirectories = ConcurrentHashMap.newKeySet();
+    scanner.scan(folder, foundDirectories::add,
+        (foundPath, attributes) -> foundPaths.add(foundPath));
+
+    // THEN
+    assertEquals(Set.of("done.txt"), foundPaths);
+    assertEquals(Set.of(folder, folder.resolve("dir")), foundDirectories);
+  }
+
+  @Test
+  public void folder_that_cannot_be_listed_fails_the_scan(@TempDir Path folder) {
+    // GIVEN
+    FolderScanner scanner = new FolderScanner(folder.toString(), 2);
+
+    // THEN
+    assertThrows(IOException.class, () -> scanner.scan(folder.resolve("missing"), (directory) -> {
+    }, (foundPath, attributes) -> {
+    }));
+  }
+}
@@ -0,0 +1,81 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FolderWatcherTest {
+
+  private static final long DEBOUNCE_MILLIS = 300;
+
+  //starts watching the folder and returns once the first scan found the initial file
+  public static SharedSyncState startWatching(Path folder)
+      throws IOException, InterruptedException {
+    Files.writeString(folder.resolve("initial"), "initial");
+    Map<String, String> env = Map.of("SERVER_FOLDER", folder.toString(),
+        "WATCH_DEBOUNCE_MILLIS", String.valueOf(DEBOUNCE_MILLIS), "RESCAN_SECONDS", "0");
+    EnvVars vars = new EnvVars(new String[]{"--debug"}, env::get);
+    SharedSyncState sharedSyncState = new SharedSyncState(new CopyOnWriteArrayList<>(),
+        List.of(), folder.toString());
+    new FolderWatcher(sharedSyncState, new SyncManager(sharedSyncState, vars), vars).start();
+    WriteRequest scanned = sharedSyncState.writeQueue.poll(5, TimeUnit.SECONDS);
+    assert scanned != null;
+    assertEquals(List.of("initial"), scanned.paths);
+    return sharedSyncState;
+  }
+
+  @Test
+  public void burst_of_writes_to_a_file_is_sent_once(@TempDir Path folder)
+      throws IOException, InterruptedException {
+    // GIVEN
+    SharedSyncState sharedSyncState = startWatching(folder);
+
+    // WHEN
+    for (int i = 0; i < 5; i++) {
+      Files.writeString(folder.resolve("burst.txt"), "version " + i);
+      Thread.sleep(10);
+    }
+
+    // THEN
+    WriteRequest writeRequest = sharedSyncState.writeQueue.poll(5, TimeUnit.SECONDS);
+    assert writeRequest != null;
+    assertNull(writeRequest.notRelevantClient);
+    assertEquals(List.of("burst.txt"), writeRequest.paths);
+    assertNull(sharedSyncState.writeQueue.poll(3 * DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void temp_files_are_ignored_until_they_are_renamed(@TempDir Path folder)
+      throws IOException, InterruptedException {
+    // GIVEN
+    SharedSyncState sharedSyncState = startWatching(folder);
+    Path file = folder.resolve("upload.txt");
+    Path tempFile = FileCommitter.tempFile(file);
+
+    // WHEN
+    Files.writeString(tempFile, "half");
+
+    // THEN
+    assertNull(sharedSyncState.writeQueue.poll(3 * DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS));
+
+    // WHEN
+    Files.writeString(tempFile, "half and the rest");
+    Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE);
+
+    // THEN
+    WriteRequest writeRequest = sharedSyncState.writeQueue.poll(5, TimeUnit.SECONDS);
+    assert writeRequest != null;
+    assertEquals(List.of("upload.txt"), writeRequest.paths);
+    assertNull(sharedSyncState.writeQueue.poll(3 * DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS));
+  }
+}
@@ -0,0 +1,101 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MappedChunksTest {
+
+  @TempDir
+  Path tempDir;
+
+  public static String text(ByteBuffer chunk) {
+    return StandardCharsets.UTF_8.decode(chunk).toString();
+  }
+
+  @Test
+  public void chunks_are_read_across_windows() throws IOException {
+    // GIVEN
+    Path file = tempDir.resolve("a.txt");
+    Files.writeString(file, "0123456789");
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      //windows of two chunks
+      MappedChunks chunks = new MappedChunks(file, channel, 3, 7);
+
+      // WHEN
+      ByteBuffer first = chunks.chunk(0);
+      ByteBuffer third = chunks.chunk(6);
+      ByteBuffer last = chunks.chunk(9);
+      ByteBuffer unaligned = chunks.chunk(5);
+
+      // THEN
+      assertTrue(first.isReadOnly());
+      assertEquals("012", text(first));
+      assertEquals("678", text(third));
+      assertEquals("9", text(last));
+      assertEquals("567", text(unaligned));
+      assertEquals(0, chunks.chunk(10).remaining());
+    }
+  }
+
+  @Test
+  public void only_chunks_whose_sample_shrinks_are_compressed() throws IOException {
+    // GIVEN
+    byte[] random = new byte[4 * ChunkCompression.SAMPLE_SIZE];
+    new Random(42).nextBytes(random);
+    Path compressible = tempDir.resolve("zeros.bin");
+    Path incompressible = tempDir.resolve("random.bin");
+    Files.write(compressible, new byte[random.length]);
+    Files.write(incompressible, random);
+
+    try (FileChannel zeros = FileChannel.open(compressible, StandardOpenOption.READ);
+        FileChannel randomBytes = FileChannel.open(incompressible, StandardOpenOption.READ)) {
+      // WHEN
+      MappedChunks zeroChunks = new MappedChunks(compressible, zeros, random.length);
+      MappedChunks randomChunks = new MappedChunks(incompressible, randomBytes, random.length);
+      byte[] compressed = zeroChunks.compress(zeroChunks.chunk(0));
+      byte[] notCompressed = randomChunks.compress(randomChunks.chunk(0));
+
+      // THEN
+      assertNotNull(compressed);
+      assertTrue(compressed.length < random.length / 10);
+      assertNull(notCompressed);
+    }
+  }
+
+  @Test
+  public void reading_a_chunk_of_a_truncated_file_fails_with_an_io_exception() throws IOException {
+    // GIVEN
+    Path file = tempDir.resolve("truncated.bin");
+    Files.write(file, new byte[64 * 1024]);
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      MappedChunks chunks = new MappedChunks(file, channel, 64 * 1024);
+      ByteBuffer chunk = chunks.chunk(0);
+
+      // WHEN
+      channel.truncate(0);
+
+      // THEN
+      assertThrows(IOException.class, () -> chunks.writeFrame(SyncOpcode.NEW_FILE_PART,
+          chunk.duplicate(), new ByteArrayOutputStream()));
+      assertThrows(IOException.class, () -> chunks.compress(chunk));
+    }
+  }
+}
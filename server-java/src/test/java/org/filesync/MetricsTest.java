@@ -0,0 +1,57 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.net.Socket;
+import org.junit.jupiter.api.Test;
+
+class MetricsTest {
+
+  @Test
+  public void histogram_reports_the_bucket_of_a_quantile() {
+    // GIVEN
+    Metrics.Histogram histogram = new Metrics.Histogram();
+
+    // WHEN
+    for (int i = 0; i < 99; i++) {
+      histogram.record(3);
+    }
+    histogram.record(1000);
+
+    // THEN
+    assertEquals(100, histogram.count());
+    assertEquals(99 * 3 + 1000, histogram.sum());
+    assertEquals(4, histogram.quantile(0.5));
+    assertEquals(4, histogram.quantile(0.99));
+    assertEquals(1024, histogram.quantile(1));
+  }
+
+  @Test
+  public void text_contains_counters_gauges_buckets_and_clients() {
+    // GIVEN
+    Metrics metrics = new Metrics();
+    Socket socket = mock(Socket.class);
+    metrics.gauge("write_queue_depth", () -> 7);
+    metrics.client(socket, "a").frameReceived(105);
+    metrics.uploadMillis.record(2);
+
+    // WHEN
+    StringBuilder text = new StringBuilder();
+    metrics.writeText(text);
+    metrics.removeClient(socket);
+    StringBuilder textWithoutClient = new StringBuilder();
+    metrics.writeText(textWithoutClient);
+
+    // THEN
+    assertTrue(text.toString().contains("filesync_bytes_received 105\n"));
+    assertTrue(text.toString().contains("filesync_write_queue_depth 7\n"));
+    assertTrue(text.toString().contains("filesync_upload_millis_bucket{le=\"1\"} 0\n"));
+    assertTrue(text.toString().contains("filesync_upload_millis_bucket{le=\"2\"} 1\n"));
+    assertTrue(text.toString().contains("filesync_upload_millis_bucket{le=\"+Inf\"} 1\n"));
+    assertTrue(text.toString().contains("filesync_client_frames_received{client=\"a\"} 1\n"));
+    assertFalse(textWithoutClient.toString().contains("client=\"a\""));
+  }
+}
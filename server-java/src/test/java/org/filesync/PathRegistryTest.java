@@ -0,0 +1,133 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class PathRegistryTest {
+
+  @Test
+  public void claimed_path_becomes_available_once_its_upload_completed() {
+    // GIVEN
+    PathRegistry registry = new PathRegistry(List.of());
+
+    // WHEN
+    boolean claimed = registry.claimForUpload("path");
+
+    // THEN
+    assertTrue(claimed);
+    assertEquals(PathRegistry.PathState.UPLOADING, registry.state("path"));
+    assertEquals(Set.of("path"), registry.uploading());
+    assertFalse(registry.isAvailable("path"));
+
+    // WHEN
+    registry.completeUpload("path");
+
+    // THEN
+    assertEquals(PathRegistry.PathState.AVAILABLE, registry.state("path"));
+    assertEquals(Set.of("path"), registry.available());
+    assertTrue(registry.uploading().isEmpty());
+  }
+
+  @Test
+  public void aborted_upload_releases_the_path_for_another_claim() {
+    // GIVEN
+    PathRegistry registry = new PathRegistry(List.of());
+    registry.claimForUpload("path");
+
+    // WHEN
+    registry.abortUpload("path");
+
+    // THEN
+    assertNull(registry.state("path"));
+    assertTrue(registry.claimForUpload("path"));
+  }
+
+  @Test
+  public void known_paths_cannot_be_claimed_or_added_again() {
+    // GIVEN
+    PathRegistry registry = new PathRegistry(List.of("available"));
+    registry.claimForUpload("uploading");
+
+    // THEN
+    assertFalse(registry.claimForUpload("available"));
+    assertFalse(registry.claimForUpload("uploading"));
+    //a scan does not turn a running upload into an available file
+    assertFalse(registry.addAvailable("uploading"));
+    assertEquals(PathRegistry.PathState.UPLOADING, registry.state("uploading"));
+    //an upload can only be aborted or completed while it runs
+    registry.abortUpload("available");
+    registry.completeUpload("unknown");
+    assertTrue(registry.isAvailable("available"));
+    assertNull(registry.state("unknown"));
+  }
+
+  @Test
+  public void removing_an_available_path_leaves_running_uploads_alone() {
+    // GIVEN
+    PathRegistry registry = new PathRegistry(List.of("available"));
+    registry.claimForUpload("uploading");
+
+    // WHEN
+    boolean removedAvailable = registry.removeAvailable("available");
+    boolean removedUploading = registry.removeAvailable("uploading");
+
+    // THEN
+    assertTrue(removedAvailable);
+    assertFalse(removedUploading);
+    assertNull(registry.state("available"));
+    assertEquals(PathRegistry.PathState.UPLOADING, registry.state("uploading"));
+  }
+
+  @Test
+  public void views_only_change_the_paths_in_their_state() {
+    // GIVEN
+    PathRegistry registry = new PathRegistry(List.of("a", "b"));
+    registry.claimForUpload("c");
+
+    // WHEN
+    registry.available().removeIf((path) -> true);
+
+    // THEN
+    assertTrue(registry.available().isEmpty());
+    assertEquals(Set.of("c"), registry.uploading());
+    assertEquals(1, registry.uploading().size());
+  }
+
+  @Test
+  public void only_one_of_several_concurrent_claims_wins()
+      throws InterruptedException, ExecutionException {
+    // GIVEN
+    PathRegistry registry = new PathRegistry(List.of());
+    AtomicInteger claims = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+
+    // WHEN
+    List<Future<?>> results = new ArrayList<>();
+    for (int i = 0; i < 64; i++) {
+      results.add(pool.submit(() -> {
+        if (registry.claimForUpload("path")) {
+          claims.incrementAndGet();
+        }
+      }));
+    }
+    for (Future<?> result : results) {
+      result.get();
+    }
+    pool.shutdown();
+
+    // THEN
+    assertEquals(1, claims.get());
+  }
+}
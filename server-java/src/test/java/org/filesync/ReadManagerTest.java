@@ -1,7 +1,9 @@
 package org.filesync;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.when;
@@ -12,10 +14,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -25,6 +35,7 @@ import java.util.function.Consumer;
 import org.filesync.ReadManager.IOAdapter;
 import org.filesync.ReadManager.ReadManagerIO;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 class ReadManagerTest {
 
@@ -92,6 +103,11 @@ class ReadManagerTest {
     public void deleteIfExists(Path path) {
       actions.add("deleteIfExists: " + path);
     }
+
+    public CompletableFuture<Void> commit(Path tempFile, Path path) {
+      actions.add("commit: " + tempFile + " to " + path);
+      return CompletableFuture.completedFuture(null);
+    }
   }
 
   public static ThreadPoolExecutor createWorkerPool() {
@@ -104,6 +120,12 @@ class ReadManagerTest {
     );
   }
 
+  //uploads are finished on the worker pool once their commit completed
+  public static void awaitWorkerPool(ThreadPoolExecutor workerPool) throws InterruptedException {
+    workerPool.shutdown();
+    workerPool.awaitTermination(5, TimeUnit.SECONDS);
+  }
+
   public static Consumer<Socket> createCloseCallback(AtomicReference<Integer> counter,
       AtomicReference<Socket> result) {
     return (socket) -> {
@@ -139,6 +161,26 @@ class ReadManagerTest {
     assertEquals(0, client.getInputStream().available());
   }
 
+  @Test
+  public void frames_of_one_client_are_read_with_the_same_reader() throws IOException {
+    // GIVEN
+    Socket client = mockSocket(List.of(initFrame(List.of("a")), initFrame(List.of("b"))));
+    SharedSyncState sharedSyncState = createSharedSyncState();
+    sharedSyncState.clients.add(client);
+    ReadManager manager = createManager(sharedSyncState, createWorkerPool(), (socket) -> {
+    });
+
+    // WHEN
+    manager.handleRead(client, client.getInputStream());
+    FrameReader firstReader = manager.frameReaders.get(client);
+    manager.handleRead(client, client.getInputStream());
+
+    // THEN
+    assertSame(firstReader, manager.frameReaders.get(client));
+    assertEquals(List.of("a"), sharedSyncState.initQueue.poll().filePathsMissingOnServer);
+    assertEquals(List.of("b"), sharedSyncState.initQueue.poll().filePathsMissingOnServer);
+  }
+
   @Test
   public void already_in_progress_clients_are_not_read_again_until_the_work_finishes()
       throws InterruptedException {
@@ -169,8 +211,11 @@ class ReadManagerTest {
     workerPool.awaitTermination(1L, TimeUnit.SECONDS);
     assertEquals(List.of(), manager.readInProgress);
     //checking again, adds it again
+    //the callback has to block again, otherwise the worker could finish before we check
+    closeCallbackCanFinish.set(false);
     manager.executeReadCheck();
     assertEquals(List.of(client), manager.readInProgress);
+    closeCallbackCanFinish.set(true);
   }
 
   @Test
@@ -294,6 +339,53 @@ class ReadManagerTest {
     assertEquals(List.of("serverPath1"), writeRequest.paths);
   }
 
+  public static String sha256(String content) {
+    MessageDigest digest = ContentIndex.newDigest();
+    digest.update(content.getBytes(StandardCharsets.UTF_8));
+    return ContentIndex.toHex(digest.digest());
+  }
+
+  @Test
+  public void init_v2_only_sends_shared_files_whose_content_differs(@TempDir Path folder)
+      throws IOException, InterruptedException {
+    // GIVEN
+    Files.writeString(folder.resolve("same.txt"), "same");
+    Files.writeString(folder.resolve("changed.txt"), "server");
+    Files.writeString(folder.resolve("serverPath.txt"), "server only");
+    Socket client = mockSocket(List.of(new SyncFrame(SyncOpcode.INIT_V2, String.join("\n",
+        "caps hash",
+        "same.txt\t4\t" + sha256("same"),
+        "changed.txt\t6\t" + sha256("client"),
+        "clientPath.txt\t11\t" + sha256("client only")).getBytes(StandardCharsets.UTF_8))));
+    SharedSyncState sharedSyncState = new SharedSyncState(new CopyOnWriteArrayList<>(),
+        new ArrayList<>(), folder.toString(), new ContentIndex(folder.toString(), null),
+        new FileCatalog(null), new PartialUploads(null));
+    sharedSyncState.availableFilePaths.addAll(List.of("same.txt", "changed.txt",
+        "serverPath.txt"));
+    sharedSyncState.clients.add(client);
+    ThreadPoolExecutor workerPool = createWorkerPool();
+    ReadManager manager = createManager(sharedSyncState, workerPool, (socket) -> {
+      //will not be executed
+      throw new RuntimeException();
+    });
+
+    // WHEN
+    manager.handleRead(client, client.getInputStream());
+    //the reply is queued last, once the files were compared on the worker pool
+    InitData initData = sharedSyncState.initQueue.poll(5, TimeUnit.SECONDS);
+
+    // THEN
+    assert initData != null;
+    WriteRequest writeRequest = sharedSyncState.writeQueue.poll();
+    assert writeRequest != null;
+    assertEquals(client, writeRequest.relevantClient);
+    assertEquals(List.of("serverPath.txt", "changed.txt"), writeRequest.paths);
+    assertNull(sharedSyncState.writeQueue.poll());
+    assertEquals(Set.of(Capabilities.HASH), initData.acceptedCapabilities);
+    assertEquals(List.of("clientPath.txt"), initData.filePathsMissingOnServer);
+    assertEquals(List.of(), initData.deltaPaths);
+  }
+
   @Test
   public void sending_duplicate_path_closes_socket() throws IOException {
     // GIVEN
@@ -340,7 +432,33 @@ class ReadManagerTest {
   }
 
   @Test
-  public void incoming_file_is_written_to_server_and_added_to_write_queue() throws IOException {
+  public void upload_that_is_interrupted_by_another_frame_releases_its_path() throws IOException {
+    // GIVEN
+    Socket client = mockSocket(List.of(
+        new SyncFrame(SyncOpcode.NEW_FILE_PATH, "path.txt".getBytes(StandardCharsets.UTF_8)),
+        new SyncFrame(SyncOpcode.NEW_FILE_PART, "part1".getBytes(StandardCharsets.UTF_8)),
+        initFrame(List.of())));
+    AtomicReference<Integer> counter = new AtomicReference<>(0);
+    AtomicReference<Socket> result = new AtomicReference<>(null);
+    SharedSyncState sharedSyncState = createSharedSyncState();
+    sharedSyncState.clients.add(client);
+    FakeReadMangerIO fakeReadMangerIO = new FakeReadMangerIO(new ByteArrayOutputStream());
+    ReadManager manager = createManager(sharedSyncState, createWorkerPool(),
+        createCloseCallback(counter, result), fakeReadMangerIO);
+
+    // WHEN
+    manager.handleRead(client, client.getInputStream());
+
+    // THEN
+    assertEquals(1, counter.get());
+    assertNull(sharedSyncState.pathRegistry.state("path.txt"));
+    assertEquals("deleteIfExists: .path.txt.filesync-tmp",
+        fakeReadMangerIO.actions.get(fakeReadMangerIO.actions.size() - 1));
+  }
+
+  @Test
+  public void incoming_file_is_written_to_server_and_added_to_write_queue()
+      throws IOException, InterruptedException {
     // GIVEN
     Socket client = mockSocket(List.of(
         new SyncFrame(SyncOpcode.NEW_FILE_PATH, "parent/path.txt".getBytes(
@@ -356,16 +474,20 @@ class ReadManagerTest {
     sharedSyncState.clients.add(client);
     ByteArrayOutputStream outputStream = spy(new ByteArrayOutputStream());
     FakeReadMangerIO fakeReadMangerIO = new FakeReadMangerIO(outputStream);
-    ReadManager manager = createManager(sharedSyncState, createWorkerPool(), (socket) -> {
+    ThreadPoolExecutor workerPool = createWorkerPool();
+    ReadManager manager = createManager(sharedSyncState, workerPool, (socket) -> {
       //will not be executed
       throw new RuntimeException();
     }, fakeReadMangerIO);
 
     // WHEN
     manager.handleRead(client, client.getInputStream());
+    awaitWorkerPool(workerPool);
 
     // THEN
-    assertEquals(List.of("createDirectories: parent", "newOutputStream: parent/path.txt"),
+    assertEquals(List.of("createDirectories: parent",
+            "newOutputStream: parent/.path.txt.filesync-tmp",
+            "commit: parent/.path.txt.filesync-tmp to parent/path.txt"),
         fakeReadMangerIO.actions);
     assertEquals("part1part2", outputStream.toString(StandardCharsets.UTF_8));
     WriteRequest writeRequest = sharedSyncState.writeQueue.poll();
@@ -375,6 +497,133 @@ class ReadManagerTest {
     assertEquals(List.of("parent/path.txt"),writeRequest.paths);
   }
 
+  @Test
+  public void large_file_parts_are_written_even_if_they_arrive_in_pieces()
+      throws IOException, InterruptedException {
+    // GIVEN
+    byte[] content = new byte[3 * FrameReader.SLICE_SIZE + 17];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    frames.write(new SyncFrame(SyncOpcode.NEW_FILE_PATH, "big.bin".getBytes(
+        StandardCharsets.UTF_8)).toBytes());
+    frames.write(new SyncFrame(SyncOpcode.NEW_FILE_PART, content).toBytes());
+    frames.write(new SyncFrame(SyncOpcode.NEW_FILE_END, "big.bin".getBytes(
+        StandardCharsets.UTF_8)).toBytes());
+    //like a network stream, every read only returns a small piece
+    InputStream inputStream = new ByteArrayInputStream(frames.toByteArray()) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, 1000));
+      }
+    };
+    Socket client = mock(Socket.class);
+    when(client.getInputStream()).thenReturn(inputStream);
+    SharedSyncState sharedSyncState = createSharedSyncState();
+    sharedSyncState.clients.add(client);
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    ThreadPoolExecutor workerPool = createWorkerPool();
+    ReadManager manager = createManager(sharedSyncState, workerPool, (socket) -> {
+      //will not be executed
+      throw new RuntimeException();
+    }, new FakeReadMangerIO(outputStream));
+
+    // WHEN
+    manager.handleRead(client, client.getInputStream());
+    awaitWorkerPool(workerPool);
+
+    // THEN
+    assertArrayEquals(content, outputStream.toByteArray());
+    assertEquals(Set.of("big.bin"), sharedSyncState.availableFilePaths);
+    assertEquals(0, inputStream.available());
+  }
 
+  public static SyncFrame streamFrame(byte syncOpCode, int streamId, byte[] data) {
+    return new SyncFrame(syncOpCode, ByteBuffer.allocate(4 + data.length)
+        .order(ByteOrder.LITTLE_ENDIAN).putInt(streamId).put(data).array());
+  }
 
-}
\ No newline at end of file
+  @Test
+  public void interleaved_streams_are_written_to_their_own_files()
+      throws IOException, InterruptedException {
+    // GIVEN
+    Socket client = mockSocket(List.of(
+        streamFrame(SyncOpcode.STREAM_FILE_PATH, 1, "a.txt".getBytes(StandardCharsets.UTF_8)),
+        streamFrame(SyncOpcode.STREAM_FILE_PATH, 2, "b.txt".getBytes(StandardCharsets.UTF_8)),
+        streamFrame(SyncOpcode.STREAM_FILE_PART, 1, "aa".getBytes(StandardCharsets.UTF_8)),
+        streamFrame(SyncOpcode.STREAM_FILE_PART, 2, "bb".getBytes(StandardCharsets.UTF_8)),
+        streamFrame(SyncOpcode.STREAM_FILE_PART, 1, "AA".getBytes(StandardCharsets.UTF_8)),
+        streamFrame(SyncOpcode.STREAM_FILE_END, 2, new byte[0]),
+        streamFrame(SyncOpcode.STREAM_FILE_END, 1, new byte[0])));
+    SharedSyncState sharedSyncState = createSharedSyncState();
+    sharedSyncState.clients.add(client);
+    sharedSyncState.clientCapabilities.put(client, Set.of(Capabilities.STREAMS));
+    Map<String, ByteArrayOutputStream> files = new HashMap<>();
+    ThreadPoolExecutor workerPool = createWorkerPool();
+    ReadManager manager = createManager(sharedSyncState, workerPool, (socket) -> {
+      //will not be executed
+      throw new RuntimeException();
+    }, new FakeReadMangerIO(null) {
+      @Override
+      public OutputStream newOutputStream(Path path) {
+        return files.computeIfAbsent(path.toString(), (newPath) -> new ByteArrayOutputStream());
+      }
+
+      @Override
+      public CompletableFuture<Void> commit(Path tempFile, Path path) {
+        files.put(path.toString(), files.remove(tempFile.toString()));
+        return CompletableFuture.completedFuture(null);
+      }
+    });
+
+    // WHEN
+    for (int i = 0; i < 7; i++) {
+      manager.handleRead(client, client.getInputStream());
+    }
+    awaitWorkerPool(workerPool);
+
+    // THEN
+    assertEquals("aaAA", files.get("a.txt").toString(StandardCharsets.UTF_8));
+    assertEquals("bb", files.get("b.txt").toString(StandardCharsets.UTF_8));
+    assertEquals(Set.of("a.txt", "b.txt"), sharedSyncState.availableFilePaths);
+    assertEquals(List.of("b.txt"), sharedSyncState.writeQueue.poll().paths);
+    assertEquals(List.of("a.txt"), sharedSyncState.writeQueue.poll().paths);
+  }
+
+  @Test
+  public void broken_off_upload_is_kept_and_can_be_resumed(@TempDir Path folder,
+      @TempDir Path stateFolder) throws IOException, InterruptedException {
+    // GIVEN
+    Socket brokenClient = mockSocket(List.of(
+        new SyncFrame(SyncOpcode.NEW_FILE_PATH, "r.txt".getBytes(StandardCharsets.UTF_8)),
+        new SyncFrame(SyncOpcode.NEW_FILE_PART, "hello ".getBytes(StandardCharsets.UTF_8))));
+    Socket resumingClient = mockSocket(List.of(
+        new SyncFrame(SyncOpcode.RESUME_FILE_PATH, "r.txt\t6".getBytes(StandardCharsets.UTF_8)),
+        new SyncFrame(SyncOpcode.NEW_FILE_PART, "world".getBytes(StandardCharsets.UTF_8)),
+        new SyncFrame(SyncOpcode.NEW_FILE_END, "r.txt".getBytes(StandardCharsets.UTF_8))));
+    PartialUploads partialUploads = new PartialUploads(stateFolder);
+    SharedSyncState sharedSyncState = new SharedSyncState(new CopyOnWriteArrayList<>(),
+        new ArrayList<>(), folder.toString(), new ContentIndex(folder.toString(), null),
+        new FileCatalog(null), partialUploads);
+    for (Socket client : List.of(brokenClient, resumingClient)) {
+      sharedSyncState.clients.add(client);
+      sharedSyncState.clientCapabilities.put(client, Set.of(Capabilities.RESUME));
+    }
+    ThreadPoolExecutor workerPool = createWorkerPool();
+    ReadManager manager = createManager(sharedSyncState, workerPool, (socket) -> {
+    });
+
+    // WHEN
+    manager.handleRead(brokenClient, brokenClient.getInputStream());
+    long keptOffset = partialUploads.confirmedOffset("r.txt");
+    manager.handleRead(resumingClient, resumingClient.getInputStream());
+    awaitWorkerPool(workerPool);
+
+    // THEN
+    assertEquals(6, keptOffset);
+    assertEquals("hello world", Files.readString(folder.resolve("r.txt")));
+    assertEquals(Set.of("r.txt"), sharedSyncState.availableFilePaths);
+    assertEquals(-1, partialUploads.confirmedOffset("r.txt"));
+  }
+}
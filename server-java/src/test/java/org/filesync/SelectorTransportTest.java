@@ -0,0 +1,212 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SelectorTransportTest {
+
+  private static final String API_KEY = "test-key";
+
+  //remembers the connections of the authenticated clients
+  public static class CapturingSyncManager extends SyncManager {
+
+    public final BlockingQueue<ChannelConnection> connections = new LinkedBlockingQueue<>();
+
+    CapturingSyncManager(SharedSyncState sharedSyncState, EnvVars vars) {
+      super(sharedSyncState, vars);
+    }
+
+    @Override
+    void registerChannelClient(ChannelConnection connection, String clientId) {
+      super.registerChannelClient(connection, clientId);
+      connections.add(connection);
+    }
+  }
+
+  private final List<AutoCloseable> resources = new ArrayList<>();
+  private SharedSyncState sharedSyncState;
+  private CapturingSyncManager syncManager;
+  private SelectorTransport transport;
+
+  @AfterEach
+  public void closeResources() throws Exception {
+    for (AutoCloseable resource : resources) {
+      resource.close();
+    }
+  }
+
+  private void startTransport(Path folder) throws IOException {
+    Map<String, String> env = Map.of("SERVER_PORT", "0", "API_KEY", API_KEY,
+        "SERVER_FOLDER", folder.toString());
+    EnvVars vars = new EnvVars(new String[]{"--debug"}, env::get);
+    sharedSyncState = new SharedSyncState(new CopyOnWriteArrayList<>(), List.of(),
+        folder.toString());
+    syncManager = new CapturingSyncManager(sharedSyncState, vars);
+    transport = new SelectorTransport(vars, syncManager);
+    resources.add(transport);
+    Thread thread = new Thread(transport::run, "selector-transport-test");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private SocketChannel connect() throws IOException {
+    SocketChannel client = SocketChannel.open(
+        new InetSocketAddress("localhost", transport.localPort()));
+    client.socket().setTcpNoDelay(true);
+    resources.add(client);
+    return client;
+  }
+
+  //sends the bytes in pieces of the given size, so that they arrive in several reads
+  public static void writeInPieces(SocketChannel client, byte[] bytes, int pieceSize)
+      throws IOException, InterruptedException {
+    for (int start = 0; start < bytes.length; start += pieceSize) {
+      client.write(ByteBuffer.wrap(bytes, start, Math.min(pieceSize, bytes.length - start)));
+      Thread.sleep(5);
+    }
+  }
+
+  public static byte[] readFully(SocketChannel client, int length) throws IOException {
+    ByteBuffer received = ByteBuffer.allocate(length);
+    while (received.hasRemaining()) {
+      if (client.read(received) == -1) {
+        throw new IOException("Connection ended after " + received.position() + " bytes");
+      }
+    }
+    return received.array();
+  }
+
+  public static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
+  @Test
+  public void key_and_frames_that_arrive_in_pieces_are_read_whole(@TempDir Path folder)
+      throws IOException, InterruptedException {
+    // GIVEN
+    startTransport(folder);
+    SocketChannel client = connect();
+
+    // WHEN
+    writeInPieces(client, API_KEY.getBytes(StandardCharsets.UTF_8), 3);
+    writeInPieces(client, ReadManagerTest.initFrame(List.of("a.txt", "b.txt")).toBytes(), 3);
+
+    // THEN
+    ChannelConnection connection = syncManager.connections.poll(5, TimeUnit.SECONDS);
+    assert connection != null;
+    InitData initData = sharedSyncState.initQueue.poll(5, TimeUnit.SECONDS);
+    assert initData != null;
+    assertEquals(List.of("a.txt", "b.txt"), initData.filePathsMissingOnServer);
+  }
+
+  @Test
+  public void upload_larger_than_the_inbound_buffer_is_received_completely(
+      @TempDir Path folder) throws IOException, InterruptedException {
+    // GIVEN
+    startTransport(folder);
+    SocketChannel client = connect();
+    client.write(ByteBuffer.wrap(API_KEY.getBytes(StandardCharsets.UTF_8)));
+    byte[] content = randomBytes(3 * ChannelConnection.INBOUND_BUFFER_SIZE + 123);
+    byte[] path = "large.bin".getBytes(StandardCharsets.UTF_8);
+
+    // WHEN
+    for (SyncFrame frame : List.of(new SyncFrame(SyncOpcode.NEW_FILE_PATH, path),
+        new SyncFrame(SyncOpcode.NEW_FILE_PART, content),
+        new SyncFrame(SyncOpcode.NEW_FILE_END, path))) {
+      ByteBuffer bytes = ByteBuffer.wrap(frame.toBytes());
+      while (bytes.hasRemaining()) {
+        client.write(bytes);
+      }
+    }
+
+    // THEN
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!sharedSyncState.availableFilePaths.contains("large.bin")
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertArrayEquals(content, Files.readAllBytes(folder.resolve("large.bin")));
+  }
+
+  @Test
+  public void large_writes_wait_until_the_client_reads_again(@TempDir Path folder)
+      throws IOException, InterruptedException, ExecutionException, TimeoutException {
+    // GIVEN
+    startTransport(folder);
+    SocketChannel client = connect();
+    client.write(ByteBuffer.wrap(API_KEY.getBytes(StandardCharsets.UTF_8)));
+    ChannelConnection connection = syncManager.connections.poll(5, TimeUnit.SECONDS);
+    assert connection != null;
+    //more than the send and receive buffers of both sides can hold
+    byte[] content = randomBytes(32 * 1024 * 1024);
+
+    // WHEN
+    CompletableFuture<Void> write = CompletableFuture.runAsync(() -> {
+      try {
+        connection.outputStream.write(content);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    Thread.sleep(200);
+
+    // THEN
+    assertFalse(write.isDone());
+    assertArrayEquals(content, readFully(client, content.length));
+    write.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void file_transfers_continue_after_partial_sends(@TempDir Path folder)
+      throws IOException, InterruptedException, ExecutionException, TimeoutException {
+    // GIVEN
+    startTransport(folder);
+    SocketChannel client = connect();
+    client.write(ByteBuffer.wrap(API_KEY.getBytes(StandardCharsets.UTF_8)));
+    ChannelConnection connection = syncManager.connections.poll(5, TimeUnit.SECONDS);
+    assert connection != null;
+    byte[] content = randomBytes(32 * 1024 * 1024 + 7);
+    Path file = folder.resolve("file.bin");
+    Files.write(file, content);
+
+    // WHEN
+    CompletableFuture<Void> transfer = CompletableFuture.runAsync(() -> {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        ((FileTransferTarget) connection.outputStream).transferFrom(channel, 0, content.length);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+
+    // THEN
+    assertArrayEquals(content, readFully(client, content.length));
+    transfer.get(5, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,48 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.Test;
+
+class SendCreditTest {
+
+  @Test
+  public void writes_wait_until_the_client_granted_credit()
+      throws InterruptedException, ExecutionException, TimeoutException {
+    // GIVEN
+    ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    SendCredit credit = new SendCredit();
+    credit.limit();
+    CoalescingOutputStream outputStream = new CoalescingOutputStream(sent, null, credit,
+        new Metrics.Client("client", new Metrics()), 4, 0);
+
+    // WHEN
+    CompletableFuture<Void> write = CompletableFuture.runAsync(() -> {
+      try {
+        outputStream.write(new byte[]{1, 2, 3, 4, 5, 6});
+        outputStream.flush();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    Thread.sleep(200);
+
+    // THEN
+    assertEquals(0, sent.size());
+
+    // WHEN
+    credit.grant(1);
+    write.get(5, TimeUnit.SECONDS);
+
+    // THEN
+    //a write may overdraw the credit, so the client still gets whole frames
+    assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6}, sent.toByteArray());
+  }
+}
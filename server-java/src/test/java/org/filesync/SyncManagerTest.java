@@ -0,0 +1,89 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SyncManagerTest {
+
+  @Test
+  public void reconcile_removes_vanished_files_and_sends_the_added_ones() {
+    // GIVEN
+    SharedSyncState sharedSyncState = new SharedSyncState(new CopyOnWriteArrayList<>(),
+        List.of("kept", "vanished"), "");
+    SyncManager syncManager = new SyncManager(sharedSyncState,
+        new EnvVars(new String[]{"--debug"}));
+    //found during the scan, so it was not known when the scan started
+    assertTrue(syncManager.addFoundPath("added"));
+    assertFalse(syncManager.addFoundPath("kept"));
+
+    // WHEN
+    syncManager.reconcile(Set.of("kept", "vanished"), Set.of("kept", "added"),
+        new ArrayList<>(List.of("added")));
+
+    // THEN
+    assertEquals(Set.of("kept", "added"), sharedSyncState.availableFilePaths);
+    WriteRequest writeRequest = sharedSyncState.writeQueue.poll();
+    assert writeRequest != null;
+    assertNull(writeRequest.relevantClient);
+    assertNull(writeRequest.notRelevantClient);
+    assertEquals(List.of("added"), writeRequest.paths);
+  }
+
+  @Test
+  public void reconcile_keeps_files_that_are_uploaded_or_appeared_during_the_scan() {
+    // GIVEN
+    SharedSyncState sharedSyncState = new SharedSyncState(new CopyOnWriteArrayList<>(),
+        List.of(), "");
+    SyncManager syncManager = new SyncManager(sharedSyncState,
+        new EnvVars(new String[]{"--debug"}));
+    sharedSyncState.pathRegistry.claimForUpload("uploading");
+    //uploaded by a client after the scan started, so the scan could not see it
+    sharedSyncState.pathRegistry.claimForUpload("uploaded");
+    sharedSyncState.pathRegistry.completeUpload("uploaded");
+
+    // WHEN
+    syncManager.reconcile(Set.of("uploading"), Set.of(), List.of());
+
+    // THEN
+    assertEquals(PathRegistry.PathState.UPLOADING,
+        sharedSyncState.pathRegistry.state("uploading"));
+    assertEquals(Set.of("uploaded"), sharedSyncState.availableFilePaths);
+    assertNull(sharedSyncState.writeQueue.poll());
+  }
+
+  @Test
+  public void found_files_reach_the_catalog_once_the_scan_is_reconciled(@TempDir Path folder)
+      throws IOException {
+    // GIVEN
+    FileCatalog catalog = new FileCatalog(folder);
+    catalog.load();
+    catalog.recordAdded("vanished");
+    catalog.flush();
+    SharedSyncState sharedSyncState = new SharedSyncState(new CopyOnWriteArrayList<>(),
+        List.of("vanished"), "", new ContentIndex("", null), catalog, new PartialUploads(null));
+    SyncManager syncManager = new SyncManager(sharedSyncState,
+        new EnvVars(new String[]{"--debug"}));
+    syncManager.addFoundPath("added");
+
+    // THEN
+    assertEquals(List.of("vanished"), new FileCatalog(folder).load());
+
+    // WHEN
+    syncManager.reconcile(Set.of("vanished"), Set.of("added"),
+        new ArrayList<>(List.of("added")));
+
+    // THEN
+    assertEquals(List.of("added"), new FileCatalog(folder).load());
+  }
+}
@@ -0,0 +1,222 @@
+package org.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WriteManagerTest {
+
+  //keeps the only worker busy, so dispatched work stays queued and the test can look at it
+  public static ThreadPoolExecutor createBlockedWorkerPool(CountDownLatch release) {
+    ThreadPoolExecutor workerPool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>());
+    workerPool.execute(() -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    return workerPool;
+  }
+
+  public static WriteManager createManager(SharedSyncState sharedSyncState,
+      ThreadPoolExecutor workerPool) {
+    return createManager(sharedSyncState, workerPool, new EnvVars(new String[]{"--debug"}));
+  }
+
+  public static WriteManager createManager(SharedSyncState sharedSyncState,
+      ThreadPoolExecutor workerPool, EnvVars vars) {
+    return new WriteManager(sharedSyncState, vars, workerPool, Executors.newCachedThreadPool(),
+        (client) -> {
+        });
+  }
+
+  public static SharedSyncState createSharedSyncState(Socket... clients) {
+    CopyOnWriteArrayList<Socket> clientList = new CopyOnWriteArrayList<>(List.of(clients));
+    return new SharedSyncState(clientList, new ArrayList<>(), "");
+  }
+
+  @Test
+  public void busy_clients_do_not_block_requests_for_other_clients() throws InterruptedException {
+    // GIVEN
+    Socket busyClient = mock(Socket.class);
+    Socket freeClient = mock(Socket.class);
+    SharedSyncState sharedSyncState = createSharedSyncState(busyClient, freeClient);
+    CountDownLatch release = new CountDownLatch(1);
+    ThreadPoolExecutor workerPool = createBlockedWorkerPool(release);
+    WriteManager writeManager = createManager(sharedSyncState, workerPool);
+    writeManager.writeInProgress.add(busyClient);
+
+    // WHEN
+    sharedSyncState.initQueue.put(new InitData(busyClient, List.of()));
+    sharedSyncState.writeQueue.put(WriteRequest.requestForOneClient(List.of("a"), busyClient));
+    sharedSyncState.writeQueue.put(WriteRequest.requestForOneClient(List.of("b"), freeClient));
+    boolean dispatched = writeManager.executeWriteCheck();
+
+    // THEN
+    assertTrue(dispatched);
+    assertEquals(List.of(busyClient, freeClient), writeManager.writeInProgress);
+    assertEquals(1, workerPool.getQueue().size());
+
+    release.countDown();
+    workerPool.shutdownNow();
+  }
+
+  @Test
+  public void clients_take_turns_when_only_one_write_may_run() throws InterruptedException {
+    // GIVEN
+    Socket client1 = mock(Socket.class);
+    Socket client2 = mock(Socket.class);
+    Socket client3 = mock(Socket.class);
+    SharedSyncState sharedSyncState = createSharedSyncState(client1, client2, client3);
+    CountDownLatch release = new CountDownLatch(1);
+    ThreadPoolExecutor workerPool = createBlockedWorkerPool(release);
+    Map<String, String> env = Map.of("WRITE_CONCURRENCY", "1");
+    WriteManager writeManager = createManager(sharedSyncState, workerPool,
+        new EnvVars(new String[]{"--debug"}, env::get));
+    //the first client queued the most, which must not let it go first every time
+    for (String path : List.of("a", "b", "c")) {
+      sharedSyncState.writeQueue.put(WriteRequest.requestForOneClient(List.of(path), client1));
+    }
+    sharedSyncState.writeQueue.put(WriteRequest.requestForOneClient(List.of("d"), client2));
+    sharedSyncState.writeQueue.put(WriteRequest.requestForOneClient(List.of("e"), client3));
+
+    // WHEN
+    List<Socket> served = new ArrayList<>();
+    while (writeManager.executeWriteCheck()) {
+      assertEquals(1, writeManager.writeInProgress.size());
+      served.add(writeManager.writeInProgress.get(0));
+      writeManager.writeInProgress.clear();
+    }
+
+    // THEN
+    assertEquals(List.of(client1, client2, client3, client1, client1), served);
+
+    release.countDown();
+    workerPool.shutdownNow();
+  }
+
+  @Test
+  public void clients_of_the_virtual_transport_are_all_written_to_at_once()
+      throws InterruptedException {
+    assumeTrue(VirtualThreads.isSupported());
+    // GIVEN
+    List<Socket> clients = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      clients.add(mock(Socket.class));
+    }
+    SharedSyncState sharedSyncState = createSharedSyncState(clients.toArray(new Socket[0]));
+    CountDownLatch release = new CountDownLatch(1);
+    ThreadPoolExecutor workerPool = createBlockedWorkerPool(release);
+    Map<String, String> env = Map.of("TRANSPORT", EnvVars.TRANSPORT_VIRTUAL);
+    WriteManager writeManager = createManager(sharedSyncState, workerPool,
+        new EnvVars(new String[]{"--debug"}, env::get));
+    for (Socket client : clients) {
+      sharedSyncState.writeQueue.put(WriteRequest.requestForOneClient(List.of("a"), client));
+    }
+
+    // WHEN
+    writeManager.executeWriteCheck();
+
+    // THEN
+    //no WRITE_CONCURRENCY was set, so none of the clients has to wait for another one
+    assertEquals(clients, writeManager.writeInProgress);
+
+    release.countDown();
+    workerPool.shutdownNow();
+  }
+
+  @Test
+  public void broadcasts_reach_free_clients_first_and_busy_clients_later()
+      throws InterruptedException {
+    // GIVEN
+    Socket busyClient = mock(Socket.class);
+    Socket freeClient1 = mock(Socket.class);
+    Socket freeClient2 = mock(Socket.class);
+    Socket sender = mock(Socket.class);
+    SharedSyncState sharedSyncState = createSharedSyncState(busyClient, freeClient1, freeClient2,
+        sender);
+    CountDownLatch release = new CountDownLatch(1);
+    ThreadPoolExecutor workerPool = createBlockedWorkerPool(release);
+    WriteManager writeManager = createManager(sharedSyncState, workerPool);
+    writeManager.writeInProgress.add(busyClient);
+
+    // WHEN
+    sharedSyncState.writeQueue.put(
+        WriteRequest.requestForAllButOneClient(List.of("new"), sender));
+    writeManager.executeWriteCheck();
+
+    // THEN
+    //both free clients share one broadcast
+    assertEquals(List.of(busyClient, freeClient1, freeClient2), writeManager.writeInProgress);
+    assertEquals(1, workerPool.getQueue().size());
+    assertFalse(writeManager.executeWriteCheck());
+
+    // WHEN
+    writeManager.writeInProgress.remove(busyClient);
+    writeManager.executeWriteCheck();
+
+    // THEN
+    assertEquals(List.of(freeClient1, freeClient2, busyClient), writeManager.writeInProgress);
+    assertEquals(2, workerPool.getQueue().size());
+
+    release.countDown();
+    workerPool.shutdownNow();
+  }
+
+  @Test
+  public void files_that_were_deleted_meanwhile_are_left_out(@TempDir Path folder)
+      throws IOException, InterruptedException {
+    // GIVEN
+    Files.writeString(folder.resolve("present"), "content");
+    Socket client = mock(Socket.class);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    when(client.getOutputStream()).thenReturn(output);
+    SharedSyncState sharedSyncState = new SharedSyncState(
+        new CopyOnWriteArrayList<>(List.of(client)), List.of("gone", "present"),
+        folder.toString());
+    ThreadPoolExecutor workerPool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>());
+    AtomicBoolean closed = new AtomicBoolean(false);
+    WriteManager writeManager = new WriteManager(sharedSyncState,
+        new EnvVars(new String[]{"--debug"}), workerPool, Executors.newCachedThreadPool(),
+        (closedClient) -> closed.set(true));
+
+    // WHEN
+    sharedSyncState.writeQueue.put(
+        WriteRequest.requestForOneClient(List.of("gone", "present"), client));
+    writeManager.executeWriteCheck();
+    workerPool.shutdown();
+    workerPool.awaitTermination(5, TimeUnit.SECONDS);
+
+    // THEN
+    assertFalse(closed.get());
+    assertTrue(writeManager.writeInProgress.isEmpty());
+    String sent = output.toString(StandardCharsets.UTF_8);
+    assertTrue(sent.contains("present") && sent.contains("content"));
+    assertFalse(sent.contains("gone"));
+  }
+}